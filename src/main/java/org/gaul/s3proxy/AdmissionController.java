@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Limit the number of concurrent requests per identity and per bucket.
+ * Requests over a limit wait up to maxWaitMillis in a queue bounded by
+ * maxQueued; requests which cannot queue or time out are rejected with
+ * SlowDown so that one busy client cannot occupy every Jetty thread.
+ *
+ * Semaphores are held weakly so that idle identities and buckets, including
+ * names which do not exist, do not accumulate.  A semaphore can only be
+ * collected when no permit references it, so no accounting is lost.
+ */
+final class AdmissionController implements AdmissionControllerMXBean {
+    private final int maxPerIdentity;
+    private final int maxPerBucket;
+    private final int maxQueued;
+    private final long maxWaitMillis;
+    private final Cache<String, Semaphore> identitySemaphores =
+            CacheBuilder.newBuilder().weakValues().build();
+    private final Cache<String, Semaphore> bucketSemaphores =
+            CacheBuilder.newBuilder().weakValues().build();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxPerIdentity concurrent requests per identity, 0 for unlimited
+     * @param maxPerBucket concurrent requests per bucket, 0 for unlimited
+     * @param maxQueued requests allowed to wait across all keys
+     * @param maxWaitMillis how long a queued request waits for a permit
+     */
+    AdmissionController(int maxPerIdentity, int maxPerBucket, int maxQueued,
+            long maxWaitMillis) {
+        checkArgument(maxPerIdentity >= 0, "maxPerIdentity must be >= 0");
+        checkArgument(maxPerBucket >= 0, "maxPerBucket must be >= 0");
+        checkArgument(maxQueued >= 0, "maxQueued must be >= 0");
+        checkArgument(maxWaitMillis >= 0, "maxWaitMillis must be >= 0");
+        this.maxPerIdentity = maxPerIdentity;
+        this.maxPerBucket = maxPerBucket;
+        this.maxQueued = maxQueued;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /** A pair of permits which the caller must close when done. */
+    static final class Permit implements AutoCloseable {
+        private final AdmissionController controller;
+        @Nullable private final Semaphore identitySemaphore;
+        @Nullable private final Semaphore bucketSemaphore;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Permit(AdmissionController controller,
+                @Nullable Semaphore identitySemaphore,
+                @Nullable Semaphore bucketSemaphore) {
+            this.controller = controller;
+            this.identitySemaphore = identitySemaphore;
+            this.bucketSemaphore = bucketSemaphore;
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (bucketSemaphore != null) {
+                bucketSemaphore.release();
+            }
+            if (identitySemaphore != null) {
+                identitySemaphore.release();
+            }
+            controller.active.decrementAndGet();
+        }
+    }
+
+    /**
+     * Admit a request, waiting if necessary.  A null identity or bucket is
+     * not limited along that dimension.
+     */
+    Permit acquire(@Nullable String identity, @Nullable String bucket)
+            throws S3Exception {
+        Semaphore identitySemaphore = null;
+        if (identity != null && maxPerIdentity > 0) {
+            identitySemaphore = getSemaphore(identitySemaphores, identity,
+                    maxPerIdentity);
+            acquire(identitySemaphore);
+        }
+        Semaphore bucketSemaphore = null;
+        if (bucket != null && !bucket.isEmpty() && maxPerBucket > 0) {
+            bucketSemaphore = getSemaphore(bucketSemaphores, bucket,
+                    maxPerBucket);
+            try {
+                acquire(bucketSemaphore);
+            } catch (S3Exception se) {
+                if (identitySemaphore != null) {
+                    identitySemaphore.release();
+                }
+                throw se;
+            }
+        }
+        active.incrementAndGet();
+        admitted.incrementAndGet();
+        return new Permit(this, identitySemaphore, bucketSemaphore);
+    }
+
+    private void acquire(Semaphore semaphore) throws S3Exception {
+        if (semaphore.tryAcquire()) {
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            throw new S3Exception(S3ErrorCode.SLOW_DOWN);
+        }
+        boolean acquired;
+        try {
+            acquired = semaphore.tryAcquire(maxWaitMillis,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        } finally {
+            queued.decrementAndGet();
+        }
+        if (!acquired) {
+            rejected.incrementAndGet();
+            throw new S3Exception(S3ErrorCode.SLOW_DOWN);
+        }
+    }
+
+    private static Semaphore getSemaphore(Cache<String, Semaphore> cache,
+            String key, int permits) {
+        try {
+            return cache.get(key, () -> new Semaphore(permits));
+        } catch (ExecutionException ee) {
+            throw new IllegalStateException(ee);
+        }
+    }
+
+    @Override
+    public int getActiveRequests() {
+        return active.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    @Override
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
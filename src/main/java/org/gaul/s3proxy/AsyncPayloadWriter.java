@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copy a blob payload to the client with the Servlet 3.1 non-blocking output
+ * API.  The Jetty thread returns as soon as the output buffer fills and the
+ * copy resumes on whichever thread Jetty dispatches when the client drains
+ * it, so slow readers no longer pin a thread for the whole transfer.
+ */
+final class AsyncPayloadWriter implements WriteListener {
+    private static final Logger logger = LoggerFactory.getLogger(
+            AsyncPayloadWriter.class);
+
+    private final AsyncContext asyncContext;
+    private final ServletOutputStream os;
+    private final InputStream is;
+    @Nullable
+    private final AdmissionController.Permit permit;
+    private final byte[] buffer = BufferPool.getInstance().acquire(
+            BufferPool.DEFAULT_BUFFER_SIZE);
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    private AsyncPayloadWriter(AsyncContext asyncContext,
+            ServletOutputStream os, InputStream is,
+            @Nullable AdmissionController.Permit permit) {
+        this.asyncContext = asyncContext;
+        this.os = os;
+        this.is = is;
+        this.permit = permit;
+    }
+
+    /**
+     * Start an asynchronous copy of is to the response.  The caller must not
+     * touch the response after this returns; is is closed and permit, if
+     * any, released by the writer once the transfer ends.
+     */
+    static void write(HttpServletRequest request,
+            HttpServletResponse response, InputStream is,
+            @Nullable AdmissionController.Permit permit) throws IOException {
+        AsyncContext asyncContext;
+        ServletOutputStream os;
+        try {
+            asyncContext = request.startAsync();
+            // payload size, not wall clock, bounds the transfer
+            asyncContext.setTimeout(0);
+            os = response.getOutputStream();
+        } catch (IOException | RuntimeException e) {
+            if (permit != null) {
+                permit.close();
+            }
+            is.close();
+            throw e;
+        }
+        os.setWriteListener(new AsyncPayloadWriter(asyncContext, os, is,
+                permit));
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (os.isReady()) {
+            int count = is.read(buffer);
+            if (count == -1) {
+                complete();
+                return;
+            }
+            os.write(buffer, 0, count);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.debug("Error writing payload: {}", t.getMessage());
+        complete();
+    }
+
+    private void complete() {
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            is.close();
+        } catch (IOException ioe) {
+            logger.debug("Error closing payload: {}", ioe.getMessage());
+        }
+        asyncContext.complete();
+        BufferPool.getInstance().release(buffer);
+        if (permit != null) {
+            permit.close();
+        }
+    }
+}
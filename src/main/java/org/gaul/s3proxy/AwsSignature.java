@@ -26,19 +26,23 @@ import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
-import javax.servlet.http.HttpServletRequest;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.SortedSetMultimap;
 import com.google.common.collect.TreeMultimap;
@@ -79,6 +83,14 @@ final class AwsSignature {
             "website"
     );
     private static final Pattern REPEATING_WHITESPACE = Pattern.compile("\\s+");
+    // bounded by the number of credentials and scopes in use each day
+    private static final Cache<List<String>, byte[]> SIGNING_KEYS =
+            CacheBuilder.newBuilder()
+                    .maximumSize(10000)
+                    .expireAfterWrite(2, TimeUnit.DAYS)
+                    .build();
+    private static final ThreadLocal<Map<String, Mac>> MACS =
+            ThreadLocal.withInitial(HashMap::new);
 
     private AwsSignature() { }
 
@@ -87,14 +99,13 @@ final class AwsSignature {
      * http://docs.aws.amazon.com/general/latest/gr/signature-version-2.html
      */
     static String createAuthorizationSignature(
-            HttpServletRequest request, String uri, String credential,
+            RequestContext request, String uri, String credential,
             boolean queryAuth, boolean bothDateHeader) {
         // sort Amazon headers
         SortedSetMultimap<String, String> canonicalizedHeaders =
                 TreeMultimap.create();
-        for (String headerName : Collections.list(request.getHeaderNames())) {
-            Collection<String> headerValues = Collections.list(
-                    request.getHeaders(headerName));
+        for (String headerName : request.getHeaderNames()) {
+            Collection<String> headerValues = request.getHeaders(headerName);
             headerName = headerName.toLowerCase();
             if (!headerName.startsWith("x-amz-") || (bothDateHeader &&
                   headerName.equalsIgnoreCase(AwsHttpHeaders.DATE))) {
@@ -150,7 +161,7 @@ final class AwsSignature {
         builder.append(uri);
 
         char separator = '?';
-        List<String> subresources = Collections.list(
+        List<String> subresources = new ArrayList<>(
                 request.getParameterNames());
         Collections.sort(subresources);
         for (String subresource : subresources) {
@@ -169,25 +180,68 @@ final class AwsSignature {
         logger.trace("stringToSign: {}", stringToSign);
 
         // Sign string
-        Mac mac;
+        byte[] signature;
         try {
-            mac = Mac.getInstance("HmacSHA1");
-            mac.init(new SecretKeySpec(credential.getBytes(
-                    StandardCharsets.UTF_8), "HmacSHA1"));
+            signature = signMessage(
+                    stringToSign.getBytes(StandardCharsets.UTF_8),
+                    credential.getBytes(StandardCharsets.UTF_8), "HmacSHA1");
         } catch (InvalidKeyException | NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
-        return Base64.getEncoder().encodeToString(mac.doFinal(
-                stringToSign.getBytes(StandardCharsets.UTF_8)));
+        return Base64.getEncoder().encodeToString(signature);
     }
 
-    private static byte[] signMessage(byte[] data, byte[] key, String algorithm)
+    static byte[] signMessage(byte[] data, byte[] key, String algorithm)
             throws InvalidKeyException, NoSuchAlgorithmException {
-        Mac mac = Mac.getInstance(algorithm);
+        Mac mac = getMac(algorithm);
         mac.init(new SecretKeySpec(key, algorithm));
         return mac.doFinal(data);
     }
 
+    /**
+     * Return a Mac owned by the current thread.  Mac.getInstance walks the
+     * provider list on every call, which dominates the cost of small HMACs.
+     */
+    private static Mac getMac(String algorithm)
+            throws NoSuchAlgorithmException {
+        Map<String, Mac> macs = MACS.get();
+        Mac mac = macs.get(algorithm);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            macs.put(algorithm, mac);
+        }
+        return mac;
+    }
+
+    /**
+     * Derive the v4 signing key for a credential and scope.  Keys only change
+     * daily so they are cached; callers must not modify the returned array.
+     */
+    static byte[] getSigningKey(String credential, String date, String region,
+            String service, String algorithm)
+            throws InvalidKeyException, NoSuchAlgorithmException {
+        List<String> cacheKey = ImmutableList.of(algorithm, credential, date,
+                region, service);
+        byte[] signingKey = SIGNING_KEYS.getIfPresent(cacheKey);
+        if (signingKey != null) {
+            return signingKey;
+        }
+        byte[] dateKey = signMessage(
+                date.getBytes(StandardCharsets.UTF_8),
+                ("AWS4" + credential).getBytes(StandardCharsets.UTF_8),
+                algorithm);
+        byte[] dateRegionKey = signMessage(
+                region.getBytes(StandardCharsets.UTF_8), dateKey, algorithm);
+        byte[] dateRegionServiceKey = signMessage(
+                service.getBytes(StandardCharsets.UTF_8), dateRegionKey,
+                algorithm);
+        signingKey = signMessage(
+                "aws4_request".getBytes(StandardCharsets.UTF_8),
+                dateRegionServiceKey, algorithm);
+        SIGNING_KEYS.put(cacheKey, signingKey);
+        return signingKey;
+    }
+
     private static String getMessageDigest(byte[] payload, String algorithm)
             throws NoSuchAlgorithmException {
         MessageDigest md = MessageDigest.getInstance(algorithm);
@@ -210,7 +264,7 @@ final class AwsSignature {
                 startHeaders + 1, endSigned));
     }
 
-    private static String buildCanonicalHeaders(HttpServletRequest request,
+    private static String buildCanonicalHeaders(RequestContext request,
             List<String> signedHeaders) {
         List<String> headers = new ArrayList<>(
                 /*initialCapacity=*/ signedHeaders.size());
@@ -231,7 +285,7 @@ final class AwsSignature {
             headersWithValues.append(':');
 
             boolean firstValue = true;
-            for (String value : Collections.list(request.getHeaders(header))) {
+            for (String value : request.getHeaders(header)) {
                 if (firstValue) {
                     firstValue = false;
                 } else {
@@ -248,10 +302,11 @@ final class AwsSignature {
         return headersWithValues.toString();
     }
 
-    private static String buildCanonicalQueryString(HttpServletRequest request)
+    private static String buildCanonicalQueryString(RequestContext request)
             throws UnsupportedEncodingException {
         // The parameters are required to be sorted
-        List<String> parameters = Collections.list(request.getParameterNames());
+        List<String> parameters = new ArrayList<>(
+                request.getParameterNames());
         Collections.sort(parameters);
         List<String> queryParameters = new ArrayList<>();
 
@@ -267,11 +322,12 @@ final class AwsSignature {
         return Joiner.on("&").join(queryParameters);
     }
 
-    private static String createCanonicalRequest(HttpServletRequest request,
-                                                 String uri, byte[] payload,
+    private static String createCanonicalRequest(RequestContext request,
+                                                 String uri,
+                                                 @Nullable byte[] payload,
                                                  String hashAlgorithm)
             throws IOException, NoSuchAlgorithmException {
-        String authorizationHeader = request.getHeader("Authorization");
+        String authorizationHeader = request.getAuthorization();
         String xAmzContentSha256 = request.getHeader(
                 AwsHttpHeaders.CONTENT_SHA256);
         if (xAmzContentSha256 == null) {
@@ -285,6 +341,10 @@ final class AwsSignature {
             digest = "STREAMING-AWS4-HMAC-SHA256-PAYLOAD";
         } else if ("UNSIGNED-PAYLOAD".equals(xAmzContentSha256)) {
             digest = "UNSIGNED-PAYLOAD";
+        } else if (payload == null) {
+            // caller verifies the body against the claimed digest as it
+            // streams
+            digest = xAmzContentSha256;
         } else {
             digest = getMessageDigest(payload, hashAlgorithm);
         }
@@ -329,29 +389,20 @@ final class AwsSignature {
     /**
      * Create v4 signature.  Reference:
      * http://docs.aws.amazon.com/general/latest/gr/signature-version-4.html
+     *
+     * A null payload signs the x-amz-content-sha256 value as given; the
+     * caller is then responsible for checking the body against it.
      */
     static String createAuthorizationSignatureV4(
-            HttpServletRequest request, S3AuthorizationHeader authHeader,
-            byte[] payload, String uri, String credential)
+            RequestContext request, S3AuthorizationHeader authHeader,
+            @Nullable byte[] payload, String uri, String credential)
             throws InvalidKeyException, IOException, NoSuchAlgorithmException,
             S3Exception {
         String canonicalRequest = createCanonicalRequest(request, uri, payload,
                 authHeader.getHashAlgorithm());
         String algorithm = authHeader.getHmacAlgorithm();
-        byte[] dateKey = signMessage(
-                authHeader.getDate().getBytes(StandardCharsets.UTF_8),
-                ("AWS4" + credential).getBytes(StandardCharsets.UTF_8),
-                algorithm);
-        byte[] dateRegionKey = signMessage(
-                authHeader.getRegion().getBytes(StandardCharsets.UTF_8),
-                dateKey,
-                algorithm);
-        byte[] dateRegionServiceKey = signMessage(
-                authHeader.getService().getBytes(StandardCharsets.UTF_8),
-                dateRegionKey, algorithm);
-        byte[] signingKey = signMessage(
-                "aws4_request".getBytes(StandardCharsets.UTF_8),
-                dateRegionServiceKey, algorithm);
+        byte[] signingKey = getSigningKey(credential, authHeader.getDate(),
+                authHeader.getRegion(), authHeader.getService(), algorithm);
         String date = request.getHeader(AwsHttpHeaders.DATE);
         if (date == null) {
             date = request.getParameter("X-Amz-Date");
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Size-classed pool of byte arrays shared by the request and response body
+ * paths.  Each size class holds a bounded number of idle buffers; requests
+ * beyond the largest class and acquisitions from an empty class allocate a
+ * new buffer which is pooled on release if there is room.
+ *
+ * Buffers are heap arrays rather than direct ByteBuffers because the
+ * servlet and jclouds streams only accept byte[]; a direct buffer would need
+ * an extra heap copy on every read and write.
+ */
+final class BufferPool implements BufferPoolMXBean {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    /** Largest buffer which is returned to the pool on release. */
+    static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+    private static final int[] SIZE_CLASSES = {
+        4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, MAX_POOLED_BUFFER_SIZE
+    };
+    private static final int MAX_POOLED_BYTES_PER_CLASS = 16 * 1024 * 1024;
+
+    private static final BufferPool INSTANCE = new BufferPool();
+
+    static {
+        MBeans.register("BufferPool", "default", INSTANCE);
+    }
+
+    private final ImmutableList<BlockingQueue<byte[]>> pools;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    BufferPool() {
+        ImmutableList.Builder<BlockingQueue<byte[]>> builder =
+                ImmutableList.builder();
+        for (int size : SIZE_CLASSES) {
+            builder.add(new ArrayBlockingQueue<byte[]>(
+                    Math.max(1, MAX_POOLED_BYTES_PER_CLASS / size)));
+        }
+        pools = builder.build();
+    }
+
+    static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    /** Return a buffer of at least size bytes. */
+    byte[] acquire(int size) {
+        checkArgument(size >= 0, "size must be non-negative, was: %s", size);
+        outstanding.incrementAndGet();
+        int index = sizeClass(size);
+        if (index == -1) {
+            misses.incrementAndGet();
+            return new byte[size];
+        }
+        byte[] buffer = pools.get(index).poll();
+        if (buffer != null) {
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return new byte[SIZE_CLASSES[index]];
+    }
+
+    /** Return buffer to the pool.  Callers must not use it afterwards. */
+    void release(byte[] buffer) {
+        outstanding.decrementAndGet();
+        int index = sizeClass(buffer.length);
+        if (index != -1 && SIZE_CLASSES[index] == buffer.length) {
+            pools.get(index).offer(buffer);
+        }
+    }
+
+    /**
+     * Copy all bytes from is to os through a pooled buffer.  Neither stream
+     * is closed or flushed.
+     */
+    long copy(InputStream is, OutputStream os) throws IOException {
+        byte[] buffer = acquire(DEFAULT_BUFFER_SIZE);
+        try {
+            long total = 0;
+            while (true) {
+                int count = is.read(buffer);
+                if (count == -1) {
+                    return total;
+                }
+                os.write(buffer, 0, count);
+                total += count;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public long getOutstandingBuffers() {
+        return outstanding.get();
+    }
+
+    @Override
+    public int getPooledBuffers() {
+        int count = 0;
+        for (BlockingQueue<byte[]> pool : pools) {
+            count += pool.size();
+        }
+        return count;
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; ++i) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
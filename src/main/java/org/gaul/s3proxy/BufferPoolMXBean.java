@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+/** JMX view of the shared body-transfer {@link BufferPool}. */
+public interface BufferPoolMXBean {
+    /** Number of acquisitions satisfied from the pool. */
+    long getHitCount();
+
+    /** Number of acquisitions which allocated a new buffer. */
+    long getMissCount();
+
+    /** Fraction of acquisitions satisfied from the pool. */
+    double getHitRate();
+
+    /** Number of buffers acquired but not yet released. */
+    long getOutstandingBuffers();
+
+    /** Number of idle buffers held by the pool. */
+    int getPooledBuffers();
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+/** Parsing and coalescing of HTTP byte-range-sets, RFC 7233 section 2.1. */
+final class ByteRanges {
+    private ByteRanges() {
+        throw new AssertionError("intentionally not implemented");
+    }
+
+    /** An inclusive range of byte offsets. */
+    static final class Range {
+        private final long first;
+        private final long last;
+
+        Range(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        long getFirst() {
+            return first;
+        }
+
+        long getLast() {
+            return last;
+        }
+
+        long getLength() {
+            return last - first + 1;
+        }
+
+        String toContentRange(long size) {
+            return "bytes " + first + "-" + last + "/" + size;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            } else if (!(object instanceof Range)) {
+                return false;
+            }
+            Range that = (Range) object;
+            return first == that.first && last == that.last;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(first) * 31 + Long.hashCode(last);
+        }
+
+        @Override
+        public String toString() {
+            return first + "-" + last;
+        }
+    }
+
+    /**
+     * Parse a Range header value against an object of the given size.
+     * Unsatisfiable ranges are dropped and the remainder are returned in
+     * request order, clamped to the object.  Returns null if the header is
+     * syntactically invalid, in which case it must be ignored.
+     */
+    @Nullable
+    static List<Range> parse(String header, long size) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        List<Range> ranges = new ArrayList<>();
+        for (String spec : Splitter.on(',').trimResults().split(
+                header.substring("bytes=".length()))) {
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            String firstString = spec.substring(0, dash);
+            String lastString = spec.substring(dash + 1);
+            long first;
+            long last;
+            try {
+                if (firstString.isEmpty()) {
+                    long suffix = Long.parseLong(lastString);
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(firstString);
+                    if (lastString.isEmpty()) {
+                        last = size - 1;
+                    } else {
+                        last = Long.parseLong(lastString);
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, size - 1);
+                    }
+                }
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+            if (first < 0) {
+                return null;
+            }
+            if (first < size) {
+                ranges.add(new Range(first, last));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Sort ranges and merge those which overlap or are separated by at most
+     * maxGap bytes, so that each result can be served by one backend read.
+     */
+    static List<Range> coalesce(List<Range> ranges, long maxGap) {
+        List<Range> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(Range::getFirst));
+        ImmutableList.Builder<Range> builder = ImmutableList.builder();
+        Range current = null;
+        for (Range range : sorted) {
+            if (current == null) {
+                current = range;
+            } else if (range.getFirst() <= current.getLast() + 1 + maxGap) {
+                current = new Range(current.getFirst(),
+                        Math.max(current.getLast(), range.getLast()));
+            } else {
+                builder.add(current);
+                current = range;
+            }
+        }
+        if (current != null) {
+            builder.add(current);
+        }
+        return builder.build();
+    }
+}
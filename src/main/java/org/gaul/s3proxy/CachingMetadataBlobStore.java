@@ -0,0 +1,266 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+
+/**
+ * This class is a BlobStore wrapper which caches blob metadata for a short
+ * time, serving HEAD requests and conditional checks without a backend call.
+ * The least recently used entries are evicted first.  Writes through this
+ * wrapper invalidate the written key; writes which bypass S3Proxy are only
+ * visible once the entry expires.  Missing blobs are not cached.
+ */
+final class CachingMetadataBlobStore extends ForwardingBlobStore
+        implements Closeable, MetadataCacheMXBean {
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    /** Name of this instance's MBean. */
+    private final String name =
+            String.valueOf(INSTANCES.getAndIncrement());
+    private final Cache<BlobKey, BlobMetadata> cache;
+    /** Incremented on each write to a container. */
+    private final ConcurrentMap<String, AtomicLong> generations =
+            new ConcurrentHashMap<>();
+
+    private CachingMetadataBlobStore(BlobStore blobStore, long ttlMillis,
+            long maximumSize) {
+        super(blobStore);
+        checkArgument(ttlMillis > 0, "TTL must be positive, was: %s",
+                ttlMillis);
+        checkArgument(maximumSize > 0,
+                "Maximum size must be positive, was: %s", maximumSize);
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    static BlobStore newCachingMetadataBlobStore(BlobStore blobStore,
+            long ttlMillis, long maximumSize) {
+        CachingMetadataBlobStore metadataCache = new CachingMetadataBlobStore(
+                blobStore, ttlMillis, maximumSize);
+        MBeans.register("MetadataCache", metadataCache.name, metadataCache);
+        return metadataCache;
+    }
+
+    @Override
+    public BlobMetadata blobMetadata(String container, String name) {
+        BlobKey key = new BlobKey(container, name);
+        BlobMetadata metadata = cache.getIfPresent(key);
+        if (metadata != null) {
+            return metadata;
+        }
+        long generation = generation(container).get();
+        metadata = delegate().blobMetadata(container, name);
+        if (metadata != null) {
+            cache.put(key, metadata);
+            if (generation(container).get() != generation) {
+                // a write raced with the backend lookup
+                cache.invalidate(key);
+            }
+        }
+        return metadata;
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob) {
+        try {
+            return super.putBlob(containerName, blob);
+        } finally {
+            invalidate(containerName, blob.getMetadata().getName());
+        }
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob,
+            PutOptions options) {
+        try {
+            return super.putBlob(containerName, blob, options);
+        } finally {
+            invalidate(containerName, blob.getMetadata().getName());
+        }
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        try {
+            return super.copyBlob(fromContainer, fromName, toContainer,
+                    toName, options);
+        } finally {
+            invalidate(toContainer, toName);
+        }
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        try {
+            super.removeBlob(container, name);
+        } finally {
+            invalidate(container, name);
+        }
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        try {
+            super.removeBlobs(container, names);
+        } finally {
+            for (String name : names) {
+                invalidate(container, name);
+            }
+        }
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        try {
+            return super.completeMultipartUpload(mpu, parts);
+        } finally {
+            invalidate(mpu.containerName(), mpu.blobName());
+        }
+    }
+
+    @Override
+    public void clearContainer(String container) {
+        try {
+            super.clearContainer(container);
+        } finally {
+            invalidateContainer(container);
+        }
+    }
+
+    @Override
+    public void clearContainer(String container,
+            ListContainerOptions options) {
+        try {
+            super.clearContainer(container, options);
+        } finally {
+            invalidateContainer(container);
+        }
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        try {
+            super.deleteContainer(container);
+        } finally {
+            invalidateContainer(container);
+        }
+    }
+
+    @Override
+    public boolean deleteContainerIfEmpty(String container) {
+        try {
+            return super.deleteContainerIfEmpty(container);
+        } finally {
+            invalidateContainer(container);
+        }
+    }
+
+    /** Unregister the MBean once this store is retired. */
+    @Override
+    public void close() {
+        MBeans.unregister("MetadataCache", name);
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    @Override
+    public long getSize() {
+        return cache.size();
+    }
+
+    private AtomicLong generation(String container) {
+        return generations.computeIfAbsent(container, k -> new AtomicLong());
+    }
+
+    private void invalidate(String container, String name) {
+        generation(container).incrementAndGet();
+        cache.invalidate(new BlobKey(container, name));
+    }
+
+    private void invalidateContainer(String container) {
+        generation(container).incrementAndGet();
+        cache.asMap().keySet().removeIf(key ->
+                key.container.equals(container));
+    }
+
+    private static final class BlobKey {
+        private final String container;
+        private final String name;
+
+        BlobKey(String container, String name) {
+            this.container = container;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            } else if (!(object instanceof BlobKey)) {
+                return false;
+            }
+            BlobKey that = (BlobKey) object;
+            return container.equals(that.container) &&
+                    name.equals(that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * container.hashCode() + name.hashCode();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link ChunkedInputStream} when a chunk of a
+ * STREAMING-AWS4-HMAC-SHA256-PAYLOAD body fails signature verification.
+ */
+final class ChunkSignatureException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ChunkSignatureException(String message) {
+        super(message);
+    }
+}
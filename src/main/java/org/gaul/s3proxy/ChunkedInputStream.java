@@ -16,93 +16,294 @@
 
 package org.gaul.s3proxy;
 
+import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
-import com.google.common.io.ByteStreams;
+import javax.annotation.Nullable;
 
+import com.google.common.io.BaseEncoding;
 
 /**
  * Parse an AWS v4 signature chunked stream.  Reference:
  * https://docs.aws.amazon.com/AmazonS3/latest/API/sigv4-streaming.html
+ *
+ * Input is read in bulk into a reusable buffer and each chunk is decoded
+ * into a second reusable buffer.  When constructed with a signing key, the
+ * rolling chunk signature is verified before any byte of the chunk is
+ * returned, so a tampered chunk never reaches the backend.  A signed body
+ * must also end with the signed zero-length chunk and decode to
+ * x-amz-decoded-content-length bytes, so a truncated body is rejected
+ * instead of being stored short.
  */
 final class ChunkedInputStream extends FilterInputStream {
-    private byte[] chunk;
+    /** Largest chunk accepted; AWS SDKs send 64 KB to 1 MB chunks. */
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_HEADER_SIZE = 4096;
+    private static final String SIGNATURE_PREFIX = "chunk-signature=";
+    private static final String EMPTY_SHA256 =
+            "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    private final byte[] input = new byte[64 * 1024];
+    private int inputIndex;
+    private int inputLength;
+    private final byte[] header = new byte[MAX_HEADER_SIZE];
+    private byte[] chunk = new byte[0];
     private int currentIndex;
     private int currentLength;
-    @edu.umd.cs.findbugs.annotations.SuppressFBWarnings(
-            value = "URF_UNREAD_FIELD",
-            justification = "https://github.com/gaul/s3proxy/issues/205")
-    @SuppressWarnings("UnusedVariable")
-    private String currentSignature;
+    private boolean eof;
+    private long decodedLength;
+
+    @Nullable private final byte[] signingKey;
+    @Nullable private final String hmacAlgorithm;
+    @Nullable private final String signaturePrefix;
+    @Nullable private String previousSignature;
+    @Nullable private final MessageDigest digest;
+    private final long expectedDecodedLength;
 
     ChunkedInputStream(InputStream is) {
         super(is);
+        this.signingKey = null;
+        this.hmacAlgorithm = null;
+        this.signaturePrefix = null;
+        this.digest = null;
+        this.expectedDecodedLength = -1;
+    }
+
+    /**
+     * Create a stream which verifies chunk signatures.
+     *
+     * @param timestamp x-amz-date of the request
+     * @param scope credential scope, date/region/service/aws4_request
+     * @param seedSignature signature of the request headers
+     * @param expectedDecodedLength x-amz-decoded-content-length of the
+     *     request or -1 if absent
+     */
+    ChunkedInputStream(InputStream is, byte[] signingKey,
+            String hmacAlgorithm, String hashAlgorithm, String timestamp,
+            String scope, String seedSignature, long expectedDecodedLength)
+            throws NoSuchAlgorithmException {
+        super(is);
+        this.signingKey = signingKey.clone();
+        this.hmacAlgorithm = hmacAlgorithm;
+        this.signaturePrefix = "AWS4-HMAC-SHA256-PAYLOAD\n" + timestamp +
+                "\n" + scope + "\n";
+        this.previousSignature = seedSignature;
+        this.digest = MessageDigest.getInstance(hashAlgorithm);
+        this.expectedDecodedLength = expectedDecodedLength;
     }
 
     @Override
     public int read() throws IOException {
+        if (!ensureChunk()) {
+            return -1;
+        }
+        return chunk[currentIndex++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureChunk()) {
+            return -1;
+        }
+        int count = Math.min(len, currentLength - currentIndex);
+        System.arraycopy(chunk, currentIndex, b, off, count);
+        currentIndex += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return currentLength - currentIndex;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /** Decode the next chunk if the current one is exhausted. */
+    private boolean ensureChunk() throws IOException {
         while (currentIndex == currentLength) {
-            String line = readLine(in);
-            if (line.equals("")) {
-                return -1;
+            if (eof) {
+                return false;
+            }
+            int headerLength = readLine();
+            if (headerLength == -1) {
+                if (signingKey != null) {
+                    // without the signed final chunk a truncated body is
+                    // indistinguishable from a complete one
+                    throw new ChunkSignatureException(
+                            "missing final chunk");
+                }
+                eof = true;
+                return false;
+            }
+            int length = parseChunkLength(headerLength);
+            String signature = parseChunkSignature(headerLength);
+            if (length > chunk.length) {
+                chunk = new byte[length];
             }
-            String[] parts = line.split(";", 2);
-            currentLength = Integer.parseInt(parts[0], 16);
-            currentSignature = parts[1];
-            chunk = new byte[currentLength];
+            readFully(chunk, length);
+            verifyChunk(length, signature);
+            // each chunk, including the last, is terminated by \r\n
+            int trailerLength = readLine();
+            if (trailerLength == -1) {
+                throw new EOFException("missing \\r\\n after chunk");
+            } else if (trailerLength != 0) {
+                throw new IOException("unexpected data after chunk");
+            }
+            decodedLength += length;
+            verifyDecodedLength(length == 0);
             currentIndex = 0;
-            ByteStreams.readFully(in, chunk);
-            // TODO: check currentSignature
-            if (currentLength == 0) {
-                return -1;
+            currentLength = length;
+            if (length == 0) {
+                eof = true;
+                return false;
             }
-            readLine(in);
         }
-        return chunk[currentIndex++] & 0xFF;
+        return true;
     }
 
-    @Override
-    public int read(byte[] b, int off, int len) throws IOException {
+    private int parseChunkLength(int headerLength) throws IOException {
+        int length = 0;
         int i;
-        for (i = 0; i < len; ++i) {
-            int ch = read();
-            if (ch == -1) {
-                break;
+        for (i = 0; i < headerLength && header[i] != ';'; ++i) {
+            int digit = Character.digit(header[i], 16);
+            if (digit == -1 || length > (MAX_CHUNK_SIZE >> 4)) {
+                throw new IOException("invalid chunk size");
             }
-            b[off + i] = (byte) ch;
+            length = (length << 4) | digit;
         }
-        if (i == 0) {
-            return -1;
+        if (i == 0 || length > MAX_CHUNK_SIZE) {
+            throw new IOException("invalid chunk size");
+        }
+        return length;
+    }
+
+    @Nullable
+    private String parseChunkSignature(int headerLength) {
+        for (int i = 0; i < headerLength; ++i) {
+            if (header[i] == ';') {
+                String extension = new String(header, i + 1,
+                        headerLength - i - 1, StandardCharsets.US_ASCII);
+                if (extension.startsWith(SIGNATURE_PREFIX)) {
+                    return extension.substring(SIGNATURE_PREFIX.length());
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void verifyChunk(int length, @Nullable String signature)
+            throws IOException {
+        if (signingKey == null) {
+            return;
+        }
+        if (signature == null) {
+            throw new ChunkSignatureException("missing chunk signature");
+        }
+        digest.update(chunk, 0, length);
+        String stringToSign = signaturePrefix + previousSignature + "\n" +
+                EMPTY_SHA256 + "\n" +
+                BaseEncoding.base16().lowerCase().encode(digest.digest());
+        String expected;
+        try {
+            expected = BaseEncoding.base16().lowerCase().encode(
+                    AwsSignature.signMessage(
+                            stringToSign.getBytes(StandardCharsets.UTF_8),
+                            signingKey, hmacAlgorithm));
+        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        if (!MessageDigest.isEqual(
+                expected.getBytes(StandardCharsets.US_ASCII),
+                signature.getBytes(StandardCharsets.US_ASCII))) {
+            throw new ChunkSignatureException(
+                    "chunk signature does not match");
+        }
+        previousSignature = signature;
+    }
+
+    private void verifyDecodedLength(boolean last)
+            throws ChunkSignatureException {
+        if (expectedDecodedLength == -1) {
+            return;
+        }
+        boolean mismatch = last ?
+                decodedLength != expectedDecodedLength :
+                decodedLength > expectedDecodedLength;
+        if (mismatch) {
+            throw new ChunkSignatureException("decoded length " +
+                    decodedLength + " does not match " +
+                    AwsHttpHeaders.DECODED_CONTENT_LENGTH + " " +
+                    expectedDecodedLength);
         }
-        return i;
     }
 
     /**
-     * Read a \r\n terminated line from an InputStream.
+     * Read a \r\n terminated line into header.
      *
-     * @return line without the newline or empty String if InputStream is empty
+     * @return length of the line without the newline or -1 if the stream is
+     *     empty
      */
-    private static String readLine(InputStream is) throws IOException {
-        StringBuilder builder = new StringBuilder();
+    private int readLine() throws IOException {
+        int length = 0;
         while (true) {
-            int ch = is.read();
+            if (inputIndex == inputLength && !fill()) {
+                if (length > 0) {
+                    throw new EOFException("unexpected end of stream");
+                }
+                return -1;
+            }
+            byte ch = input[inputIndex++];
             if (ch == '\r') {
-                ch = is.read();
-                if (ch == '\n') {
-                    break;
-                } else {
-                    throw new IOException("unexpected char after \\r: " + ch);
+                if (inputIndex == inputLength && !fill()) {
+                    throw new EOFException("unexpected end of stream");
                 }
-            } else if (ch == -1) {
-                if (builder.length() > 0) {
-                    throw new IOException("unexpected end of stream");
+                ch = input[inputIndex++];
+                if (ch != '\n') {
+                    throw new IOException("unexpected char after \\r: " + ch);
                 }
-                break;
+                return length;
             }
-            builder.append((char) ch);
+            if (length == header.length) {
+                throw new IOException("chunk header too long");
+            }
+            header[length++] = ch;
+        }
+    }
+
+    /** Copy length bytes into b, draining the input buffer first. */
+    private void readFully(byte[] b, int length) throws IOException {
+        int count = Math.min(length, inputLength - inputIndex);
+        System.arraycopy(input, inputIndex, b, 0, count);
+        inputIndex += count;
+        while (count < length) {
+            int read = in.read(b, count, length - count);
+            if (read == -1) {
+                throw new EOFException("unexpected end of stream");
+            }
+            count += read;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(input, 0, input.length);
+        if (read <= 0) {
+            return false;
         }
-        return builder.toString();
+        inputIndex = 0;
+        inputLength = read;
+        return true;
     }
 }
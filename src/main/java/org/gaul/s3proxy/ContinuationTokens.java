@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Encode opaque backend markers into self-contained listing continuation
+ * tokens.  Tokens carry the marker and an HMAC over the bucket and marker
+ * so any S3Proxy instance sharing the key can resume a listing without
+ * server-side state, and clients cannot forge backend markers.
+ */
+final class ContinuationTokens {
+    private static final String VERSION = "1";
+    private static final int MAC_LENGTH = 16;
+    private static final BaseEncoding BASE64 =
+            BaseEncoding.base64Url().omitPadding();
+    private static final Splitter SPLITTER = Splitter.on('.');
+
+    private final HashFunction hmac;
+
+    ContinuationTokens(byte[] key) {
+        checkArgument(key.length > 0, "key must not be empty");
+        this.hmac = Hashing.hmacSha256(key);
+    }
+
+    /** Create tokens signed with a random key private to this process. */
+    static ContinuationTokens withRandomKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return new ContinuationTokens(key);
+    }
+
+    String encode(String containerName, String marker) {
+        byte[] bytes = marker.getBytes(StandardCharsets.UTF_8);
+        return VERSION + "." + BASE64.encode(bytes) + "." +
+                BASE64.encode(sign(containerName, bytes));
+    }
+
+    /**
+     * Return the backend marker of token or null if token was not created
+     * by encode with the same key and bucket.
+     */
+    @Nullable
+    String decode(String containerName, String token) {
+        List<String> parts = SPLITTER.splitToList(token);
+        if (parts.size() != 3 || !parts.get(0).equals(VERSION) ||
+                !BASE64.canDecode(parts.get(1)) ||
+                !BASE64.canDecode(parts.get(2))) {
+            return null;
+        }
+        byte[] bytes = BASE64.decode(parts.get(1));
+        byte[] mac = BASE64.decode(parts.get(2));
+        if (!MessageDigest.isEqual(mac, sign(containerName, bytes))) {
+            return null;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private byte[] sign(String containerName, byte[] marker) {
+        byte[] mac = hmac.newHasher()
+                .putString(containerName, StandardCharsets.UTF_8)
+                .putByte((byte) 0)
+                .putBytes(marker)
+                .hash()
+                .asBytes();
+        return Arrays.copyOf(mac, MAC_LENGTH);
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link DigestVerifyingInputStream} when a streamed request body
+ * does not match its declared digest.  This extends IOException so that it
+ * aborts whichever backend write is consuming the stream.
+ */
+final class DigestMismatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    DigestMismatchException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Compute a digest over a request body as it is read and compare it with the
+ * expected value.  When the length is known the comparison happens before
+ * the final bytes are returned, so a consumer which stops at Content-Length
+ * without reading end of stream still observes the failure and cannot
+ * commit a corrupt object.
+ */
+final class DigestVerifyingInputStream extends FilterInputStream {
+    private final MessageDigest digest;
+    private final byte[] expected;
+    private final long expectedLength;
+    private long position;
+    private boolean verified;
+
+    /**
+     * @param expectedLength length of the body or -1 to verify at end of
+     *     stream
+     */
+    DigestVerifyingInputStream(InputStream is, MessageDigest digest,
+            byte[] expected, long expectedLength) {
+        super(is);
+        this.digest = digest;
+        this.expected = expected.clone();
+        this.expectedLength = expectedLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int count = read(b, 0, 1);
+        return count == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (expectedLength >= 0) {
+            len = (int) Math.min(len, Math.max(expectedLength - position, 0));
+            if (len == 0 && expectedLength == position) {
+                verify();
+                return -1;
+            }
+        }
+        int count = in.read(b, off, len);
+        if (count == -1) {
+            if (expectedLength >= 0 && position != expectedLength) {
+                throw new DigestMismatchException("expected " +
+                        expectedLength + " bytes, received " + position);
+            }
+            verify();
+            return -1;
+        }
+        digest.update(b, off, count);
+        position += count;
+        if (position == expectedLength) {
+            verify();
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // every byte must pass through the digest
+        byte[] buffer = new byte[(int) Math.min(n, 4096)];
+        int count = read(buffer, 0, buffer.length);
+        return count == -1 ? 0 : count;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void verify() throws DigestMismatchException {
+        if (verified) {
+            return;
+        }
+        if (!MessageDigest.isEqual(expected, digest.digest())) {
+            throw new DigestMismatchException(
+                    "payload digest does not match x-amz-content-sha256");
+        }
+        verified = true;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.filesystem.reference.FilesystemConstants;
+
+/**
+ * Serve blobs from the jclouds filesystem provider directly from their
+ * backing files.  The file region is memory-mapped and handed to Jetty so
+ * that the bytes travel from the page cache to the socket without being
+ * copied through heap buffers.
+ */
+final class FilesystemPayloadSender {
+    private FilesystemPayloadSender() {
+        throw new AssertionError("intentionally not implemented");
+    }
+
+    /**
+     * Return the file backing containerName/blobName, or null if blobStore is
+     * not an unwrapped filesystem provider or the blob is not a regular file.
+     * Middlewares may transform payloads so only the provider's own BlobStore
+     * qualifies.
+     */
+    @Nullable
+    static File resolveFile(BlobStore blobStore, String containerName,
+            String blobName) {
+        if (blobStore.getContext().getBlobStore() != blobStore ||
+                !"filesystem".equals(blobStore.getContext().unwrap()
+                        .getProviderMetadata().getId())) {
+            return null;
+        }
+        String baseDir = blobStore.getContext().utils().injector().getInstance(
+                Key.get(String.class,
+                        Names.named(FilesystemConstants.PROPERTY_BASEDIR)));
+        Path basePath = Paths.get(baseDir).toAbsolutePath().normalize();
+        Path containerPath = basePath.resolve(containerName).normalize();
+        Path path = containerPath.resolve(
+                blobName.replace('/', File.separatorChar)).normalize();
+        if (!containerPath.getParent().equals(basePath) ||
+                !path.startsWith(containerPath)) {
+            return null;
+        }
+        File file = path.toFile();
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Write the region of file described by contentRange, or the whole file
+     * when null, to the response.  Returns false without writing anything if
+     * the file no longer matches the expected length or the servlet container
+     * cannot accept a mapped buffer; callers then fall back to streaming.
+     */
+    static boolean send(HttpServletResponse response, File file,
+            long expectedLength, @Nullable String contentRange)
+            throws IOException {
+        long offset = 0;
+        long length = expectedLength;
+        if (contentRange != null) {
+            // bytes first-last/total
+            String range = contentRange.substring(
+                    contentRange.indexOf(' ') + 1);
+            int dash = range.indexOf('-');
+            int slash = range.indexOf('/');
+            if (dash == -1 || slash == -1) {
+                return false;
+            }
+            offset = Long.parseLong(range.substring(0, dash));
+            long last = Long.parseLong(range.substring(dash + 1, slash));
+            length = last - offset + 1;
+            expectedLength = Long.parseLong(range.substring(slash + 1));
+        }
+        if (length > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        OutputStream os = response.getOutputStream();
+        if (!(os instanceof HttpOutput)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            if (channel.size() != expectedLength) {
+                // blob was overwritten after its metadata was read
+                return false;
+            }
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, offset, length);
+            ((HttpOutput) os).sendContent(buffer);
+        }
+        return true;
+    }
+}
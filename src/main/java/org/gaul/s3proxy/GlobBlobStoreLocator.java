@@ -17,22 +17,110 @@
 package org.gaul.s3proxy;
 
 import java.nio.file.FileSystems;
+import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
 
 import org.jclouds.blobstore.BlobStore;
 
+/**
+ * Locate blob stores by identity and by container glob.  Globs are compiled
+ * into an index at construction: literal names go into a hash map, globs of
+ * the form literal* and literal** into a prefix trie and only the remaining
+ * globs are matched one by one.  When several globs match a container the
+ * last one wins, as with a linear scan.
+ */
 public final class GlobBlobStoreLocator implements BlobStoreLocator {
+    private static final String GLOB_META_CHARS = "*?[]{}\\";
+    private static final long CONTAINER_CACHE_SIZE = 10000;
+
     private final Map<String, Map.Entry<String, BlobStore>> locator;
-    private final Map<PathMatcher, Map.Entry<String, BlobStore>> globLocator;
+    @Nullable
+    private final Map.Entry<String, BlobStore> firstGlobEntry;
+    private final Map<String, Route> exactRoutes = new HashMap<>();
+    private final PrefixNode prefixRoutes = new PrefixNode();
+    private final List<Route> patternRoutes = new ArrayList<>();
+    private final Cache<String, Optional<Map.Entry<String, BlobStore>>>
+            containerCache = CacheBuilder.newBuilder()
+                    .maximumSize(CONTAINER_CACHE_SIZE)
+                    .build();
 
     public GlobBlobStoreLocator(
             Map<String, Map.Entry<String, BlobStore>> locator,
             Map<PathMatcher, Map.Entry<String, BlobStore>> globLocator) {
         this.locator = locator;
-        this.globLocator = globLocator;
+        this.firstGlobEntry = globLocator.isEmpty() ? null :
+                globLocator.values().iterator().next();
+        // opaque matchers cannot be indexed
+        int order = 0;
+        for (Map.Entry<PathMatcher, Map.Entry<String, BlobStore>> entry :
+                globLocator.entrySet()) {
+            patternRoutes.add(new Route(order++, entry.getKey(), false,
+                    entry.getValue()));
+        }
+    }
+
+    private GlobBlobStoreLocator(
+            Map<String, Map.Entry<String, BlobStore>> locator,
+            @Nullable Map.Entry<String, BlobStore> firstGlobEntry) {
+        this.locator = locator;
+        this.firstGlobEntry = firstGlobEntry;
+    }
+
+    /**
+     * Create a locator from glob strings, e.g., the values of
+     * s3proxy.bucket-locator.* properties, in configuration order.
+     */
+    public static GlobBlobStoreLocator fromGlobs(
+            Map<String, Map.Entry<String, BlobStore>> locator,
+            Map<String, Map.Entry<String, BlobStore>> globLocator) {
+        GlobBlobStoreLocator result = new GlobBlobStoreLocator(locator,
+                globLocator.isEmpty() ? null :
+                        globLocator.values().iterator().next());
+        int order = 0;
+        for (Map.Entry<String, Map.Entry<String, BlobStore>> entry :
+                globLocator.entrySet()) {
+            result.addGlob(order++, entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    private void addGlob(int order, String glob,
+            Map.Entry<String, BlobStore> value) {
+        if (isLiteral(glob)) {
+            exactRoutes.put(glob, new Route(order, null, false, value));
+        } else if (glob.endsWith("**") &&
+                isLiteral(glob.substring(0, glob.length() - 2))) {
+            prefixRoutes.add(glob.substring(0, glob.length() - 2),
+                    new Route(order, null, true, value));
+        } else if (glob.endsWith("*") &&
+                isLiteral(glob.substring(0, glob.length() - 1))) {
+            prefixRoutes.add(glob.substring(0, glob.length() - 1),
+                    new Route(order, null, false, value));
+        } else {
+            patternRoutes.add(new Route(order,
+                    FileSystems.getDefault().getPathMatcher("glob:" + glob),
+                    false, value));
+        }
+    }
+
+    private static boolean isLiteral(String glob) {
+        for (int i = 0; i < glob.length(); ++i) {
+            if (GLOB_META_CHARS.indexOf(glob.charAt(i)) != -1) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -42,13 +130,13 @@ public final class GlobBlobStoreLocator implements BlobStoreLocator {
                 locator.get(identity);
         Map.Entry<String, BlobStore> globEntry = null;
         if (container != null) {
-            for (Map.Entry<PathMatcher, Map.Entry<String, BlobStore>>
-                    entry : globLocator.entrySet()) {
-                if (entry.getKey().matches(FileSystems.getDefault()
-                        .getPath(container))) {
-                    globEntry = entry.getValue();
-                }
+            Optional<Map.Entry<String, BlobStore>> cached =
+                    containerCache.getIfPresent(container);
+            if (cached == null) {
+                cached = Optional.ofNullable(locateGlob(container));
+                containerCache.put(container, cached);
             }
+            globEntry = cached.orElse(null);
         }
         if (globEntry == null) {
             if (identity == null) {
@@ -57,8 +145,7 @@ public final class GlobBlobStoreLocator implements BlobStoreLocator {
                             .getValue();
                 }
                 return Maps.immutableEntry(null,
-                        globLocator.entrySet().iterator().next().getValue()
-                                .getValue());
+                        firstGlobEntry.getValue());
             }
             return locatorEntry;
         }
@@ -74,4 +161,74 @@ public final class GlobBlobStoreLocator implements BlobStoreLocator {
         return Maps.immutableEntry(locatorEntry.getKey(),
                 globEntry.getValue());
     }
+
+    /** Return the value of the last glob matching container or null. */
+    @Nullable
+    private Map.Entry<String, BlobStore> locateGlob(String container) {
+        Route best = exactRoutes.get(container);
+
+        PrefixNode node = prefixRoutes;
+        for (int i = 0; node != null; ++i) {
+            for (Route route : node.routes) {
+                if ((route.crossesDirectories ||
+                        container.indexOf('/', i) == -1) &&
+                        (best == null || route.order > best.order)) {
+                    best = route;
+                }
+            }
+            if (i == container.length()) {
+                break;
+            }
+            node = node.children.get(container.charAt(i));
+        }
+
+        // only later globs can override an indexed match
+        Path path = null;
+        for (int i = patternRoutes.size() - 1; i >= 0; --i) {
+            Route route = patternRoutes.get(i);
+            if (best != null && route.order < best.order) {
+                break;
+            }
+            if (path == null) {
+                path = FileSystems.getDefault().getPath(container);
+            }
+            if (route.matcher.matches(path)) {
+                best = route;
+                break;
+            }
+        }
+
+        return best == null ? null : best.value;
+    }
+
+    private static final class Route {
+        private final int order;
+        @Nullable
+        private final PathMatcher matcher;
+        private final boolean crossesDirectories;
+        private final Map.Entry<String, BlobStore> value;
+
+        Route(int order, @Nullable PathMatcher matcher,
+                boolean crossesDirectories,
+                Map.Entry<String, BlobStore> value) {
+            this.order = order;
+            this.matcher = matcher;
+            this.crossesDirectories = crossesDirectories;
+            this.value = value;
+        }
+    }
+
+    private static final class PrefixNode {
+        private final Map<Character, PrefixNode> children = new HashMap<>();
+        private final List<Route> routes = new ArrayList<>();
+
+        void add(String prefix, Route route) {
+            PrefixNode node = this;
+            for (int i = 0; i < prefix.length(); ++i) {
+                node = node.children.computeIfAbsent(prefix.charAt(i),
+                        c -> new PrefixNode());
+            }
+            node.routes.add(route);
+        }
+    }
 }
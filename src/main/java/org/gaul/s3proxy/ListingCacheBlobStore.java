@@ -0,0 +1,343 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+
+/**
+ * This class is a BlobStore wrapper which caches listing pages for a short
+ * time.  Writes through this wrapper invalidate the cached pages which could
+ * include the written key; writes which bypass S3Proxy are only visible once
+ * the pages expire.  Concurrent identical listings share one backend call.
+ */
+final class ListingCacheBlobStore extends ForwardingBlobStore
+        implements Closeable, ListingCacheMXBean {
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    /** Name of this instance's MBean. */
+    private final String name =
+            String.valueOf(INSTANCES.getAndIncrement());
+    private final Cache<ListingKey, PageSet<? extends StorageMetadata>> cache;
+    /** Incremented on each write to a container. */
+    private final ConcurrentMap<String, AtomicLong> generations =
+            new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private ListingCacheBlobStore(BlobStore blobStore, long ttlMillis,
+            long maximumSize) {
+        super(blobStore);
+        checkArgument(ttlMillis > 0, "TTL must be positive, was: %s",
+                ttlMillis);
+        checkArgument(maximumSize > 0,
+                "Maximum size must be positive, was: %s", maximumSize);
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    static BlobStore newListingCacheBlobStore(BlobStore blobStore,
+            long ttlMillis, long maximumSize) {
+        ListingCacheBlobStore listingCache = new ListingCacheBlobStore(
+                blobStore, ttlMillis, maximumSize);
+        MBeans.register("ListingCache", listingCache.name, listingCache);
+        return listingCache;
+    }
+
+    @Override
+    public PageSet<? extends StorageMetadata> list(String container) {
+        return list(container, ListContainerOptions.NONE);
+    }
+
+    @Override
+    public PageSet<? extends StorageMetadata> list(final String container,
+            final ListContainerOptions options) {
+        final ListingKey key = new ListingKey(container, options);
+        final long generation = generation(container).get();
+        PageSet<? extends StorageMetadata> pageSet;
+        try {
+            pageSet = cache.get(key, () -> delegate().list(container,
+                    options));
+        } catch (ExecutionException | UncheckedExecutionException |
+                ExecutionError e) {
+            throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+        if (generation(container).get() != generation) {
+            // a write raced with the backend listing
+            cache.invalidate(key);
+        }
+        return pageSet;
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob) {
+        try {
+            return super.putBlob(containerName, blob);
+        } finally {
+            invalidate(containerName, blob.getMetadata().getName());
+        }
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob,
+            PutOptions options) {
+        try {
+            return super.putBlob(containerName, blob, options);
+        } finally {
+            invalidate(containerName, blob.getMetadata().getName());
+        }
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        try {
+            return super.copyBlob(fromContainer, fromName, toContainer,
+                    toName, options);
+        } finally {
+            invalidate(toContainer, toName);
+        }
+    }
+
+    @Override
+    public void removeBlob(String container, String name) {
+        try {
+            super.removeBlob(container, name);
+        } finally {
+            invalidate(container, name);
+        }
+    }
+
+    @Override
+    public void removeBlobs(String container, Iterable<String> names) {
+        try {
+            super.removeBlobs(container, names);
+        } finally {
+            invalidate(container, null);
+        }
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        try {
+            return super.completeMultipartUpload(mpu, parts);
+        } finally {
+            invalidate(mpu.containerName(), mpu.blobName());
+        }
+    }
+
+    @Override
+    public void createDirectory(String container, String directory) {
+        try {
+            super.createDirectory(container, directory);
+        } finally {
+            invalidate(container, directory);
+        }
+    }
+
+    @Override
+    public void deleteDirectory(String container, String directory) {
+        try {
+            super.deleteDirectory(container, directory);
+        } finally {
+            invalidate(container, directory);
+        }
+    }
+
+    @Override
+    public void clearContainer(String container) {
+        try {
+            super.clearContainer(container);
+        } finally {
+            invalidate(container, null);
+        }
+    }
+
+    @Override
+    public void clearContainer(String container,
+            ListContainerOptions options) {
+        try {
+            super.clearContainer(container, options);
+        } finally {
+            invalidate(container, null);
+        }
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        try {
+            super.deleteContainer(container);
+        } finally {
+            invalidate(container, null);
+        }
+    }
+
+    @Override
+    public boolean deleteContainerIfEmpty(String container) {
+        try {
+            return super.deleteContainerIfEmpty(container);
+        } finally {
+            invalidate(container, null);
+        }
+    }
+
+    /** Unregister the MBean once this store is retired. */
+    @Override
+    public void close() {
+        MBeans.unregister("ListingCache", name);
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    @Override
+    public long getSize() {
+        return cache.size();
+    }
+
+    private AtomicLong generation(String container) {
+        return generations.computeIfAbsent(container, k -> new AtomicLong());
+    }
+
+    /**
+     * Drop cached pages of container which could include name, or all pages
+     * of container if name is null.
+     */
+    private void invalidate(String container, @Nullable String name) {
+        generation(container).incrementAndGet();
+        invalidations.incrementAndGet();
+        cache.asMap().keySet().removeIf(key ->
+                key.container.equals(container) &&
+                (name == null || key.mayInclude(name)));
+    }
+
+    private static void throwIfUnchecked(Throwable throwable) {
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException) throwable;
+        } else if (throwable instanceof Error) {
+            throw (Error) throwable;
+        }
+    }
+
+    private static final class ListingKey {
+        private final String container;
+        @Nullable
+        private final String dir;
+        @Nullable
+        private final String prefix;
+        @Nullable
+        private final String delimiter;
+        @Nullable
+        private final String marker;
+        @Nullable
+        private final Integer maxResults;
+        private final boolean recursive;
+        private final boolean detailed;
+
+        // dir is part of the key so that listings through the deprecated
+        // directory API are not served from an unscoped entry
+        @SuppressWarnings("deprecation")
+        ListingKey(String container, ListContainerOptions options) {
+            this.container = container;
+            this.dir = options.getDir();
+            this.prefix = options.getPrefix();
+            this.delimiter = options.getDelimiter();
+            this.marker = options.getMarker();
+            this.maxResults = options.getMaxResults();
+            this.recursive = options.isRecursive();
+            this.detailed = options.isDetailed();
+        }
+
+        /** Whether a listing with these options could include name. */
+        boolean mayInclude(String name) {
+            return (prefix == null || name.startsWith(prefix)) &&
+                    (dir == null || name.startsWith(dir));
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) {
+                return true;
+            } else if (!(object instanceof ListingKey)) {
+                return false;
+            }
+            ListingKey that = (ListingKey) object;
+            return container.equals(that.container) &&
+                    Objects.equals(dir, that.dir) &&
+                    Objects.equals(prefix, that.prefix) &&
+                    Objects.equals(delimiter, that.delimiter) &&
+                    Objects.equals(marker, that.marker) &&
+                    Objects.equals(maxResults, that.maxResults) &&
+                    recursive == that.recursive &&
+                    detailed == that.detailed;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(container, dir, prefix, delimiter, marker,
+                    maxResults, recursive, detailed);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Registration of S3Proxy metrics with the platform MBean server. */
+final class MBeans {
+    private static final Logger logger = LoggerFactory.getLogger(
+            MBeans.class);
+    private static final String DOMAIN = "org.gaul.s3proxy";
+
+    private MBeans() {
+        throw new AssertionError("intentionally not implemented");
+    }
+
+    /**
+     * Register bean as org.gaul.s3proxy:type=type,name=name, replacing any
+     * previous registration.  Failures are logged rather than thrown since
+     * metrics must never prevent S3Proxy from serving requests.
+     */
+    static void register(String type, String name, Object bean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type +
+                    ",name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(bean, objectName);
+        } catch (JMException | SecurityException e) {
+            logger.warn("Could not register {} MBean {}: {}", type, name,
+                    e.getMessage());
+        }
+    }
+
+    /** Unregister a bean registered as type and name, if any. */
+    static void unregister(String type, String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type +
+                    ",name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException | SecurityException e) {
+            logger.warn("Could not unregister {} MBean {}: {}", type, name,
+                    e.getMessage());
+        }
+    }
+}
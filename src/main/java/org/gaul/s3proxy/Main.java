@@ -16,30 +16,36 @@
 
 package org.gaul.s3proxy;
 
+import java.io.Closeable;
 import java.io.Console;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -63,6 +69,8 @@ import org.slf4j.LoggerFactory;
 
 public final class Main {
     private static final Logger logger = LoggerFactory.getLogger(Main.class);
+    private static final long RETIRED_BLOBSTORE_CLOSE_DELAY_SECONDS = 300;
+
     private Main() {
         throw new AssertionError("intentionally not implemented");
     }
@@ -98,30 +106,126 @@ public final class Main {
             usage(parser);
         }
 
+        Properties firstProperties = loadProperties(
+                options.propertiesFiles.get(0));
+        ExecutorService executorService = createExecutorService(
+                firstProperties);
+
+        Map<BlobStore, List<Closeable>> resources = new ConcurrentHashMap<>();
+        Configuration configuration;
+        try {
+            configuration = loadConfiguration(options.propertiesFiles,
+                    executorService, ImmutableMap.of(), resources);
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.exit(1);
+            throw iae;
+        }
+
+        S3Proxy s3Proxy;
+        try {
+            s3Proxy = configuration.s3ProxyBuilder.build();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            throw e;
+        }
+
+        if ("true".equalsIgnoreCase(firstProperties.getProperty(
+                S3ProxyConstants.PROPERTY_CONFIG_RELOAD))) {
+            watchConfiguration(s3Proxy, options.propertiesFiles,
+                    executorService, configuration, resources);
+        } else if (!configuration.locator.isEmpty() ||
+                !configuration.globLocator.isEmpty()) {
+            s3Proxy.setBlobStoreLocator(GlobBlobStoreLocator.fromGlobs(
+                    configuration.locator, configuration.globLocator));
+        }
+
+        try {
+            s3Proxy.start();
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Identities, bucket locators and backends parsed from properties. */
+    private static final class Configuration {
+        private final S3Proxy.Builder s3ProxyBuilder;
+        private final Map<String, Map.Entry<String, BlobStore>> locator;
+        private final Map<String, Map.Entry<String, BlobStore>> globLocator;
+        /** Backends keyed by the properties which configure them. */
+        private final Map<Map<String, String>, BlobStore> blobStores;
+        /** Key of the backend serving requests no locator matches. */
+        private final Map<String, String> defaultBlobStoreKey;
+
+        Configuration(S3Proxy.Builder s3ProxyBuilder,
+                Map<String, Map.Entry<String, BlobStore>> locator,
+                Map<String, Map.Entry<String, BlobStore>> globLocator,
+                Map<Map<String, String>, BlobStore> blobStores,
+                Map<String, String> defaultBlobStoreKey) {
+            this.s3ProxyBuilder = s3ProxyBuilder;
+            this.locator = locator;
+            this.globLocator = globLocator;
+            this.blobStores = blobStores;
+            this.defaultBlobStoreKey = defaultBlobStoreKey;
+        }
+    }
+
+    private static Properties loadProperties(File propertiesFile)
+            throws IOException {
+        Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(propertiesFile)) {
+            properties.load(is);
+        }
+        properties.putAll(System.getProperties());
+        return properties;
+    }
+
+    /**
+     * Parse all properties files.  Files which configure the same backend
+     * share a BlobStore and backends present in previousBlobStores are
+     * reused instead of creating new contexts.  The contexts and middleware
+     * of new backends are recorded in resources so that they can be closed
+     * when the backend is retired, or by the caller if parsing fails.
+     */
+    private static Configuration loadConfiguration(
+            List<File> propertiesFiles, ExecutorService executorService,
+            Map<Map<String, String>, BlobStore> previousBlobStores,
+            Map<BlobStore, List<Closeable>> resources)
+            throws IOException, URISyntaxException {
         S3Proxy.Builder s3ProxyBuilder = null;
-        ThreadFactory factory = new ThreadFactoryBuilder()
-                .setNameFormat("user thread %d")
-                .setThreadFactory(Executors.defaultThreadFactory())
-                .build();
-        ExecutorService executorService = DynamicExecutors.newScalingThreadPool(
-                1, 20, 60 * 1000, factory);
+        Map<String, String> defaultBlobStoreKey = null;
         ImmutableMap.Builder<String, Map.Entry<String, BlobStore>> locators =
                 ImmutableMap.builder();
-        ImmutableMap.Builder<PathMatcher, Map.Entry<String, BlobStore>>
+        ImmutableMap.Builder<String, Map.Entry<String, BlobStore>>
                 globLocators = ImmutableMap.builder();
+        Map<Map<String, String>, BlobStore> blobStores = new HashMap<>();
         Set<String> locatorGlobs = new HashSet<>();
         Set<String> parsedIdentities = new HashSet<>();
-        for (File propertiesFile : options.propertiesFiles) {
-            Properties properties = new Properties();
-            try (InputStream is = new FileInputStream(propertiesFile)) {
-                properties.load(is);
-            }
-            properties.putAll(System.getProperties());
+        for (File propertiesFile : propertiesFiles) {
+            Properties properties = loadProperties(propertiesFile);
 
-            BlobStore blobStore = createBlobStore(properties, executorService);
-
-            blobStore = parseMiddlewareProperties(blobStore, executorService,
-                    properties);
+            Map<String, String> blobStoreKey = getBlobStoreKey(properties);
+            BlobStore blobStore = blobStores.get(blobStoreKey);
+            if (blobStore == null) {
+                blobStore = previousBlobStores.get(blobStoreKey);
+            }
+            if (blobStore == null) {
+                blobStore = createBlobStore(properties, executorService);
+                List<Closeable> blobStoreResources = new ArrayList<>();
+                blobStoreResources.add(blobStore.getContext());
+
+                try {
+                    blobStore = parseMiddlewareProperties(blobStore,
+                            executorService, properties, blobStoreResources);
+                } catch (IOException | RuntimeException e) {
+                    closeResources(blobStoreResources);
+                    throw e;
+                }
+                resources.put(blobStore, blobStoreResources);
+            }
+            blobStores.put(blobStoreKey, blobStore);
 
             String s3ProxyAuthorizationString = properties.getProperty(
                     S3ProxyConstants.PROPERTY_AUTHORIZATION);
@@ -142,14 +246,12 @@ public final class Main {
                 if (key.startsWith(S3ProxyConstants.PROPERTY_BUCKET_LOCATOR)) {
                     String bucketLocator = properties.getProperty(key);
                     if (locatorGlobs.add(bucketLocator)) {
-                        globLocators.put(
-                                FileSystems.getDefault().getPathMatcher(
-                                        "glob:" + bucketLocator),
+                        globLocators.put(bucketLocator,
                                 Maps.immutableEntry(localIdentity, blobStore));
                     } else {
-                        System.err.println("Multiple definitions of the " +
-                                "bucket locator: " + bucketLocator);
-                        System.exit(1);
+                        throw new IllegalArgumentException("Multiple " +
+                                "definitions of the bucket locator: " +
+                                bucketLocator);
                     }
                 }
             }
@@ -160,42 +262,163 @@ public final class Main {
 
             if (s3ProxyBuilder != null &&
                     !s3ProxyBuilder.equals(s3ProxyBuilder2)) {
-                System.err.println("Multiple configurations require" +
-                        " identical s3proxy properties");
-                System.exit(1);
+                throw new IllegalArgumentException("Multiple configurations" +
+                        " require identical s3proxy properties");
             }
             s3ProxyBuilder = s3ProxyBuilder2;
+            defaultBlobStoreKey = blobStoreKey;
         }
+        return new Configuration(s3ProxyBuilder, locators.build(),
+                globLocators.build(), blobStores, defaultBlobStoreKey);
+    }
 
-        S3Proxy s3Proxy;
-        try {
-            s3Proxy = s3ProxyBuilder.build();
-        } catch (IllegalArgumentException | IllegalStateException e) {
-            System.err.println(e.getMessage());
-            System.exit(1);
-            throw e;
+    /**
+     * Return the properties which determine the backend, excluding the
+     * S3Proxy identity, credential and bucket locators so that changing
+     * these keeps the existing context.
+     */
+    private static Map<String, String> getBlobStoreKey(Properties properties) {
+        ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.equals(S3ProxyConstants.PROPERTY_IDENTITY) ||
+                    key.equals(S3ProxyConstants.PROPERTY_CREDENTIAL) ||
+                    key.startsWith(S3ProxyConstants.PROPERTY_BUCKET_LOCATOR)) {
+                continue;
+            }
+            builder.put(key, properties.getProperty(key));
         }
+        return builder.build();
+    }
+
+    private static void watchConfiguration(final S3Proxy s3Proxy,
+            final List<File> propertiesFiles,
+            final ExecutorService executorService,
+            Configuration initialConfiguration,
+            final Map<BlobStore, List<Closeable>> resources)
+            throws IOException {
+        final ReloadableBlobStoreLocator reloadableLocator =
+                new ReloadableBlobStoreLocator(s3Proxy.getBlobStoreLocator());
+        reloadableLocator.update(initialConfiguration.locator,
+                initialConfiguration.globLocator);
+        s3Proxy.setBlobStoreLocator(reloadableLocator);
+
+        final S3Proxy.Builder initialBuilder =
+                initialConfiguration.s3ProxyBuilder;
+        // The handler keeps serving unmatched requests from the initial
+        // default backend until restart, so it is always reused and never
+        // retired.
+        final Map<String, String> defaultBlobStoreKey =
+                initialConfiguration.defaultBlobStoreKey;
+        final BlobStore defaultBlobStore = initialConfiguration.blobStores
+                .get(defaultBlobStoreKey);
+        final AtomicReference<Configuration> current =
+                new AtomicReference<>(initialConfiguration);
+        final ScheduledExecutorService closeExecutor =
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("blobstore closer %d")
+                                .setDaemon(true)
+                                .build());
+        PropertiesFileWatcher watcher = new PropertiesFileWatcher(
+                propertiesFiles, () -> {
+                    Map<Map<String, String>, BlobStore> previousBlobStores =
+                            new HashMap<>(current.get().blobStores);
+                    previousBlobStores.put(defaultBlobStoreKey,
+                            defaultBlobStore);
+                    Map<BlobStore, List<Closeable>> newResources =
+                            new HashMap<>();
+                    Configuration configuration;
+                    try {
+                        configuration = loadConfiguration(propertiesFiles,
+                                executorService, previousBlobStores,
+                                newResources);
+                    } catch (IOException | URISyntaxException |
+                            IllegalArgumentException e) {
+                        logger.error("Could not reload configuration: {}",
+                                e.getMessage());
+                        // no request can reach the backends created by the
+                        // failed attempt
+                        for (List<Closeable> blobStoreResources :
+                                newResources.values()) {
+                            closeResources(blobStoreResources);
+                        }
+                        return;
+                    }
+                    resources.putAll(newResources);
+                    if (!initialBuilder.equals(configuration.s3ProxyBuilder)) {
+                        logger.warn("Changes to s3proxy properties other " +
+                                "than identities and bucket locators " +
+                                "require a restart");
+                    }
+                    reloadableLocator.update(configuration.locator,
+                            configuration.globLocator);
+                    Configuration previous = current.getAndSet(
+                            configuration);
+                    for (BlobStore blobStore :
+                            previous.blobStores.values()) {
+                        if (blobStore != defaultBlobStore &&
+                                !configuration.blobStores.containsValue(
+                                        blobStore)) {
+                            // allow in-flight requests to finish first;
+                            // closeResources logs its own failures
+                            ScheduledFuture<?> unused = closeExecutor.schedule(
+                                    () -> closeResources(
+                                            resources.remove(blobStore)),
+                                    RETIRED_BLOBSTORE_CLOSE_DELAY_SECONDS,
+                                    TimeUnit.SECONDS);
+                        }
+                    }
+                    logger.info("Reloaded configuration with {} identities" +
+                            " and {} bucket locators",
+                            configuration.locator.size(),
+                            configuration.globLocator.size());
+                });
+        watcher.start();
+    }
 
-        final Map<String, Map.Entry<String, BlobStore>> locator =
-                locators.build();
-        final Map<PathMatcher, Map.Entry<String, BlobStore>>
-                globLocator = globLocators.build();
-        if (!locator.isEmpty() || !globLocator.isEmpty()) {
-            s3Proxy.setBlobStoreLocator(
-                    new GlobBlobStoreLocator(locator, globLocator));
+    /**
+     * Close the middleware of a retired backend, outermost first, and then
+     * its context.
+     */
+    private static void closeResources(List<Closeable> blobStoreResources) {
+        if (blobStoreResources == null) {
+            return;
+        }
+        for (Closeable resource : Lists.reverse(blobStoreResources)) {
+            try {
+                resource.close();
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not close {}: {}", resource,
+                        e.getMessage());
+            }
         }
+    }
 
-        try {
-            s3Proxy.start();
-        } catch (Exception e) {
-            System.err.println(e.getMessage());
-            System.exit(1);
+    private static ExecutorService createExecutorService(
+            Properties properties) {
+        String virtualThreads = properties.getProperty(
+                S3ProxyConstants.PROPERTY_JETTY_VIRTUAL_THREADS);
+        if ("true".equalsIgnoreCase(virtualThreads) &&
+                VirtualThreads.isSupported()) {
+            System.err.println("Using virtual threads");
+            return VirtualThreads.newVirtualThreadPerTaskExecutor(
+                    "user thread ");
         }
+        ThreadFactory factory = new ThreadFactoryBuilder()
+                .setNameFormat("user thread %d")
+                .setThreadFactory(Executors.defaultThreadFactory())
+                .build();
+        return DynamicExecutors.newScalingThreadPool(1, 20, 60 * 1000,
+                factory);
     }
 
+    /**
+     * Wrap blobStore in the configured middleware, adding anything which
+     * must be closed when it is retired to resources.
+     */
     private static BlobStore parseMiddlewareProperties(BlobStore blobStore,
-            ExecutorService executorService, Properties properties)
-            throws IOException {
+            ExecutorService executorService, Properties properties,
+            List<Closeable> resources) throws IOException {
         Properties altProperties = new Properties();
         for (Map.Entry<Object, Object> entry : properties.entrySet()) {
             String key = (String) entry.getKey();
@@ -211,6 +434,7 @@ public final class Main {
         if ("true".equalsIgnoreCase(eventualConsistency)) {
             BlobStore altBlobStore = createBlobStore(altProperties,
                     executorService);
+            resources.add(altBlobStore.getContext());
             int delay = Integer.parseInt(properties.getProperty(
                     S3ProxyConstants.PROPERTY_EVENTUAL_CONSISTENCY_DELAY,
                     "5"));
@@ -220,9 +444,11 @@ public final class Main {
             System.err.println("Emulating eventual consistency with delay " +
                     delay + " seconds and probability " + (probability * 100) +
                     "%");
+            ScheduledExecutorService eventualExecutor =
+                    Executors.newScheduledThreadPool(1);
+            resources.add(eventualExecutor::shutdownNow);
             blobStore = EventualBlobStore.newEventualBlobStore(
-                    blobStore, altBlobStore,
-                    Executors.newScheduledThreadPool(1),
+                    blobStore, altBlobStore, eventualExecutor,
                     delay, TimeUnit.SECONDS, probability);
         }
 
@@ -248,7 +474,27 @@ public final class Main {
                     S3ProxyConstants.PROPERTY_OVERLAY_BLOBSTORE_PATH);
             String overlayMaskSuffix = properties.getProperty(
                     S3ProxyConstants.PROPERTY_OVERLAY_BLOBSTORE_MASK_SUFFIX);
-            blobStore = OverlayBlobStore.newOverlayBlobStore(blobStore, overlayPath, overlayMaskSuffix);
+            boolean promoteOnRead = "true".equalsIgnoreCase(
+                    properties.getProperty(S3ProxyConstants
+                            .PROPERTY_OVERLAY_BLOBSTORE_PROMOTE_ON_READ));
+            long commitInterval = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants
+                            .PROPERTY_OVERLAY_BLOBSTORE_COMMIT_INTERVAL,
+                    "0"));
+            int commitThreads = Integer.parseInt(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_OVERLAY_BLOBSTORE_COMMIT_THREADS,
+                    String.valueOf(OverlayBlobStore.DEFAULT_COMMIT_THREADS)));
+            double commitRate = Double.parseDouble(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_OVERLAY_BLOBSTORE_COMMIT_RATE,
+                    String.valueOf(OverlayBlobStore.DEFAULT_COMMIT_RATE)));
+            if (commitInterval > 0) {
+                System.err.println("Committing overlay changes every " +
+                        commitInterval + " milliseconds");
+            }
+            blobStore = OverlayBlobStore.newOverlayBlobStore(blobStore,
+                    overlayPath, overlayMaskSuffix, promoteOnRead,
+                    commitInterval, commitThreads, commitRate);
+            resources.add((Closeable) blobStore);
         }
 
         ImmutableBiMap<String, String> aliases = AliasBlobStore.parseAliases(
@@ -268,6 +514,52 @@ public final class Main {
                     shards, prefixes);
         }
 
+        String listingCache = properties.getProperty(
+                S3ProxyConstants.PROPERTY_LISTING_CACHE);
+        if ("true".equalsIgnoreCase(listingCache)) {
+            long ttl = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_LISTING_CACHE_TTL_MILLISECONDS,
+                    "1000"));
+            long size = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_LISTING_CACHE_SIZE, "10000"));
+            System.err.println("Caching listings for " + ttl +
+                    " milliseconds");
+            blobStore = ListingCacheBlobStore.newListingCacheBlobStore(
+                    blobStore, ttl, size);
+            resources.add((Closeable) blobStore);
+        }
+
+        String metadataCache = properties.getProperty(
+                S3ProxyConstants.PROPERTY_METADATA_CACHE);
+        if ("true".equalsIgnoreCase(metadataCache)) {
+            long ttl = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_METADATA_CACHE_TTL_MILLISECONDS,
+                    "1000"));
+            long size = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_METADATA_CACHE_SIZE, "10000"));
+            System.err.println("Caching blob metadata for " + ttl +
+                    " milliseconds");
+            blobStore = CachingMetadataBlobStore.newCachingMetadataBlobStore(
+                    blobStore, ttl, size);
+            resources.add((Closeable) blobStore);
+        }
+
+        String negativeLookupCache = properties.getProperty(
+                S3ProxyConstants.PROPERTY_NEGATIVE_LOOKUP_CACHE);
+        if ("true".equalsIgnoreCase(negativeLookupCache)) {
+            long rebuild = Long.parseLong(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_NEGATIVE_LOOKUP_CACHE_REBUILD,
+                    "600000"));
+            double fpp = Double.parseDouble(properties.getProperty(
+                    S3ProxyConstants.PROPERTY_NEGATIVE_LOOKUP_CACHE_FPP,
+                    "0.01"));
+            System.err.println("Answering missing key lookups from Bloom" +
+                    " filters rebuilt every " + rebuild + " milliseconds");
+            blobStore = NegativeLookupBlobStore.newNegativeLookupBlobStore(
+                    blobStore, rebuild, fpp);
+            resources.add((Closeable) blobStore);
+        }
+
         return blobStore;
     }
 
@@ -311,10 +603,9 @@ public final class Main {
                 LocationConstants.PROPERTY_REGION);
 
         if (provider == null) {
-            System.err.println(
+            throw new IllegalArgumentException(
                     "Properties file must contain: " +
                     Constants.PROPERTY_PROVIDER);
-            System.exit(1);
         }
 
         if (provider.equals("filesystem") || provider.equals("transient")) {
@@ -331,11 +622,10 @@ public final class Main {
         }
 
         if (identity == null || credential == null) {
-            System.err.println(
+            throw new IllegalArgumentException(
                     "Properties file must contain: " +
                     Constants.PROPERTY_IDENTITY + " and " +
                     Constants.PROPERTY_CREDENTIAL);
-            System.exit(1);
         }
 
         properties.setProperty(Constants.PROPERTY_USER_AGENT,
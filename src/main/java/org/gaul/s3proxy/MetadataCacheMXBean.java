@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+/** JMX view of a {@link CachingMetadataBlobStore}. */
+public interface MetadataCacheMXBean {
+    /** Number of metadata lookups served from the cache. */
+    long getHitCount();
+
+    /** Number of metadata lookups fetched from the backend. */
+    long getMissCount();
+
+    /** Fraction of metadata lookups served from the cache. */
+    double getHitRate();
+
+    /** Number of cached blob metadata entries. */
+    long getSize();
+}
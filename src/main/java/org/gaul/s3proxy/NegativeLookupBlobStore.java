@@ -0,0 +1,372 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class is a BlobStore wrapper which answers lookups of keys which do
+ * not exist without a backend call.  Each bucket has a Bloom filter of its
+ * keys, seeded from a background listing on first use and updated by writes
+ * through this wrapper.  Until the filter is seeded lookups go to the
+ * backend.  Deleted keys remain in the filter and only cost a backend call.
+ * Keys written by other clients are reported missing until the next rebuild,
+ * so this suits buckets which are only written through S3Proxy.
+ */
+final class NegativeLookupBlobStore extends ForwardingBlobStore
+        implements Closeable, NegativeLookupMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(
+            NegativeLookupBlobStore.class);
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+    private static final long MINIMUM_EXPECTED_INSERTIONS = 100_000;
+    /** Shared by all instances for seeding filters. */
+    private static final ExecutorService seedExecutor =
+            Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                    .setNameFormat("S3Proxy-bloom-%d")
+                    .setDaemon(true)
+                    .build());
+
+    /** Name of this instance's MBean. */
+    private final String name =
+            String.valueOf(INSTANCES.getAndIncrement());
+    private final long rebuildIntervalNanos;
+    private final double falsePositiveProbability;
+    private final ConcurrentMap<String, KeyFilter> keyFilters =
+            new ConcurrentHashMap<>();
+    private final AtomicLong avoidedLookups = new AtomicLong();
+    private final AtomicLong backendLookups = new AtomicLong();
+    private final AtomicLong backendMisses = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    /** Keys of one bucket. */
+    private static final class KeyFilter {
+        /** Filter answering lookups or null until seeded. */
+        @Nullable
+        private volatile BloomFilter<CharSequence> filter;
+        /** Filter being seeded, which also receives concurrent writes. */
+        @Nullable
+        private volatile BloomFilter<CharSequence> building;
+        private volatile long capacity;
+        private final AtomicLong insertions = new AtomicLong();
+        private final AtomicBoolean rebuilding = new AtomicBoolean();
+        private volatile long lastRebuildNanos;
+    }
+
+    private NegativeLookupBlobStore(BlobStore blobStore,
+            long rebuildIntervalMillis, double falsePositiveProbability) {
+        super(blobStore);
+        checkArgument(rebuildIntervalMillis >= 0,
+                "Rebuild interval must be at least zero, was: %s",
+                rebuildIntervalMillis);
+        checkArgument(falsePositiveProbability > 0.0 &&
+                falsePositiveProbability < 1.0,
+                "False positive probability must be between 0.0 and 1.0," +
+                " was: %s", falsePositiveProbability);
+        this.rebuildIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+                rebuildIntervalMillis);
+        this.falsePositiveProbability = falsePositiveProbability;
+    }
+
+    /**
+     * Create a wrapper which rebuilds each filter every
+     * rebuildIntervalMillis, or only once it is full if zero.
+     */
+    static BlobStore newNegativeLookupBlobStore(BlobStore blobStore,
+            long rebuildIntervalMillis, double falsePositiveProbability) {
+        NegativeLookupBlobStore negativeLookup = new NegativeLookupBlobStore(
+                blobStore, rebuildIntervalMillis, falsePositiveProbability);
+        MBeans.register("NegativeLookup", negativeLookup.name, negativeLookup);
+        return negativeLookup;
+    }
+
+    @Override
+    public boolean blobExists(String container, String name) {
+        if (isDefiniteMiss(container, name)) {
+            return false;
+        }
+        boolean exists = delegate().blobExists(container, name);
+        recordBackendLookup(exists);
+        return exists;
+    }
+
+    @Override
+    public BlobMetadata blobMetadata(String container, String name) {
+        if (isDefiniteMiss(container, name)) {
+            return null;
+        }
+        BlobMetadata metadata = delegate().blobMetadata(container, name);
+        recordBackendLookup(metadata != null);
+        return metadata;
+    }
+
+    @Override
+    public Blob getBlob(String containerName, String blobName) {
+        if (isDefiniteMiss(containerName, blobName)) {
+            return null;
+        }
+        Blob blob = delegate().getBlob(containerName, blobName);
+        recordBackendLookup(blob != null);
+        return blob;
+    }
+
+    @Override
+    public Blob getBlob(String containerName, String blobName,
+            GetOptions getOptions) {
+        if (isDefiniteMiss(containerName, blobName)) {
+            return null;
+        }
+        Blob blob = delegate().getBlob(containerName, blobName, getOptions);
+        recordBackendLookup(blob != null);
+        return blob;
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob) {
+        String eTag = super.putBlob(containerName, blob);
+        addName(containerName, blob.getMetadata().getName());
+        return eTag;
+    }
+
+    @Override
+    public String putBlob(String containerName, Blob blob,
+            PutOptions options) {
+        String eTag = super.putBlob(containerName, blob, options);
+        addName(containerName, blob.getMetadata().getName());
+        return eTag;
+    }
+
+    @Override
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        String eTag = super.copyBlob(fromContainer, fromName, toContainer,
+                toName, options);
+        addName(toContainer, toName);
+        return eTag;
+    }
+
+    @Override
+    public MultipartUpload initiateMultipartUpload(String container,
+            BlobMetadata blobMetadata, PutOptions options) {
+        MultipartUpload mpu = super.initiateMultipartUpload(container,
+                blobMetadata, options);
+        // some providers store upload state in a stub blob named by the id
+        addName(container, mpu.id());
+        return mpu;
+    }
+
+    @Override
+    public String completeMultipartUpload(MultipartUpload mpu,
+            List<MultipartPart> parts) {
+        String eTag = super.completeMultipartUpload(mpu, parts);
+        addName(mpu.containerName(), mpu.blobName());
+        return eTag;
+    }
+
+    @Override
+    public void deleteContainer(String container) {
+        try {
+            super.deleteContainer(container);
+        } finally {
+            keyFilters.remove(container);
+        }
+    }
+
+    @Override
+    public boolean deleteContainerIfEmpty(String container) {
+        try {
+            return super.deleteContainerIfEmpty(container);
+        } finally {
+            keyFilters.remove(container);
+        }
+    }
+
+    /** Unregister the MBean once this store is retired. */
+    @Override
+    public void close() {
+        MBeans.unregister("NegativeLookup", name);
+    }
+
+    @Override
+    public long getAvoidedLookupCount() {
+        return avoidedLookups.get();
+    }
+
+    @Override
+    public long getBackendLookupCount() {
+        return backendLookups.get();
+    }
+
+    @Override
+    public long getBackendMissCount() {
+        return backendMisses.get();
+    }
+
+    @Override
+    public double getAvoidedLookupRate() {
+        long avoided = avoidedLookups.get();
+        long total = avoided + backendLookups.get();
+        return total == 0 ? 0.0 : (double) avoided / total;
+    }
+
+    @Override
+    public long getRebuildCount() {
+        return rebuilds.get();
+    }
+
+    /** Whether the filter shows that name does not exist. */
+    private boolean isDefiniteMiss(String container, String name) {
+        KeyFilter keys = getKeyFilter(container);
+        if (rebuildIntervalNanos > 0 && System.nanoTime() -
+                keys.lastRebuildNanos > rebuildIntervalNanos) {
+            rebuild(container, keys);
+        }
+        BloomFilter<CharSequence> filter = keys.filter;
+        if (filter == null || filter.mightContain(name)) {
+            return false;
+        }
+        avoidedLookups.incrementAndGet();
+        return true;
+    }
+
+    private void recordBackendLookup(boolean found) {
+        backendLookups.incrementAndGet();
+        if (!found) {
+            backendMisses.incrementAndGet();
+        }
+    }
+
+    private KeyFilter getKeyFilter(String container) {
+        KeyFilter keys = keyFilters.get(container);
+        if (keys == null) {
+            keys = new KeyFilter();
+            KeyFilter existing = keyFilters.putIfAbsent(container, keys);
+            if (existing != null) {
+                return existing;
+            }
+            rebuild(container, keys);
+        }
+        return keys;
+    }
+
+    private void addName(String container, String name) {
+        // without a filter the next seeding listing includes the name
+        KeyFilter keys = keyFilters.get(container);
+        if (keys == null) {
+            return;
+        }
+        BloomFilter<CharSequence> building = keys.building;
+        if (building != null) {
+            building.put(name);
+        }
+        BloomFilter<CharSequence> filter = keys.filter;
+        if (filter != null && filter.put(name) &&
+                keys.insertions.incrementAndGet() > keys.capacity) {
+            // the filter is full and its false positive rate rising
+            rebuild(container, keys);
+        }
+    }
+
+    /** Seed a new filter for container in the background. */
+    private void rebuild(String container, KeyFilter keys) {
+        if (!keys.rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        keys.lastRebuildNanos = System.nanoTime();
+        long expectedInsertions = Math.max(MINIMUM_EXPECTED_INSERTIONS,
+                2 * keys.insertions.get());
+        BloomFilter<CharSequence> building = BloomFilter.create(
+                Funnels.stringFunnel(StandardCharsets.UTF_8),
+                expectedInsertions, falsePositiveProbability);
+        // writes from now on reach the new filter before it is listed
+        keys.building = building;
+        try {
+            seedExecutor.execute(() -> seed(container, keys, building,
+                    expectedInsertions));
+        } catch (RejectedExecutionException ree) {
+            keys.building = null;
+            keys.rebuilding.set(false);
+            throw ree;
+        }
+    }
+
+    private void seed(String container, KeyFilter keys,
+            BloomFilter<CharSequence> building, long expectedInsertions) {
+        try {
+            long count = 0;
+            ListContainerOptions options = new ListContainerOptions()
+                    .recursive();
+            String marker = null;
+            do {
+                if (marker != null) {
+                    options.afterMarker(marker);
+                }
+                PageSet<? extends StorageMetadata> set = delegate().list(
+                        container, options);
+                for (StorageMetadata sm : set) {
+                    building.put(sm.getName());
+                    ++count;
+                }
+                marker = set.getNextMarker();
+            } while (marker != null);
+            keys.capacity = expectedInsertions;
+            keys.insertions.set(count);
+            keys.filter = building;
+            rebuilds.incrementAndGet();
+            logger.debug("Seeded Bloom filter for {} with {} keys",
+                    container, count);
+        } catch (RuntimeException re) {
+            logger.warn("Could not seed Bloom filter for {}", container, re);
+        } finally {
+            keys.building = null;
+            keys.rebuilding.set(false);
+        }
+    }
+}
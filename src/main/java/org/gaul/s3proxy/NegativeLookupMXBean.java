@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+/** JMX view of a {@link NegativeLookupBlobStore}. */
+public interface NegativeLookupMXBean {
+    /** Number of lookups answered as missing without a backend call. */
+    long getAvoidedLookupCount();
+
+    /** Number of lookups sent to the backend. */
+    long getBackendLookupCount();
+
+    /** Number of lookups sent to the backend which found nothing. */
+    long getBackendMissCount();
+
+    /** Fraction of lookups answered without a backend call. */
+    double getAvoidedLookupRate();
+
+    /** Number of Bloom filters built from bucket listings. */
+    long getRebuildCount();
+}
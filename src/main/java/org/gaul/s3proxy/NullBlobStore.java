@@ -119,7 +119,8 @@ final class NullBlobStore extends ForwardingBlobStore {
             PutOptions options) {
         long length;
         try (InputStream is = blob.getPayload().openStream()) {
-            length = ByteStreams.copy(is, ByteStreams.nullOutputStream());
+            length = BufferPool.getInstance().copy(is,
+                    ByteStreams.nullOutputStream());
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -175,7 +176,8 @@ final class NullBlobStore extends ForwardingBlobStore {
             int partNumber, Payload payload) {
         long length;
         try (InputStream is = payload.openStream()) {
-            length = ByteStreams.copy(is, ByteStreams.nullOutputStream());
+            length = BufferPool.getInstance().copy(is,
+                    ByteStreams.nullOutputStream());
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -16,38 +16,215 @@
 
 package org.gaul.s3proxy;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import com.google.common.collect.ForwardingObject;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.KeyNotFoundException;
 import org.jclouds.blobstore.domain.*;
+import org.jclouds.blobstore.domain.internal.PageSetImpl;
 import org.jclouds.blobstore.options.*;
 import org.jclouds.domain.Location;
 import org.jclouds.filesystem.reference.FilesystemConstants;
+import org.jclouds.http.HttpCommand;
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.ContentMetadata;
 import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
 /** This class is a BlobStore wrapper which tracks write operations in the local filesystem. */
-final class OverlayBlobStore extends ForwardingObject implements BlobStore {
+final class OverlayBlobStore extends ForwardingObject
+        implements BlobStore, Closeable {
 
     private static final Logger logger = LoggerFactory.getLogger(
             OverlayBlobStore.class);
+    /** Local blobs which may be added before a Bloom filter is rebuilt. */
+    private static final int BLOOM_FILTER_HEADROOM = 100_000;
+    private static final double BLOOM_FILTER_FPP = 0.01;
+    /** Blobs larger than this are committed with a multipart upload. */
+    private static final long COMMIT_MULTIPART_THRESHOLD = 32L * 1024 * 1024;
+    static final int DEFAULT_COMMIT_THREADS = 4;
+    static final double DEFAULT_COMMIT_RATE = 10.0;
 
     private final BlobStore filesystemBlobStore;
     private final BlobStore upstreamBlobStore;
     private final String maskSuffix;
+    /** Suffix of the marker files of local writes not yet committed. */
+    private final String dirtySuffix;
+    private final boolean promoteOnRead;
+    private final ExecutorService commitExecutor;
+    private final RateLimiter commitRateLimiter;
+    /** Runs periodic commits, or null if they are disabled. */
+    private volatile ScheduledExecutorService commitScheduler;
+    /** The periodic commit task, or null if periodic commits are disabled. */
+    private volatile ScheduledFuture<?> commitTask;
+    private final ConcurrentMap<String, ContainerIndex> indexes =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Local state of one container, loaded by scanning it once and then
+     * maintained by writes through this overlay.  Masks are kept exactly
+     * since listings need them.  Local blobs, which may be numerous, are
+     * kept in a Bloom filter and positive answers are confirmed on the
+     * filesystem.  Masks double as the deletes still to be committed
+     * upstream; local writes still to be committed are kept separately and
+     * persisted as empty marker files so that they survive a restart.  Only
+     * the Bloom filter is replaced when it fills, so masks and pending
+     * writes are never lost.
+     */
+    private static final class ContainerIndex {
+        private volatile boolean localExists;
+        private final Set<String> maskedNames = ConcurrentHashMap.newKeySet();
+        private final Set<String> dirtyNames = ConcurrentHashMap.newKeySet();
+        private volatile LocalNames localNames;
+        /**
+         * Names added while a larger filter is being built, or null when
+         * no rebuild is running.  Guarded by this, as are swaps of
+         * localNames.
+         */
+        private Set<String> pendingNames;
+
+        private ContainerIndex(boolean localExists,
+                Collection<String> localNames) {
+            this.localExists = localExists;
+            this.localNames = new LocalNames(localNames);
+        }
+
+        private boolean mightBeLocal(String name) {
+            return localExists && localNames.mightContain(name);
+        }
+
+        /** Returns false once the filter exceeds its capacity. */
+        private boolean addLocalName(String name) {
+            LocalNames current;
+            synchronized (this) {
+                if (pendingNames != null) {
+                    pendingNames.add(name);
+                }
+                current = localNames;
+            }
+            return current.add(name);
+        }
+
+        /**
+         * Claim the rebuild of a full filter.  Returns false if the filter
+         * has room or another thread is already rebuilding it.
+         */
+        private synchronized boolean startRebuild() {
+            if (pendingNames != null || !localNames.isFull()) {
+                return false;
+            }
+            pendingNames = new HashSet<>();
+            return true;
+        }
+
+        /** Install a rebuilt filter, or keep the old one if null. */
+        private synchronized void finishRebuild(LocalNames rebuilt) {
+            if (rebuilt != null) {
+                for (String name : pendingNames) {
+                    rebuilt.add(name);
+                }
+                localNames = rebuilt;
+            }
+            pendingNames = null;
+        }
+    }
+
+    /** Bloom filter of local blob names sized with room for new writes. */
+    private static final class LocalNames {
+        private final BloomFilter<CharSequence> filter;
+        private final long capacity;
+        private final AtomicLong insertions;
+
+        private LocalNames(Collection<String> names) {
+            this.capacity = (long) names.size() + BLOOM_FILTER_HEADROOM;
+            this.filter = BloomFilter.create(
+                    Funnels.stringFunnel(StandardCharsets.UTF_8), capacity,
+                    BLOOM_FILTER_FPP);
+            for (String name : names) {
+                filter.put(name);
+            }
+            this.insertions = new AtomicLong(names.size());
+        }
+
+        private boolean mightContain(String name) {
+            return filter.mightContain(name);
+        }
+
+        private boolean add(String name) {
+            if (filter.put(name)) {
+                return insertions.incrementAndGet() <= capacity;
+            }
+            return true;
+        }
+
+        private boolean isFull() {
+            return insertions.get() > capacity;
+        }
+    }
 
     public OverlayBlobStore(BlobStore upstreamBlobStore, String overlayPath, String maskSuffix) {
+        this(upstreamBlobStore, overlayPath, maskSuffix, false,
+                DEFAULT_COMMIT_THREADS, DEFAULT_COMMIT_RATE);
+    }
+
+    OverlayBlobStore(BlobStore upstreamBlobStore, String overlayPath,
+            String maskSuffix, boolean promoteOnRead, int commitThreads,
+            double commitRate) {
+        checkArgument(commitThreads > 0,
+                "Commit threads must be positive, was: %s", commitThreads);
+        checkArgument(commitRate > 0,
+                "Commit rate must be positive, was: %s", commitRate);
         this.maskSuffix = maskSuffix;
+        this.dirtySuffix = maskSuffix + "-dirty";
         this.upstreamBlobStore = upstreamBlobStore;
+        this.promoteOnRead = promoteOnRead;
+        this.commitExecutor = Executors.newFixedThreadPool(commitThreads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("S3Proxy-overlay-commit-%d")
+                        .setDaemon(true)
+                        .build());
+        this.commitRateLimiter = RateLimiter.create(commitRate);
 
         Properties properties = new Properties();
         properties.setProperty(FilesystemConstants.PROPERTY_BASEDIR, overlayPath);
@@ -74,6 +251,55 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
         return new OverlayBlobStore(blobStore, overlayPath, maskSuffix);
     }
 
+    /**
+     * Create an overlay which optionally saves upstream blobs locally as
+     * they are read and, if commitIntervalMillis is positive, periodically
+     * commits local writes and deletes upstream.
+     */
+    static BlobStore newOverlayBlobStore(BlobStore blobStore,
+            String overlayPath, String maskSuffix, boolean promoteOnRead,
+            long commitIntervalMillis, int commitThreads,
+            double commitRate) {
+        checkArgument(commitIntervalMillis >= 0,
+                "Commit interval must be at least zero, was: %s",
+                commitIntervalMillis);
+        OverlayBlobStore overlay = new OverlayBlobStore(blobStore,
+                overlayPath, maskSuffix, promoteOnRead, commitThreads,
+                commitRate);
+        if (commitIntervalMillis > 0) {
+            ScheduledExecutorService scheduler =
+                    Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactoryBuilder()
+                                    .setNameFormat("S3Proxy-overlay-%d")
+                                    .setDaemon(true)
+                                    .build());
+            overlay.commitScheduler = scheduler;
+            overlay.commitTask = scheduler.scheduleWithFixedDelay(overlay::commitQuietly,
+                    commitIntervalMillis, commitIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        return overlay;
+    }
+
+    /**
+     * Stop committing and close the local store.  Commits in flight are
+     * left to finish; anything not yet committed stays in the overlay
+     * directory.
+     */
+    @Override
+    public void close() {
+        ScheduledFuture<?> task = commitTask;
+        if (task != null) {
+            task.cancel(true);
+        }
+        ScheduledExecutorService scheduler = commitScheduler;
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        commitExecutor.shutdown();
+        filesystemBlobStore.getContext().close();
+    }
+
     @Override
     public BlobStoreContext getContext() {
         return delegate().getContext();
@@ -99,7 +325,7 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
 
     @Override
     public boolean containerExists(String container) {
-        if(delegate().containerExists(container)){
+        if(getIndex(container).localExists){
             return true;
         } else {
             return delegateUpstream().containerExists(container);
@@ -109,14 +335,17 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
     @Override
     public boolean createContainerInLocation(Location location,
                                              String container) {
-        return delegate().createContainerInLocation(location, container);
+        boolean created = delegate().createContainerInLocation(location,
+                container);
+        getIndex(container).localExists = true;
+        return created;
     }
 
     @Override
     public boolean createContainerInLocation(Location location,
                                              String container, CreateContainerOptions options) {
         // TODO: Simulate error when creating a bucket that already exists
-        return delegate().createContainerInLocation(location, container);
+        return createContainerInLocation(location, container);
     }
 
     @Override
@@ -134,32 +363,26 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
 
     @Override
     public PageSet<? extends StorageMetadata> list(String container) {
-        if(delegate().containerExists(container)){
-            PageSet<StorageMetadata> localSet = (PageSet<StorageMetadata>) delegate().list(container);
-            if(delegateUpstream().containerExists(container)){
-                PageSet<StorageMetadata> upstreamSet = (PageSet<StorageMetadata>) delegateUpstream().list(container);
-                return mergeAndFilterList(localSet, upstreamSet);
-            }
-            return localSet;
-        } else if(delegateUpstream().containerExists(container)) {
-            return delegateUpstream().list(container);
-        } else {
-            return null;
-        }
+        return list(container, ListContainerOptions.NONE);
     }
 
     @Override
     public PageSet<? extends StorageMetadata> list(String container,
-                                                   ListContainerOptions options) {
-
-        if(delegate().containerExists(container)){
-            PageSet<StorageMetadata> localSet = (PageSet<StorageMetadata>) delegate().list(container, options);
-            if(delegateUpstream().containerExists(container)){
-                PageSet<StorageMetadata> upstreamSet = (PageSet<StorageMetadata>) delegateUpstream().list(container, options);
-                return mergeAndFilterList(localSet, upstreamSet);
+            ListContainerOptions options) {
+        if (getIndex(container).localExists) {
+            if (delegateUpstream().containerExists(container)) {
+                return mergeAndFilterList(container, options);
+            }
+            PageSet<? extends StorageMetadata> localSet =
+                    delegate().list(container, options);
+            List<StorageMetadata> results = new ArrayList<>();
+            for (StorageMetadata sm : localSet) {
+                if (!isMarkerFile(sm)) {
+                    results.add(sm);
+                }
             }
-            return localSet;
-        } else if(delegateUpstream().containerExists(container)) {
+            return new PageSetImpl<>(results, localSet.getNextMarker());
+        } else if (delegateUpstream().containerExists(container)) {
             return delegateUpstream().list(container, options);
         } else {
             return null;
@@ -188,34 +411,47 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
 
     @Override
     public boolean directoryExists(String container, String directory) {
-        throw new RuntimeException(new S3Exception(S3ErrorCode.INVALID_REQUEST, "Not Implemented Yet" ));
+        if (getIndex(container).localExists &&
+                delegate().directoryExists(container, directory)) {
+            return true;
+        }
+        return !isBlobMasked(container, directory) &&
+                delegateUpstream().containerExists(container) &&
+                delegateUpstream().directoryExists(container, directory);
     }
 
     @Override
     public void createDirectory(String container, String directory) {
-        throw new RuntimeException(new S3Exception(S3ErrorCode.INVALID_REQUEST, "Not Implemented Yet" ));
+        ensureLocalContainerExistsIfUpstreamDoes(container);
+        delegate().createDirectory(container, directory);
     }
 
     @Override
     public void deleteDirectory(String container, String directory) {
-        throw new RuntimeException(new S3Exception(S3ErrorCode.INVALID_REQUEST, "Not Implemented Yet" ));
+        if (getIndex(container).localExists) {
+            delegate().deleteDirectory(container, directory);
+        }
+        // masks an upstream directory marker blob, if any
+        maskBlob(container, directory);
     }
 
     @Override
     public boolean blobExists(String container, String name) {
-        if(delegate().blobExists(container, name)){
+        if(isBlobLocal(container, name)){
             return true;
+        } else if(isBlobMasked(container, name)){
+            return false;
         } else {
             return delegateUpstream().blobExists(container, name);
         }
     }
 
     private boolean ensureLocalContainerExistsIfUpstreamDoes(String container) {
-        if(delegate().containerExists(container)){
+        if(getIndex(container).localExists){
             return true;
         } else {
             if(delegateUpstream().containerExists(container)){
-                return delegate().createContainerInLocation(null, container);
+                return createContainerInLocation(null, container);
             }
         }
         return false;
@@ -228,7 +464,10 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
         if(isBlobMasked(containerName, blob.getMetadata().getName())){
             unmaskBlob(containerName, blob.getMetadata().getName());
         }
-        return delegate().putBlob(containerName, blob);
+        String eTag = delegate().putBlob(containerName, blob);
+        addLocalName(containerName, blob.getMetadata().getName());
+        markDirty(containerName, blob.getMetadata().getName());
+        return eTag;
     }
 
     @Override
@@ -239,13 +478,43 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
         if(isBlobMasked(containerName, blob.getMetadata().getName())){
             unmaskBlob(containerName, blob.getMetadata().getName());
         }
-        return delegate().putBlob(containerName, blob, putOptions);
+        String eTag = delegate().putBlob(containerName, blob, putOptions);
+        addLocalName(containerName, blob.getMetadata().getName());
+        markDirty(containerName, blob.getMetadata().getName());
+        return eTag;
     }
 
+    /**
+     * Copy by reading the source through the overlay and writing the
+     * destination locally, since the source may be upstream.
+     */
     @Override
-    public String copyBlob(String fromContainer, String fromName, String toContainer, String toName,
-                           CopyOptions options) {
-        throw new RuntimeException(new S3Exception(S3ErrorCode.INVALID_REQUEST, "Not Implemented Yet" ));
+    public String copyBlob(String fromContainer, String fromName,
+            String toContainer, String toName, CopyOptions options) {
+        Blob blob = getBlobMasked(fromContainer, fromName, null);
+        if (blob == null) {
+            throw new KeyNotFoundException(fromContainer, fromName,
+                    "while copying");
+        }
+        BlobMetadata metadata = blob.getMetadata();
+        checkCopyPreconditions(metadata, options);
+        ContentMetadata contentMetadata = options.contentMetadata() != null ?
+                options.contentMetadata() : metadata.getContentMetadata();
+        Map<String, String> userMetadata = options.userMetadata() != null ?
+                options.userMetadata() : metadata.getUserMetadata();
+        try (InputStream is = blob.getPayload().openStream()) {
+            BlobBuilder.PayloadBlobBuilder builder = blobBuilder(toName)
+                    .payload(is);
+            Long contentLength = metadata.getContentMetadata()
+                    .getContentLength();
+            if (contentLength != null) {
+                builder.contentLength(contentLength);
+            }
+            copyMetadata(builder, contentMetadata, userMetadata);
+            return putBlob(toContainer, builder.build());
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
     }
 
     @Override
@@ -280,11 +549,17 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
             logger.debug("[ensureBlobIsLocal]: Blob " + containerName + "/" + blobName + " returned from remote storage");
         }
 
+        Blob blob;
         if(getOptions == null){
-            return sourceStore.getBlob(containerName, blobName);
+            blob = sourceStore.getBlob(containerName, blobName);
         } else {
-            return sourceStore.getBlob(containerName, blobName, getOptions);
+            blob = sourceStore.getBlob(containerName, blobName, getOptions);
         }
+        if (blob != null && promoteOnRead && sourceStore != delegate() &&
+                (getOptions == null || getOptions.getRanges().isEmpty())) {
+            promote(containerName, blob);
+        }
+        return blob;
     }
 
     @Override
@@ -301,18 +576,16 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
     @Override
     public void removeBlob(String container, String name) {
         maskBlob(container, name);
-        if(delegate().blobExists(container, name)){
+        if(isBlobLocal(container, name)){
             delegate().removeBlob(container, name);
         }
+        clearDirty(container, name);
     }
 
     @Override
     public void removeBlobs(String container, Iterable<String> iterable) {
         for (String name : iterable) {
-            maskBlob(container, name);
-            if(delegate().blobExists(container, name)){
-                delegate().removeBlob(container, name);
-            }
+            removeBlob(container, name);
         }
     }
 
@@ -354,7 +627,10 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
 
     @Override
     public String completeMultipartUpload(MultipartUpload mpu, List<MultipartPart> parts) {
-        return delegate().completeMultipartUpload(mpu, parts);
+        String eTag = delegate().completeMultipartUpload(mpu, parts);
+        addLocalName(mpu.containerName(), mpu.blobName());
+        markDirty(mpu.containerName(), mpu.blobName());
+        return eTag;
     }
 
     @Override
@@ -390,22 +666,361 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
 
     @Override
     public void downloadBlob(String container, String name, File destination) {
-        throw new RuntimeException(new S3Exception(S3ErrorCode.INVALID_REQUEST, "Not Implemented Yet" ));
+        try (InputStream is = streamBlob(container, name)) {
+            Files.copy(is, destination.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
     }
 
     @Override
     public void downloadBlob(String container, String name, File destination, ExecutorService executor) {
-        throw new RuntimeException(new S3Exception(S3ErrorCode.INVALID_REQUEST, "Not Implemented Yet" ));
+        downloadBlob(container, name, destination);
     }
 
     @Override
     public InputStream streamBlob(String container, String name) {
-        return delegate().streamBlob(container, name);
+        Blob blob = getBlobMasked(container, name, null);
+        if (blob == null) {
+            throw new KeyNotFoundException(container, name, "while streaming");
+        }
+        try {
+            return blob.getPayload().openStream();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
     }
 
     @Override
     public InputStream streamBlob(String container, String name, ExecutorService executor) {
-        return delegate().streamBlob(container, name, executor);
+        return streamBlob(container, name);
+    }
+
+    /**
+     * Upload local writes and remove masked blobs upstream, running the
+     * operations in parallel at the configured rate.  Failed operations are
+     * retried by the next call.
+     */
+    void commit() {
+        // pick up writes left uncommitted by a previous run
+        for (StorageMetadata sm : delegate().list()) {
+            try {
+                getIndex(sm.getName());
+            } catch (RuntimeException re) {
+                logger.warn("Could not load overlay index for {}",
+                        sm.getName(), re);
+            }
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Map.Entry<String, ContainerIndex> entry : indexes.entrySet()) {
+            String container = entry.getKey();
+            ContainerIndex index = entry.getValue();
+            if (!index.dirtyNames.isEmpty() &&
+                    !delegateUpstream().containerExists(container)) {
+                delegateUpstream().createContainerInLocation(null, container);
+            }
+            for (String name : index.dirtyNames) {
+                tasks.add(() -> {
+                    commitPut(container, name);
+                    return null;
+                });
+            }
+            for (String name : index.maskedNames) {
+                tasks.add(() -> {
+                    commitRemove(container, name);
+                    return null;
+                });
+            }
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        List<Future<Void>> futures;
+        try {
+            futures = commitExecutor.invokeAll(tasks);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        int failures = 0;
+        for (Future<Void> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException ee) {
+                ++failures;
+                logger.warn("Could not commit overlay change", ee.getCause());
+            }
+        }
+        logger.debug("Committed {} overlay changes, {} failed",
+                tasks.size() - failures, failures);
+    }
+
+    private void commitQuietly() {
+        try {
+            commit();
+        } catch (RuntimeException re) {
+            // a scheduled task which throws is never run again
+            logger.warn("Could not commit overlay changes", re);
+        }
+    }
+
+    private void commitPut(String container, String name) {
+        ContainerIndex index = getIndex(container);
+        // a write during the upload marks the blob dirty again
+        if (!index.dirtyNames.remove(name)) {
+            return;
+        }
+        commitRateLimiter.acquire();
+        Blob blob = delegate().getBlob(container, name);
+        if (blob == null) {
+            clearCommitted(container, name);  // removed since written
+            return;
+        }
+        try {
+            Long size = blob.getMetadata().getSize();
+            PutOptions options = size != null &&
+                    size > COMMIT_MULTIPART_THRESHOLD ?
+                    new PutOptions().multipart() : PutOptions.NONE;
+            delegateUpstream().putBlob(container, blob, options);
+        } catch (RuntimeException re) {
+            index.dirtyNames.add(name);
+            throw re;
+        } finally {
+            blob.getPayload().release();
+        }
+        clearCommitted(container, name);
+        if (!index.dirtyNames.contains(name) &&
+                !isBlobLocal(container, name)) {
+            // removed during the upload; mask it so it is removed upstream
+            maskBlob(container, name);
+        }
+    }
+
+    private void commitRemove(String container, String name) {
+        commitRateLimiter.acquire();
+        delegateUpstream().removeBlob(container, name);
+        // the upstream blob is gone so the mask is no longer needed
+        unmaskBlob(container, name);
+    }
+
+    /** Save the upstream bytes locally as the client reads them. */
+    private void promote(String container, Blob blob) {
+        Payload payload = blob.getPayload();
+        if (payload == null) {
+            return;
+        }
+        Path path;
+        try {
+            path = Files.createTempFile("s3proxy-overlay-", null);
+        } catch (IOException ioe) {
+            logger.warn("Could not create promotion file", ioe);
+            return;
+        }
+        InputStream is;
+        try {
+            is = new PromotingInputStream(container, blob.getMetadata(),
+                    path, payload.openStream());
+        } catch (IOException ioe) {
+            deleteQuietly(path);
+            throw new RuntimeException(ioe);
+        }
+        Payload promoting = Payloads.newInputStreamPayload(is);
+        promoting.setContentMetadata(payload.getContentMetadata());
+        blob.setPayload(promoting);
+    }
+
+    private void savePromoted(String container, BlobMetadata metadata,
+            Path path) {
+        String name = metadata.getName();
+        Long contentLength = metadata.getContentMetadata().getContentLength();
+        if (contentLength != null && contentLength != path.toFile().length()) {
+            return;
+        } else if (isBlobMasked(container, name) ||
+                isBlobLocal(container, name)) {
+            return;  // written or removed while it was read
+        }
+        ensureLocalContainerExistsIfUpstreamDoes(container);
+        BlobBuilder.PayloadBlobBuilder builder = delegate().blobBuilder(name)
+                .payload(path.toFile());
+        copyMetadata(builder, metadata.getContentMetadata(),
+                metadata.getUserMetadata());
+        delegate().putBlob(container, builder.build());
+        addLocalName(container, name);
+        logger.debug("Promoted {}/{} to local storage", container, name);
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ioe) {
+            logger.debug("Could not delete {}", path, ioe);
+        }
+    }
+
+    private static void copyMetadata(BlobBuilder.PayloadBlobBuilder builder,
+            ContentMetadata contentMetadata, Map<String, String> userMetadata) {
+        builder.cacheControl(contentMetadata.getCacheControl())
+                .contentDisposition(contentMetadata.getContentDisposition())
+                .contentEncoding(contentMetadata.getContentEncoding())
+                .contentLanguage(contentMetadata.getContentLanguage())
+                .userMetadata(userMetadata);
+        if (contentMetadata.getContentType() != null) {
+            builder.contentType(contentMetadata.getContentType());
+        }
+        if (contentMetadata.getExpires() != null) {
+            builder.expires(contentMetadata.getExpires());
+        }
+    }
+
+    private static void checkCopyPreconditions(BlobMetadata metadata,
+            CopyOptions options) {
+        String eTag = unquote(metadata.getETag());
+        if (eTag != null) {
+            if (options.ifMatch() != null &&
+                    !unquote(options.ifMatch()).equals(eTag)) {
+                throw preconditionFailed();
+            } else if (options.ifNoneMatch() != null &&
+                    unquote(options.ifNoneMatch()).equals(eTag)) {
+                throw preconditionFailed();
+            }
+        }
+        Date lastModified = metadata.getLastModified();
+        if (lastModified != null) {
+            if (options.ifModifiedSince() != null &&
+                    !lastModified.after(options.ifModifiedSince())) {
+                throw preconditionFailed();
+            } else if (options.ifUnmodifiedSince() != null &&
+                    lastModified.after(options.ifUnmodifiedSince())) {
+                throw preconditionFailed();
+            }
+        }
+    }
+
+    private static String unquote(String eTag) {
+        if (eTag != null && eTag.length() >= 2 && eTag.startsWith("\"") &&
+                eTag.endsWith("\"")) {
+            return eTag.substring(1, eTag.length() - 1);
+        }
+        return eTag;
+    }
+
+    /** Mimic the exception the filesystem provider throws for copies. */
+    private static HttpResponseException preconditionFailed() {
+        return new HttpResponseException(new HttpCommand(HttpRequest.builder()
+                .method("GET")
+                .endpoint(URI.create("http://stub"))
+                .build()), HttpResponse.builder().statusCode(412).build());
+    }
+
+    /**
+     * Copy the bytes a client reads from an upstream blob to a temporary
+     * file and save them as a local blob once the whole blob has been read.
+     * Partial reads, such as an aborted download, discard the copy.
+     */
+    private final class PromotingInputStream extends FilterInputStream {
+        private final String container;
+        private final BlobMetadata metadata;
+        private final Path path;
+        private final OutputStream out;
+        private boolean copying = true;
+        private boolean finished;
+
+        PromotingInputStream(String container, BlobMetadata metadata,
+                Path path, InputStream in) throws IOException {
+            super(in);
+            this.container = container;
+            this.metadata = metadata;
+            this.path = path;
+            this.out = new BufferedOutputStream(Files.newOutputStream(path));
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                finish();
+            } else if (copying) {
+                try {
+                    out.write(b);
+                } catch (IOException ioe) {
+                    abandon(ioe);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1) {
+                finish();
+            } else if (copying) {
+                try {
+                    out.write(b, off, n);
+                } catch (IOException ioe) {
+                    abandon(ioe);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            copying = false;
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!finished) {
+                    finished = true;
+                    closeQuietly();
+                    deleteQuietly(path);
+                }
+            }
+        }
+
+        private void abandon(IOException ioe) {
+            logger.warn("Could not promote {}/{}", container,
+                    metadata.getName(), ioe);
+            copying = false;
+        }
+
+        private void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            try {
+                out.close();
+                if (copying) {
+                    savePromoted(container, metadata, path);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not promote {}/{}", container,
+                        metadata.getName(), e);
+            } finally {
+                deleteQuietly(path);
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                out.close();
+            } catch (IOException ioe) {
+                logger.debug("Could not close {}", path, ioe);
+            }
+        }
     }
 
 
@@ -414,9 +1029,15 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
         return sm.getName().endsWith(this.maskSuffix);
     }
 
+    /** Returns true for mask files and dirty markers. */
+    private boolean isMarkerFile(StorageMetadata sm) {
+        return isBlobMaskFile(sm) || sm.getName().endsWith(dirtySuffix);
+    }
+
     // Returns the name of the Blob that a Maskfile belongs to
     private String getMaskedBlobFileName(String maskFileName){
-        return maskFileName.replace(this.maskSuffix, "");
+        return maskFileName.substring(0,
+                maskFileName.length() - this.maskSuffix.length());
     }
 
     // Returns the Maskfile name for the provided Blob name
@@ -426,11 +1047,7 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
 
     // Returns true if a Maskfile exists for the provided Blob
     private boolean isBlobMasked(String container, String name){
-        if(delegate().containerExists(container)){
-            return delegate().blobExists(container, getBlobMaskFileName(name));
-        } else {
-            return false;
-        }
+        return getIndex(container).maskedNames.contains(name);
     }
 
     // Creates a Maskfile for the specified Blob
@@ -441,8 +1058,10 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
             return;
         } else if(delegateUpstream().blobExists(container, name)) {
             // If it exists upstream, create a maskFile
+            ensureLocalContainerExistsIfUpstreamDoes(container);
             BlobBuilder blobBuilder = blobBuilder(getBlobMaskFileName(name)).payload("");
             delegate().putBlob(container, blobBuilder.build());
+            getIndex(container).maskedNames.add(name);
             logger.debug("[maskBlob]: Blob " + container + "/" + name + " successfully masked");
         } else {
             // Nothing
@@ -454,6 +1073,7 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
     private void unmaskBlob(String container, String name){
         if(isBlobMasked(container, name)){
             delegate().removeBlob(container, getBlobMaskFileName(name));
+            getIndex(container).maskedNames.remove(name);
             logger.debug("[unmaskBlob]: Blob " + container + "/" + name + " successfully unmasked");
             return;
         } else {
@@ -461,47 +1081,198 @@ final class OverlayBlobStore extends ForwardingObject implements BlobStore {
         }
     }
 
+    /** Record a local write to commit, persisting it with a marker file. */
+    private void markDirty(String container, String name) {
+        Set<String> dirtyNames = getIndex(container).dirtyNames;
+        synchronized (dirtyNames) {
+            if (dirtyNames.add(name)) {
+                delegate().putBlob(container, blobBuilder(
+                        name + dirtySuffix).payload("").build());
+            }
+        }
+    }
+
+    /** Forget a local write which was removed before it was committed. */
+    private void clearDirty(String container, String name) {
+        Set<String> dirtyNames = getIndex(container).dirtyNames;
+        synchronized (dirtyNames) {
+            dirtyNames.remove(name);
+            delegate().removeBlob(container, name + dirtySuffix);
+        }
+    }
+
+    /**
+     * Remove the marker of a committed write unless the blob was written
+     * again during the commit.
+     */
+    private void clearCommitted(String container, String name) {
+        Set<String> dirtyNames = getIndex(container).dirtyNames;
+        synchronized (dirtyNames) {
+            if (!dirtyNames.contains(name)) {
+                delegate().removeBlob(container, name + dirtySuffix);
+            }
+        }
+    }
+
     // Returns true if the specified Blob is available in the local backend
     private boolean isBlobLocal(String container, String name){
-        if(delegate().containerExists(container)) {
+        if(getIndex(container).mightBeLocal(name)) {
             return delegate().blobExists(container, name);
         } else {
             return false;
         }
     }
 
-    private PageSet<? extends StorageMetadata> mergeAndFilterList(PageSet<StorageMetadata> localSet, PageSet<StorageMetadata> upstreamSet){
-        List<String> maskedBlobNames = new ArrayList<String>();
-        List<String> localBlobNames = new ArrayList<String>();
+    private ContainerIndex getIndex(String container) {
+        return indexes.computeIfAbsent(container, this::loadIndex);
+    }
 
-        // TODO: This is a pretty terrible solution performance-wide
-        //
-        // Build a list of masked blobs and remove the maskfiles themselves from the localSet
-        for (Iterator<StorageMetadata> iterator = localSet.iterator(); iterator.hasNext();) {
-            StorageMetadata sm = iterator.next();
-            if(isBlobMaskFile(sm)){
-                String maskedFile = getMaskedBlobFileName(sm.getName());
-                logger.info("[mergeAndFilterList]: Blob " + sm.getName() + " is a maskfile for " + maskedFile);
-                maskedBlobNames.add(maskedFile);
-                iterator.remove();
-            } else {
-                localBlobNames.add(sm.getName());
+    /** Scan the local container for blobs and mask files. */
+    private ContainerIndex loadIndex(String container) {
+        if (!delegate().containerExists(container)) {
+            return new ContainerIndex(false, Collections.emptyList());
+        }
+        List<String> localNames = new ArrayList<>();
+        List<String> maskedNames = new ArrayList<>();
+        List<String> dirtyNames = new ArrayList<>();
+        scanLocal(container, localNames, maskedNames, dirtyNames);
+        logger.debug("Loaded overlay index for {}: {} local blobs, {} masks," +
+                " {} uncommitted", container, localNames.size(),
+                maskedNames.size(), dirtyNames.size());
+        ContainerIndex index = new ContainerIndex(true, localNames);
+        index.maskedNames.addAll(maskedNames);
+        index.dirtyNames.addAll(dirtyNames);
+        return index;
+    }
+
+    private void scanLocal(String container, List<String> localNames,
+            List<String> maskedNames, List<String> dirtyNames) {
+        ListContainerOptions options = new ListContainerOptions()
+                .recursive();
+        String marker = null;
+        do {
+            if (marker != null) {
+                options.afterMarker(marker);
+            }
+            PageSet<? extends StorageMetadata> set = delegate().list(
+                    container, options);
+            for (StorageMetadata sm : set) {
+                if (isBlobMaskFile(sm)) {
+                    maskedNames.add(getMaskedBlobFileName(sm.getName()));
+                } else if (sm.getName().endsWith(dirtySuffix)) {
+                    dirtyNames.add(sm.getName().substring(0,
+                            sm.getName().length() - dirtySuffix.length()));
+                } else {
+                    localNames.add(sm.getName());
+                }
             }
+            marker = set.getNextMarker();
+        } while (marker != null);
+    }
+
+    private void addLocalName(String container, String name) {
+        ContainerIndex index = getIndex(container);
+        if (index.addLocalName(name) || !index.startRebuild()) {
+            return;
+        }
+        // rebuild a larger filter, dropping names since removed; blobs
+        // written during the scan are recorded as pending and added after
+        LocalNames rebuilt = null;
+        try {
+            List<String> localNames = new ArrayList<>();
+            scanLocal(container, localNames, new ArrayList<>(),
+                    new ArrayList<>());
+            rebuilt = new LocalNames(localNames);
+        } finally {
+            index.finishRebuild(rebuilt);
         }
+    }
 
-        // Remove any masked files from the upstream list, and any files that exist in local storage
-        for (Iterator<StorageMetadata> iterator = upstreamSet.iterator(); iterator.hasNext();) {
-            StorageMetadata sm = iterator.next();
-            if(maskedBlobNames.contains(sm.getName())){
-                logger.warn("[mergeAndFilterList]: Blob " + sm.getName() + " is masked, removing from list.");
-                iterator.remove();
-            } else if(localBlobNames.contains(sm.getName())){
-                logger.info("[mergeAndFilterList]: Blob " + sm.getName() + " exists both locally and upstream. Using local copy.");
-                iterator.remove();
+    /**
+     * Merge one page of the local and upstream listings in key order.  Local
+     * blobs shadow upstream blobs of the same name and masked upstream blobs
+     * are dropped using the mask index.  Each source returns at most
+     * max-keys entries, so entries are only returned up to the last key of
+     * any truncated source; the next page resumes from there.
+     */
+    private PageSet<? extends StorageMetadata> mergeAndFilterList(
+            String container, ListContainerOptions options) {
+        int maxResults = options.getMaxResults() != null ?
+                options.getMaxResults() : 1000;
+        PageSet<? extends StorageMetadata> localSet = delegate().list(
+                container, options);
+        PageSet<? extends StorageMetadata> upstreamSet =
+                delegateUpstream().list(container, options);
+        Set<String> maskedNames = getIndex(container).maskedNames;
+
+        String frontier = minName(getFrontier(localSet),
+                getFrontier(upstreamSet));
+        PeekingIterator<StorageMetadata> localIt = Iterators.peekingIterator(
+                Iterators.filter(Iterators.<StorageMetadata>
+                        unmodifiableIterator(localSet.iterator()),
+                        sm -> !isMarkerFile(sm)));
+        PeekingIterator<StorageMetadata> upstreamIt =
+                Iterators.peekingIterator(Iterators.filter(Iterators
+                        .<StorageMetadata>unmodifiableIterator(
+                                upstreamSet.iterator()),
+                        sm -> !maskedNames.contains(sm.getName())));
+
+        List<StorageMetadata> results = new ArrayList<>();
+        while (results.size() < maxResults) {
+            boolean hasLocal = hasNextBefore(localIt, frontier);
+            boolean hasUpstream = hasNextBefore(upstreamIt, frontier);
+            if (hasLocal && hasUpstream) {
+                int cmp = localIt.peek().getName().compareTo(
+                        upstreamIt.peek().getName());
+                if (cmp == 0) {
+                    // local copy shadows the upstream blob
+                    upstreamIt.next();
+                    results.add(localIt.next());
+                } else if (cmp < 0) {
+                    results.add(localIt.next());
+                } else {
+                    results.add(upstreamIt.next());
+                }
+            } else if (hasLocal) {
+                results.add(localIt.next());
+            } else if (hasUpstream) {
+                results.add(upstreamIt.next());
+            } else {
+                break;
             }
         }
-        localSet.addAll(upstreamSet);
-        return localSet;
+
+        String nextMarker = null;
+        if (results.size() == maxResults && !results.isEmpty() &&
+                (frontier != null || localIt.hasNext() ||
+                        upstreamIt.hasNext())) {
+            nextMarker = results.get(results.size() - 1).getName();
+        } else if (frontier != null) {
+            nextMarker = frontier;
+        }
+        return new PageSetImpl<>(results, nextMarker);
     }
 
+    /** Last key of a truncated page or null if the listing is complete. */
+    private static String getFrontier(PageSet<? extends StorageMetadata> set) {
+        if (set.getNextMarker() == null || set.isEmpty()) {
+            return null;
+        }
+        return Iterators.getLast(set.iterator()).getName();
+    }
+
+    private static String minName(String a, String b) {
+        if (a == null) {
+            return b;
+        } else if (b == null) {
+            return a;
+        }
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private static boolean hasNextBefore(
+            PeekingIterator<StorageMetadata> it, String frontier) {
+        return it.hasNext() && (frontier == null ||
+                it.peek().getName().compareTo(frontier) <= 0);
+    }
 }
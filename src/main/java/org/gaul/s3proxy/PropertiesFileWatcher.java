@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Invoke a callback when any of a set of properties files changes.  Editors
+ * often write a file in several steps so events are coalesced for a short
+ * interval before the callback runs.
+ */
+final class PropertiesFileWatcher implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(
+            PropertiesFileWatcher.class);
+    private static final long SETTLE_MILLISECONDS = 500;
+
+    private final WatchService watchService;
+    private final Set<Path> paths = new HashSet<>();
+    private final Runnable callback;
+    private final Thread thread;
+
+    PropertiesFileWatcher(List<File> files, Runnable callback)
+            throws IOException {
+        this.callback = callback;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        Set<Path> directories = new HashSet<>();
+        for (File file : files) {
+            Path path = file.toPath().toAbsolutePath().normalize();
+            paths.add(path);
+            if (directories.add(path.getParent())) {
+                path.getParent().register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        }
+        thread = new Thread(this::run, "properties file watcher");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                do {
+                    changed |= pollEvents(key);
+                    key = watchService.poll(SETTLE_MILLISECONDS,
+                            TimeUnit.MILLISECONDS);
+                } while (key != null);
+                if (!changed) {
+                    continue;
+                }
+                try {
+                    callback.run();
+                } catch (RuntimeException re) {
+                    logger.error("Could not reload configuration", re);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            logger.debug("Stopped watching properties files");
+        }
+    }
+
+    private boolean pollEvents(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else if (context instanceof Path &&
+                    paths.contains(directory.resolve((Path) context))) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.jclouds.blobstore.BlobStore;
+
+/**
+ * Locator whose identities and bucket globs can be replaced while serving
+ * requests.  Each update publishes a new immutable GlobBlobStoreLocator so
+ * lookups read a single volatile field and never lock.
+ */
+final class ReloadableBlobStoreLocator implements BlobStoreLocator {
+    private final BlobStoreLocator defaultLocator;
+    private volatile BlobStoreLocator delegate;
+
+    /**
+     * @param defaultLocator locator to use when the configuration has no
+     *     identities or bucket locators
+     */
+    ReloadableBlobStoreLocator(BlobStoreLocator defaultLocator) {
+        this.defaultLocator = requireNonNull(defaultLocator);
+        this.delegate = defaultLocator;
+    }
+
+    void update(Map<String, Map.Entry<String, BlobStore>> locator,
+            Map<String, Map.Entry<String, BlobStore>> globLocator) {
+        if (locator.isEmpty() && globLocator.isEmpty()) {
+            delegate = defaultLocator;
+        } else {
+            delegate = GlobBlobStoreLocator.fromGlobs(locator, globLocator);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Map.Entry<String, BlobStore> locateBlobStore(String identity,
+            String container, String blob) {
+        return delegate.locateBlobStore(identity, container, blob);
+    }
+}
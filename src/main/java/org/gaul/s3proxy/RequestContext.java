@@ -0,0 +1,276 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+
+import com.google.common.base.Strings;
+import com.google.common.net.HostAndPort;
+import com.google.common.net.HttpHeaders;
+
+/**
+ * Headers, query parameters, path and authentication inputs of a request,
+ * parsed once when the request arrives.  Handlers and signature code read
+ * from this instead of repeatedly enumerating the servlet request.
+ */
+final class RequestContext {
+    private static final String ATTRIBUTE = RequestContext.class.getName();
+
+    private final String method;
+    private final String originalUri;
+    private final String uri;
+    @Nullable
+    private final String queryString;
+    private final String[] path;
+    /** Header names as sent by the client, without duplicates. */
+    private final List<String> headerNames;
+    /** Lower-case header names to their values; empty values are "". */
+    private final Map<String, List<String>> headers;
+    private final Map<String, String[]> parameters;
+    private final boolean hasDateHeader;
+    private final boolean hasXAmzDateHeader;
+    /** Identity which signed the request, set once it is authenticated. */
+    @Nullable
+    private volatile String identity;
+    /** Admission permit held until the response is complete. */
+    private final AtomicReference<AdmissionController.Permit> permit =
+            new AtomicReference<>();
+    /** Pooled buffer holding the request body until it is handled. */
+    @Nullable
+    private byte[] bodyBuffer;
+
+    RequestContext(HttpServletRequest request, String servicePath,
+            Optional<String> virtualHost) {
+        method = request.getMethod();
+        originalUri = request.getRequestURI();
+        queryString = request.getQueryString();
+
+        List<String> names = new ArrayList<>();
+        Map<String, List<String>> values = new HashMap<>();
+        boolean dateHeader = false;
+        boolean xAmzDateHeader = false;
+        for (Enumeration<String> e = request.getHeaderNames();
+                e.hasMoreElements();) {
+            String name = e.nextElement();
+            String lowerName = name.toLowerCase(Locale.ENGLISH);
+            if (values.containsKey(lowerName)) {
+                continue;
+            }
+            List<String> headerValues = new ArrayList<>(1);
+            for (Enumeration<String> v = request.getHeaders(name);
+                    v.hasMoreElements();) {
+                headerValues.add(Strings.nullToEmpty(v.nextElement()));
+            }
+            names.add(name);
+            values.put(lowerName, headerValues);
+            if (lowerName.equals("date")) {
+                dateHeader = true;
+            } else if (lowerName.equals(AwsHttpHeaders.DATE) &&
+                    !headerValues.isEmpty() &&
+                    !headerValues.get(0).isEmpty()) {
+                xAmzDateHeader = true;
+            }
+        }
+        headerNames = Collections.unmodifiableList(names);
+        headers = values;
+        hasDateHeader = dateHeader;
+        hasXAmzDateHeader = xAmzDateHeader;
+        parameters = request.getParameterMap();
+
+        String requestUri = originalUri;
+        if (!servicePath.isEmpty()) {
+            if (requestUri.length() > servicePath.length()) {
+                requestUri = requestUri.substring(servicePath.length());
+            }
+        }
+        String hostHeader = getHeader(HttpHeaders.HOST);
+        if (hostHeader != null && virtualHost.isPresent()) {
+            hostHeader = HostAndPort.fromString(hostHeader).getHost();
+            String virtualHostSuffix = "." + virtualHost.get();
+            if (!hostHeader.equals(virtualHost.get())) {
+                if (hostHeader.endsWith(virtualHostSuffix)) {
+                    String bucket = hostHeader.substring(0,
+                            hostHeader.length() - virtualHostSuffix.length());
+                    requestUri = "/" + bucket + requestUri;
+                } else {
+                    String bucket = hostHeader.toLowerCase();
+                    requestUri = "/" + bucket + requestUri;
+                }
+            }
+        }
+        uri = requestUri;
+
+        path = uri.split("/", 3);
+        try {
+            for (int i = 0; i < path.length; i++) {
+                path[i] = URLDecoder.decode(path[i],
+                        StandardCharsets.UTF_8.name());
+            }
+        } catch (UnsupportedEncodingException uee) {
+            throw new AssertionError(uee);
+        }
+    }
+
+    /** Attach this context to request for later handlers. */
+    void attach(HttpServletRequest request) {
+        request.setAttribute(ATTRIBUTE, this);
+    }
+
+    /**
+     * Return the context attached to request, parsing one without service
+     * path or virtual host rewriting if the request has none.
+     */
+    static RequestContext get(HttpServletRequest request) {
+        RequestContext context = (RequestContext) request.getAttribute(
+                ATTRIBUTE);
+        if (context == null) {
+            context = new RequestContext(request, "", Optional.empty());
+            context.attach(request);
+        }
+        return context;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    /** Request URI including any service path. */
+    String getOriginalUri() {
+        return originalUri;
+    }
+
+    /** Request URI after removing the service path and virtual host. */
+    String getUri() {
+        return uri;
+    }
+
+    @Nullable
+    String getQueryString() {
+        return queryString;
+    }
+
+    /** URI split into at most three decoded components. */
+    String[] getPath() {
+        return path;
+    }
+
+    List<String> getHeaderNames() {
+        return headerNames;
+    }
+
+    /** Return the first value of a header or null if not present. */
+    @Nullable
+    String getHeader(String name) {
+        List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        return values.get(0);
+    }
+
+    List<String> getHeaders(String name) {
+        List<String> values = headers.get(name.toLowerCase(Locale.ENGLISH));
+        if (values == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    boolean hasDateHeader() {
+        return hasDateHeader;
+    }
+
+    /** Whether a non-empty x-amz-date header is present. */
+    boolean hasXAmzDateHeader() {
+        return hasXAmzDateHeader;
+    }
+
+    /** Return the first value of a query parameter or null. */
+    @Nullable
+    String getParameter(String name) {
+        String[] values = parameters.get(name);
+        if (values == null || values.length == 0) {
+            return null;
+        }
+        return values[0];
+    }
+
+    Set<String> getParameterNames() {
+        return parameters.keySet();
+    }
+
+    @Nullable
+    String getIdentity() {
+        return identity;
+    }
+
+    void setIdentity(@Nullable String identity) {
+        this.identity = identity;
+    }
+
+    void setPermit(@Nullable AdmissionController.Permit permit) {
+        this.permit.set(permit);
+    }
+
+    /**
+     * Take ownership of the admission permit.  A handler which completes
+     * the response asynchronously takes the permit so that it is released
+     * when the transfer ends rather than when the handler returns.
+     */
+    @Nullable
+    AdmissionController.Permit takePermit() {
+        return permit.getAndSet(null);
+    }
+
+    void setBodyBuffer(byte[] bodyBuffer) {
+        this.bodyBuffer = bodyBuffer;
+    }
+
+    /**
+     * Return the pooled body buffer of the context attached to request, if
+     * any.  Called once the request has been handled, successfully or not.
+     */
+    static void releaseBodyBuffer(HttpServletRequest request) {
+        RequestContext context = (RequestContext) request.getAttribute(
+                ATTRIBUTE);
+        if (context != null && context.bodyBuffer != null) {
+            BufferPool.getInstance().release(context.bodyBuffer);
+            context.bodyBuffer = null;
+        }
+    }
+
+    /** Authorization header or null if the request uses query auth. */
+    @Nullable
+    String getAuthorization() {
+        return getHeader(HttpHeaders.AUTHORIZATION);
+    }
+}
@@ -25,13 +25,19 @@ import java.net.URISyntaxException;
 import java.util.Collection;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
 import org.eclipse.jetty.http.HttpCompliance;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
@@ -39,6 +45,7 @@ import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.jclouds.blobstore.BlobStore;
 
 /**
@@ -75,8 +82,19 @@ public final class S3Proxy {
                 !Strings.isNullOrEmpty(builder.credential),
                 "Must provide both identity and credential");
 
-        QueuedThreadPool pool = new QueuedThreadPool(builder.jettyMaxThreads);
-        pool.setName("S3Proxy-Jetty");
+        checkArgument(!builder.virtualThreads ||
+                VirtualThreads.isSupported(),
+                "virtual threads require Java 21 or newer");
+
+        ThreadPool pool;
+        if (builder.virtualThreads) {
+            pool = new VirtualThreadPool("S3Proxy-Jetty");
+        } else {
+            QueuedThreadPool queuedPool = new QueuedThreadPool(
+                    builder.jettyMaxThreads);
+            queuedPool.setName("S3Proxy-Jetty");
+            pool = queuedPool;
+        }
         server = new Server(pool);
 
         if (builder.servicePath != null && !builder.servicePath.isEmpty()) {
@@ -84,12 +102,18 @@ public final class S3Proxy {
             context.setContextPath(builder.servicePath);
         }
 
+        HttpConfiguration httpConfiguration = new HttpConfiguration();
         HttpConnectionFactory httpConnectionFactory =
                 new HttpConnectionFactory(
-                        new HttpConfiguration(), HttpCompliance.LEGACY);
+                        httpConfiguration, HttpCompliance.LEGACY);
         ServerConnector connector;
         if (builder.endpoint != null) {
-            connector = new ServerConnector(server, httpConnectionFactory);
+            if (builder.h2c) {
+                connector = new ServerConnector(server, httpConnectionFactory,
+                        new HTTP2CServerConnectionFactory(httpConfiguration));
+            } else {
+                connector = new ServerConnector(server, httpConnectionFactory);
+            }
             connector.setHost(builder.endpoint.getHost());
             connector.setPort(builder.endpoint.getPort());
             server.addConnector(connector);
@@ -102,8 +126,20 @@ public final class S3Proxy {
             SslContextFactory sslContextFactory = new SslContextFactory();
             sslContextFactory.setKeyStorePath(builder.keyStorePath);
             sslContextFactory.setKeyStorePassword(builder.keyStorePassword);
-            connector = new ServerConnector(server, sslContextFactory,
-                    httpConnectionFactory);
+            if (builder.http2) {
+                // HTTP/2 forbids the weak ciphers that TLS 1.2 still allows
+                sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
+                ALPNServerConnectionFactory alpn =
+                        new ALPNServerConnectionFactory();
+                alpn.setDefaultProtocol(httpConnectionFactory.getProtocol());
+                connector = new ServerConnector(server, sslContextFactory,
+                        alpn, new HTTP2ServerConnectionFactory(
+                                httpConfiguration),
+                        httpConnectionFactory);
+            } else {
+                connector = new ServerConnector(server, sslContextFactory,
+                        httpConnectionFactory);
+            }
             connector.setHost(builder.secureEndpoint.getHost());
             connector.setPort(builder.secureEndpoint.getPort());
             server.addConnector(connector);
@@ -111,13 +147,29 @@ public final class S3Proxy {
         } else {
             listenHTTPS = false;
         }
+        AdmissionController admissionController = null;
+        if (builder.maxRequestsPerIdentity > 0 ||
+                builder.maxRequestsPerBucket > 0) {
+            admissionController = new AdmissionController(
+                    builder.maxRequestsPerIdentity,
+                    builder.maxRequestsPerBucket, builder.maxQueuedRequests,
+                    builder.maxQueueWaitMillis);
+            MBeans.register("AdmissionController", "default",
+                    admissionController);
+        }
+
         handler = new S3ProxyHandlerJetty(builder.blobStore,
                 builder.authenticationType, builder.identity,
                 builder.credential, builder.virtualHost,
                 builder.maxSinglePartObjectSize,
                 builder.v4MaxNonChunkedRequestSize,
                 builder.ignoreUnknownHeaders, builder.corsRules,
-                builder.servicePath, builder.maximumTimeSkew);
+                builder.servicePath, builder.maximumTimeSkew,
+                builder.asyncDownloads, builder.filesystemSendfile,
+                admissionController, builder.streamingPayloadVerification,
+                builder.streamingListings, builder.trustedIdentities,
+                builder.trustedMaxKeys, builder.continuationTokenKey,
+                builder.revalidationFastPath);
         server.setHandler(handler);
     }
 
@@ -139,6 +191,21 @@ public final class S3Proxy {
         private CrossOriginResourceSharing corsRules;
         private int jettyMaxThreads = 200;  // sourced from QueuedThreadPool()
         private int maximumTimeSkew = 15 * 60;
+        private boolean asyncDownloads;
+        private boolean virtualThreads;
+        private boolean filesystemSendfile;
+        private boolean http2;
+        private boolean h2c;
+        private int maxRequestsPerIdentity;
+        private int maxRequestsPerBucket;
+        private int maxQueuedRequests = 100;
+        private long maxQueueWaitMillis = 1000;
+        private boolean streamingPayloadVerification;
+        private boolean streamingListings;
+        private Set<String> trustedIdentities = ImmutableSet.of();
+        private int trustedMaxKeys = 1000;
+        private String continuationTokenKey;
+        private boolean revalidationFastPath;
 
         Builder() {
         }
@@ -294,6 +361,104 @@ public final class S3Proxy {
                 builder.maximumTimeSkew(Integer.parseInt(maximumTimeSkew));
             }
 
+            String asyncDownloads = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_JETTY_ASYNC_DOWNLOADS);
+            if (!Strings.isNullOrEmpty(asyncDownloads)) {
+                builder.asyncDownloads(Boolean.parseBoolean(asyncDownloads));
+            }
+
+            String virtualThreads = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_JETTY_VIRTUAL_THREADS);
+            if (!Strings.isNullOrEmpty(virtualThreads)) {
+                builder.virtualThreads(Boolean.parseBoolean(virtualThreads));
+            }
+
+            String filesystemSendfile = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_FILESYSTEM_SENDFILE);
+            if (!Strings.isNullOrEmpty(filesystemSendfile)) {
+                builder.filesystemSendfile(
+                        Boolean.parseBoolean(filesystemSendfile));
+            }
+
+            String http2 = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_JETTY_HTTP2);
+            if (!Strings.isNullOrEmpty(http2)) {
+                builder.http2(Boolean.parseBoolean(http2));
+            }
+
+            String h2c = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_JETTY_H2C);
+            if (!Strings.isNullOrEmpty(h2c)) {
+                builder.h2c(Boolean.parseBoolean(h2c));
+            }
+
+            String maxRequestsPerIdentity = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_MAX_REQUESTS_PER_IDENTITY);
+            if (!Strings.isNullOrEmpty(maxRequestsPerIdentity)) {
+                builder.maxRequestsPerIdentity(
+                        Integer.parseInt(maxRequestsPerIdentity));
+            }
+
+            String maxRequestsPerBucket = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_MAX_REQUESTS_PER_BUCKET);
+            if (!Strings.isNullOrEmpty(maxRequestsPerBucket)) {
+                builder.maxRequestsPerBucket(
+                        Integer.parseInt(maxRequestsPerBucket));
+            }
+
+            String maxQueuedRequests = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_MAX_QUEUED_REQUESTS);
+            if (!Strings.isNullOrEmpty(maxQueuedRequests)) {
+                builder.maxQueuedRequests(Integer.parseInt(maxQueuedRequests));
+            }
+
+            String maxQueueWaitMillis = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_MAX_QUEUE_WAIT_MILLISECONDS);
+            if (!Strings.isNullOrEmpty(maxQueueWaitMillis)) {
+                builder.maxQueueWaitMillis(Long.parseLong(maxQueueWaitMillis));
+            }
+
+            String streamingPayloadVerification = properties.getProperty(
+                    S3ProxyConstants
+                            .PROPERTY_V4_STREAMING_PAYLOAD_VERIFICATION);
+            if (!Strings.isNullOrEmpty(streamingPayloadVerification)) {
+                builder.streamingPayloadVerification(
+                        Boolean.parseBoolean(streamingPayloadVerification));
+            }
+
+            String streamingListings = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_STREAMING_LISTINGS);
+            if (!Strings.isNullOrEmpty(streamingListings)) {
+                builder.streamingListings(
+                        Boolean.parseBoolean(streamingListings));
+            }
+
+            String trustedIdentities = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_TRUSTED_IDENTITIES);
+            if (!Strings.isNullOrEmpty(trustedIdentities)) {
+                builder.trustedIdentities(Splitter.on(',').trimResults()
+                        .omitEmptyStrings().split(trustedIdentities));
+            }
+
+            String trustedMaxKeys = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_TRUSTED_MAX_KEYS);
+            if (!Strings.isNullOrEmpty(trustedMaxKeys)) {
+                builder.trustedMaxKeys(Integer.parseInt(trustedMaxKeys));
+            }
+
+            String continuationTokenKey = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_CONTINUATION_TOKEN_KEY);
+            if (!Strings.isNullOrEmpty(continuationTokenKey)) {
+                builder.continuationTokenKey(continuationTokenKey);
+            }
+
+            String revalidationFastPath = properties.getProperty(
+                    S3ProxyConstants.PROPERTY_REVALIDATION_FAST_PATH);
+            if (!Strings.isNullOrEmpty(revalidationFastPath)) {
+                builder.revalidationFastPath(
+                        Boolean.parseBoolean(revalidationFastPath));
+            }
+
             return builder;
         }
 
@@ -372,6 +537,86 @@ public final class S3Proxy {
             return this;
         }
 
+        public Builder asyncDownloads(boolean asyncDownloads) {
+            this.asyncDownloads = asyncDownloads;
+            return this;
+        }
+
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        public Builder filesystemSendfile(boolean filesystemSendfile) {
+            this.filesystemSendfile = filesystemSendfile;
+            return this;
+        }
+
+        public Builder http2(boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        public Builder h2c(boolean h2c) {
+            this.h2c = h2c;
+            return this;
+        }
+
+        public Builder maxRequestsPerIdentity(int maxRequestsPerIdentity) {
+            this.maxRequestsPerIdentity = maxRequestsPerIdentity;
+            return this;
+        }
+
+        public Builder maxRequestsPerBucket(int maxRequestsPerBucket) {
+            this.maxRequestsPerBucket = maxRequestsPerBucket;
+            return this;
+        }
+
+        public Builder maxQueuedRequests(int maxQueuedRequests) {
+            this.maxQueuedRequests = maxQueuedRequests;
+            return this;
+        }
+
+        public Builder maxQueueWaitMillis(long maxQueueWaitMillis) {
+            this.maxQueueWaitMillis = maxQueueWaitMillis;
+            return this;
+        }
+
+        public Builder streamingPayloadVerification(
+                boolean streamingPayloadVerification) {
+            this.streamingPayloadVerification = streamingPayloadVerification;
+            return this;
+        }
+
+        public Builder streamingListings(boolean streamingListings) {
+            this.streamingListings = streamingListings;
+            return this;
+        }
+
+        public Builder trustedIdentities(Iterable<String> trustedIdentities) {
+            this.trustedIdentities = ImmutableSet.copyOf(trustedIdentities);
+            return this;
+        }
+
+        public Builder trustedMaxKeys(int trustedMaxKeys) {
+            checkArgument(trustedMaxKeys >= 1000,
+                    "Must be at least 1000, was: %s", trustedMaxKeys);
+            this.trustedMaxKeys = trustedMaxKeys;
+            return this;
+        }
+
+        public Builder continuationTokenKey(String continuationTokenKey) {
+            checkArgument(!continuationTokenKey.isEmpty(),
+                    "Must provide a non-empty continuation token key");
+            this.continuationTokenKey = continuationTokenKey;
+            return this;
+        }
+
+        public Builder revalidationFastPath(boolean revalidationFastPath) {
+            this.revalidationFastPath = revalidationFastPath;
+            return this;
+        }
+
         public Builder servicePath(String s3ProxyServicePath) {
             String path = Strings.nullToEmpty(s3ProxyServicePath);
 
@@ -427,6 +672,24 @@ public final class S3Proxy {
                     this.v4MaxNonChunkedRequestSize ==
                             that.v4MaxNonChunkedRequestSize &&
                     this.ignoreUnknownHeaders == that.ignoreUnknownHeaders &&
+                    this.asyncDownloads == that.asyncDownloads &&
+                    this.virtualThreads == that.virtualThreads &&
+                    this.filesystemSendfile == that.filesystemSendfile &&
+                    this.http2 == that.http2 &&
+                    this.h2c == that.h2c &&
+                    this.maxRequestsPerIdentity ==
+                            that.maxRequestsPerIdentity &&
+                    this.maxRequestsPerBucket == that.maxRequestsPerBucket &&
+                    this.maxQueuedRequests == that.maxQueuedRequests &&
+                    this.maxQueueWaitMillis == that.maxQueueWaitMillis &&
+                    this.streamingPayloadVerification ==
+                            that.streamingPayloadVerification &&
+                    this.streamingListings == that.streamingListings &&
+                    this.trustedIdentities.equals(that.trustedIdentities) &&
+                    this.trustedMaxKeys == that.trustedMaxKeys &&
+                    Objects.equals(this.continuationTokenKey,
+                            that.continuationTokenKey) &&
+                    this.revalidationFastPath == that.revalidationFastPath &&
                     this.corsRules.equals(that.corsRules);
         }
 
@@ -435,7 +698,12 @@ public final class S3Proxy {
             return Objects.hash(endpoint, secureEndpoint, keyStorePath,
                     keyStorePassword, virtualHost, servicePath,
                     maxSinglePartObjectSize, v4MaxNonChunkedRequestSize,
-                    ignoreUnknownHeaders, corsRules);
+                    ignoreUnknownHeaders, asyncDownloads, virtualThreads,
+                    filesystemSendfile, http2, h2c, maxRequestsPerIdentity,
+                    maxRequestsPerBucket, maxQueuedRequests,
+                    maxQueueWaitMillis, streamingPayloadVerification,
+                    streamingListings, trustedIdentities, trustedMaxKeys,
+                    continuationTokenKey, revalidationFastPath, corsRules);
         }
     }
 
@@ -477,6 +745,10 @@ public final class S3Proxy {
         return server.getState();
     }
 
+    public BlobStoreLocator getBlobStoreLocator() {
+        return handler.getHandler().getBlobStoreLocator();
+    }
+
     public void setBlobStoreLocator(BlobStoreLocator lookup) {
         handler.getHandler().setBlobStoreLocator(lookup);
     }
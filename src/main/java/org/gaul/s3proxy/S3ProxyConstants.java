@@ -50,6 +50,65 @@ public final class S3ProxyConstants {
             "s3proxy.keystore-password";
     public static final String PROPERTY_JETTY_MAX_THREADS =
             "s3proxy.jetty.max-threads";
+    /**
+     * When true, stream GET payloads with the Servlet 3.1 non-blocking API
+     * so that slow clients do not hold a Jetty thread for the whole transfer.
+     */
+    public static final String PROPERTY_JETTY_ASYNC_DOWNLOADS =
+            "s3proxy.jetty.async-downloads";
+    /**
+     * When true, run request handling and backend calls on virtual threads
+     * instead of fixed pools.  Requires Java 21 or newer.
+     */
+    public static final String PROPERTY_JETTY_VIRTUAL_THREADS =
+            "s3proxy.jetty.virtual-threads";
+    /**
+     * When true, serve GETs from the filesystem provider by mapping the
+     * backing file instead of copying it through heap buffers.
+     */
+    public static final String PROPERTY_FILESYSTEM_SENDFILE =
+            "s3proxy.filesystem.sendfile";
+    /** Negotiate HTTP/2 via ALPN on the secure endpoint. */
+    public static final String PROPERTY_JETTY_HTTP2 = "s3proxy.jetty.http2";
+    /** Accept cleartext HTTP/2 (h2c) on the plain endpoint. */
+    public static final String PROPERTY_JETTY_H2C = "s3proxy.jetty.h2c";
+    /** Concurrent requests allowed per identity, 0 for unlimited. */
+    public static final String PROPERTY_MAX_REQUESTS_PER_IDENTITY =
+            "s3proxy.admission.max-requests-per-identity";
+    /** Concurrent requests allowed per bucket, 0 for unlimited. */
+    public static final String PROPERTY_MAX_REQUESTS_PER_BUCKET =
+            "s3proxy.admission.max-requests-per-bucket";
+    /** Requests which may wait for a permit before SlowDown is returned. */
+    public static final String PROPERTY_MAX_QUEUED_REQUESTS =
+            "s3proxy.admission.max-queued-requests";
+    /** How long a queued request waits for a permit. */
+    public static final String PROPERTY_MAX_QUEUE_WAIT_MILLISECONDS =
+            "s3proxy.admission.max-queue-wait-milliseconds";
+    /**
+     * When true, write listing entries as each backend page arrives and
+     * fetch the next page of truncated listings in the background.
+     */
+    public static final String PROPERTY_STREAMING_LISTINGS =
+            "s3proxy.listing.streaming";
+    /** Comma-separated identities which may request more than 1000 keys. */
+    public static final String PROPERTY_TRUSTED_IDENTITIES =
+            "s3proxy.listing.trusted-identities";
+    /** Largest max-keys honored for trusted identities. */
+    public static final String PROPERTY_TRUSTED_MAX_KEYS =
+            "s3proxy.listing.trusted-max-keys";
+    /**
+     * Secret used to sign listing continuation tokens for backends with
+     * opaque markers.  Instances behind one load balancer must share it;
+     * when unset each process uses a random key.
+     */
+    public static final String PROPERTY_CONTINUATION_TOKEN_KEY =
+            "s3proxy.listing.continuation-token-key";
+    /**
+     * When true, evaluate If-None-Match and If-Modified-Since against blob
+     * metadata before reading a blob, answering 304 without opening it.
+     */
+    public static final String PROPERTY_REVALIDATION_FAST_PATH =
+            "s3proxy.revalidation-fast-path";
 
     /** Request attributes. */
     public static final String ATTRIBUTE_QUERY_ENCODING = "queryEncoding";
@@ -66,6 +125,13 @@ public final class S3ProxyConstants {
             "s3proxy.max-single-part-object-size";
     public static final String PROPERTY_V4_MAX_NON_CHUNKED_REQUEST_SIZE =
             "s3proxy.v4-max-non-chunked-request-size";
+    /**
+     * When true, verify x-amz-content-sha256 while signed v4 bodies stream
+     * to the backend instead of buffering them, lifting the
+     * v4-max-non-chunked-request-size limit.
+     */
+    public static final String PROPERTY_V4_STREAMING_PAYLOAD_VERIFICATION =
+            "s3proxy.v4-streaming-payload-verification";
     /** Used to locate blobstores by specified bucket names. Each property
      * file should contain a list of buckets associated with it, e.g.
      *     s3proxy.bucket-locator.1 = data
@@ -78,6 +144,13 @@ public final class S3ProxyConstants {
      */
     public static final String PROPERTY_BUCKET_LOCATOR =
             "s3proxy.bucket-locator";
+    /**
+     * When true, watch the properties files and reload identities,
+     * credentials, bucket locators and backends when they change.  Backends
+     * whose configuration did not change are kept.
+     */
+    public static final String PROPERTY_CONFIG_RELOAD =
+            "s3proxy.config-reload";
     /** When true, model eventual consistency using two storage backends. */
     public static final String PROPERTY_EVENTUAL_CONSISTENCY =
             "s3proxy.eventual-consistency";
@@ -111,6 +184,63 @@ public final class S3ProxyConstants {
     /** The suffix to append to existing blob names when creating mask files. */
     public static final String PROPERTY_OVERLAY_BLOBSTORE_MASK_SUFFIX =
             "s3proxy.overlay-blobstore.mask-suffix";
+    /** When true, save upstream blobs locally as they are read. */
+    public static final String PROPERTY_OVERLAY_BLOBSTORE_PROMOTE_ON_READ =
+            "s3proxy.overlay-blobstore.promote-on-read";
+    /**
+     * How often, in milliseconds, to commit local writes and deletes
+     * upstream.  Zero, the default, keeps changes local.
+     */
+    public static final String PROPERTY_OVERLAY_BLOBSTORE_COMMIT_INTERVAL =
+            "s3proxy.overlay-blobstore.commit-interval-milliseconds";
+    /** Number of upstream operations a commit runs in parallel. */
+    public static final String PROPERTY_OVERLAY_BLOBSTORE_COMMIT_THREADS =
+            "s3proxy.overlay-blobstore.commit-threads";
+    /** Maximum upstream operations per second a commit issues. */
+    public static final String PROPERTY_OVERLAY_BLOBSTORE_COMMIT_RATE =
+            "s3proxy.overlay-blobstore.commit-rate";
+    /**
+     * When true, cache listing pages for a short time.  Writes through
+     * S3Proxy invalidate affected pages; other writers are seen after the
+     * TTL expires.
+     */
+    public static final String PROPERTY_LISTING_CACHE =
+            "s3proxy.listing-cache";
+    /** How long a listing page is cached. */
+    public static final String PROPERTY_LISTING_CACHE_TTL_MILLISECONDS =
+            "s3proxy.listing-cache.ttl-milliseconds";
+    /** Maximum number of cached listing pages. */
+    public static final String PROPERTY_LISTING_CACHE_SIZE =
+            "s3proxy.listing-cache.size";
+    /**
+     * When true, cache blob metadata for HEAD and conditional requests.
+     * Writes through S3Proxy invalidate affected entries; other writers are
+     * seen after the TTL expires.
+     */
+    public static final String PROPERTY_METADATA_CACHE =
+            "s3proxy.metadata-cache";
+    /** How long blob metadata is cached. */
+    public static final String PROPERTY_METADATA_CACHE_TTL_MILLISECONDS =
+            "s3proxy.metadata-cache.ttl-milliseconds";
+    /** Maximum number of cached blob metadata entries. */
+    public static final String PROPERTY_METADATA_CACHE_SIZE =
+            "s3proxy.metadata-cache.size";
+    /**
+     * When true, answer lookups of missing keys from a Bloom filter of each
+     * bucket's keys.  Keys written by other clients are reported missing
+     * until the filter is rebuilt.
+     */
+    public static final String PROPERTY_NEGATIVE_LOOKUP_CACHE =
+            "s3proxy.negative-lookup-cache";
+    /**
+     * How often, in milliseconds, to rebuild each filter from a listing.
+     * Zero rebuilds a filter only once it is full.
+     */
+    public static final String PROPERTY_NEGATIVE_LOOKUP_CACHE_REBUILD =
+            "s3proxy.negative-lookup-cache.rebuild-milliseconds";
+    /** Target false positive probability of each filter. */
+    public static final String PROPERTY_NEGATIVE_LOOKUP_CACHE_FPP =
+            "s3proxy.negative-lookup-cache.false-positive-probability";
 
     /** Maximum time skew allowed in signed requests. */
     public static final String PROPERTY_MAXIMUM_TIME_SKEW =
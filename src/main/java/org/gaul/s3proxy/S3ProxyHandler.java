@@ -18,6 +18,7 @@ package org.gaul.s3proxy;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,10 +35,12 @@ import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -47,12 +50,21 @@ import java.util.SortedMap;
 import java.util.TimeZone;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.stream.XMLOutputFactory;
@@ -64,8 +76,11 @@ import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.google.common.base.CharMatcher;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
@@ -79,9 +94,11 @@ import com.google.common.hash.HashingInputStream;
 import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
-import com.google.common.net.HostAndPort;
 import com.google.common.net.HttpHeaders;
 import com.google.common.net.PercentEscaper;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.apache.commons.fileupload.MultipartStream;
 import org.jclouds.blobstore.BlobStore;
@@ -186,11 +203,31 @@ public class S3ProxyHandler {
     );
     private static final String XML_CONTENT_TYPE = "application/xml";
     private static final String UTF_8 = "UTF-8";
+    private static final Map<String, Map<Target, List<Route>>> ROUTES =
+            createRoutes();
     /** URLEncoder escapes / which we do not want. */
     private static final Escaper urlEscaper = new PercentEscaper(
             "*-./_", /*plusForSpace=*/ false);
     @SuppressWarnings("deprecation")
     private static final HashFunction MD5 = Hashing.md5();
+    /** Maximum number of backend reads for one multi-range GET. */
+    private static final int MAX_RANGE_SPANS = 16;
+    /** Ranges closer than this share a backend read. */
+    private static final long RANGE_COALESCE_GAP = 64 * 1024;
+    /** Backend range reads in flight across all multi-range GETs. */
+    private static final int RANGE_THREADS = 64;
+    private static final ExecutorService rangeExecutor =
+            Executors.newFixedThreadPool(RANGE_THREADS,
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("S3Proxy-range-%d")
+                            .setDaemon(true)
+                            .build());
+    /** Keys requested from the backend in a single list call. */
+    private static final int LIST_PAGE_SIZE = 1000;
+    /** Background list calls running and queued across all listings. */
+    private static final int LIST_THREADS = 32;
+    private static final int LIST_QUEUE_SIZE = 256;
+    private static final ExecutorService listExecutor = newListExecutor();
 
     private final boolean anonymousIdentity;
     private final AuthenticationType authenticationType;
@@ -201,23 +238,58 @@ public class S3ProxyHandler {
     private final CrossOriginResourceSharing corsRules;
     private final String servicePath;
     private final int maximumTimeSkew;
+    private final boolean asyncDownloads;
+    private final boolean filesystemSendfile;
+    @Nullable private final AdmissionController admissionController;
+    private final boolean streamingPayloadVerification;
+    private final boolean streamingListings;
+    private final Set<String> trustedIdentities;
+    private final int trustedMaxKeys;
+    private final ContinuationTokens continuationTokens;
+    /** Counters of the revalidation fast path or null if disabled. */
+    @Nullable private final RevalidationStats revalidationStats;
+    /** Presigned URL cache keys mapped to the URL expiry. */
+    private final Cache<String, Long> verifiedPresignedUrls =
+            CacheBuilder.newBuilder()
+                    .maximumSize(10000)
+                    .expireAfterWrite(1, TimeUnit.HOURS)
+                    .build();
     private final XmlMapper mapper = new XmlMapper();
     private final XMLOutputFactory xmlOutputFactory =
             XMLOutputFactory.newInstance();
-    private BlobStoreLocator blobStoreLocator;
+    private volatile BlobStoreLocator blobStoreLocator;
     // TODO: hack to allow per-request anonymous access
     private final BlobStore defaultBlobStore;
     /**
      * S3 supports arbitrary keys for the marker while some blobstores only
-     * support opaque markers.  Emulate the common case for these by mapping
-     * the last key from a listing to the corresponding previously returned
-     * marker.
+     * support opaque markers.  ListObjectsV2 and NextMarker carry the opaque
+     * marker in a signed token.  Emulate the common case of ListObjects
+     * clients which resume from the last key by mapping it to the
+     * corresponding previously returned marker.
      */
     private final Cache<Map.Entry<String, String>, String> lastKeyToMarker =
             CacheBuilder.newBuilder()
             .maximumSize(10000)
             .expireAfterWrite(10, TimeUnit.MINUTES)
             .build();
+    /**
+     * Next page of truncated streaming listings, fetched while the client
+     * processes the current page.  Entries are short-lived so a client
+     * which pages slowly re-reads the backend.
+     */
+    private final Cache<List<Object>,
+            Future<PageSet<? extends StorageMetadata>>> prefetchedListings =
+            CacheBuilder.newBuilder()
+            .maximumSize(100)
+            .expireAfterWrite(10, TimeUnit.SECONDS)
+            .<List<Object>, Future<PageSet<? extends StorageMetadata>>>
+                    removalListener(notification -> {
+                        // explicit removals are taken by the next request
+                        if (notification.getCause() != RemovalCause.EXPLICIT) {
+                            notification.getValue().cancel(true);
+                        }
+                    })
+            .build();
 
     public S3ProxyHandler(final BlobStore blobStore,
             AuthenticationType authenticationType, final String identity,
@@ -225,7 +297,13 @@ public class S3ProxyHandler {
             long maxSinglePartObjectSize, long v4MaxNonChunkedRequestSize,
             boolean ignoreUnknownHeaders,
             @Nullable CrossOriginResourceSharing corsRules,
-            final String servicePath, int maximumTimeSkew) {
+            final String servicePath, int maximumTimeSkew,
+            boolean asyncDownloads, boolean filesystemSendfile,
+            @Nullable AdmissionController admissionController,
+            boolean streamingPayloadVerification, boolean streamingListings,
+            Set<String> trustedIdentities, int trustedMaxKeys,
+            @Nullable String continuationTokenKey,
+            boolean revalidationFastPath) {
         if (corsRules != null) {
             this.corsRules = corsRules;
         } else {
@@ -266,6 +344,25 @@ public class S3ProxyHandler {
                 Boolean.FALSE);
         this.servicePath = Strings.nullToEmpty(servicePath);
         this.maximumTimeSkew = maximumTimeSkew;
+        this.asyncDownloads = asyncDownloads;
+        this.filesystemSendfile = filesystemSendfile;
+        this.admissionController = admissionController;
+        this.streamingPayloadVerification = streamingPayloadVerification;
+        this.streamingListings = streamingListings;
+        this.trustedIdentities = ImmutableSet.copyOf(trustedIdentities);
+        this.trustedMaxKeys = trustedMaxKeys;
+        if (continuationTokenKey != null) {
+            this.continuationTokens = new ContinuationTokens(
+                    continuationTokenKey.getBytes(StandardCharsets.UTF_8));
+        } else {
+            this.continuationTokens = ContinuationTokens.withRandomKey();
+        }
+        if (revalidationFastPath) {
+            this.revalidationStats = new RevalidationStats();
+            MBeans.register("Revalidation", "default", revalidationStats);
+        } else {
+            this.revalidationStats = null;
+        }
     }
 
     private static String getBlobStoreType(BlobStore blobStore) {
@@ -287,76 +384,53 @@ public class S3ProxyHandler {
     public final void doHandle(HttpServletRequest baseRequest,
             HttpServletRequest request, HttpServletResponse response,
             InputStream is) throws IOException, S3Exception {
-        String method = request.getMethod();
-        String uri = request.getRequestURI();
-        String originalUri = request.getRequestURI();
-
-        if (!this.servicePath.isEmpty()) {
-            if (uri.length() > this.servicePath.length()) {
-                uri = uri.substring(this.servicePath.length());
-            }
-        }
+        RequestContext context = new RequestContext(request, servicePath,
+                virtualHost);
+        context.attach(request);
+        String method = context.getMethod();
+        String uri = context.getUri();
 
         logger.debug("request: {}", request);
-        String hostHeader = request.getHeader(HttpHeaders.HOST);
-        if (hostHeader != null && virtualHost.isPresent()) {
-            hostHeader = HostAndPort.fromString(hostHeader).getHost();
-            String virtualHostSuffix = "." + virtualHost.get();
-            if (!hostHeader.equals(virtualHost.get())) {
-                if (hostHeader.endsWith(virtualHostSuffix)) {
-                    String bucket = hostHeader.substring(0,
-                            hostHeader.length() - virtualHostSuffix.length());
-                    uri = "/" + bucket + uri;
-                } else {
-                    String bucket = hostHeader.toLowerCase();
-                    uri = "/" + bucket + uri;
-                }
-            }
-        }
 
         // TODO: fake
         response.addHeader(AwsHttpHeaders.REQUEST_ID, FAKE_REQUEST_ID);
 
-        boolean hasDateHeader = false;
-        boolean hasXAmzDateHeader = false;
-        for (String headerName : Collections.list(request.getHeaderNames())) {
-            for (String headerValue : Collections.list(request.getHeaders(
-                    headerName))) {
-                logger.debug("header: {}: {}", headerName,
-                        Strings.nullToEmpty(headerValue));
-            }
-            if (headerName.equalsIgnoreCase(HttpHeaders.DATE)) {
-                hasDateHeader = true;
-            } else if (headerName.equalsIgnoreCase(AwsHttpHeaders.DATE)) {
-                if (!Strings.isNullOrEmpty(request.getHeader(
-                        AwsHttpHeaders.DATE))) {
-                    hasXAmzDateHeader = true;
+        if (logger.isDebugEnabled()) {
+            for (String headerName : context.getHeaderNames()) {
+                for (String headerValue : context.getHeaders(headerName)) {
+                    logger.debug("header: {}: {}", headerName, headerValue);
                 }
             }
         }
-        boolean haveBothDateHeader = false;
-        if (hasDateHeader && hasXAmzDateHeader) {
-            haveBothDateHeader = true;
-        }
+        boolean hasDateHeader = context.hasDateHeader();
+        boolean hasXAmzDateHeader = context.hasXAmzDateHeader();
 
         // when access information is not provided in request header,
         // treat it as anonymous, return all public accessible information
         if (!anonymousIdentity &&
                 (method.equals("GET") || method.equals("HEAD") ||
                 method.equals("POST") || method.equals("OPTIONS")) &&
-                request.getHeader(HttpHeaders.AUTHORIZATION) == null &&
+                context.getAuthorization() == null &&
                 // v2 or /v4
-                request.getParameter("X-Amz-Algorithm") == null && // v4 query
-                request.getParameter("AWSAccessKeyId") == null &&  // v2 query
+                context.getParameter("X-Amz-Algorithm") == null && // v4 query
+                context.getParameter("AWSAccessKeyId") == null &&  // v2 query
                 defaultBlobStore != null) {
-            doHandleAnonymous(request, response, is, uri, defaultBlobStore);
+            String[] anonymousPath = context.getPath();
+            context.setPermit(admit(null,
+                    anonymousPath.length > 1 ? anonymousPath[1] : null));
+            try {
+                doHandleAnonymous(request, response, is, uri,
+                        defaultBlobStore);
+            } finally {
+                closePermit(context);
+            }
             return;
         }
 
         // should according the AWSAccessKeyId=  Signature  or auth header nil
         if (!anonymousIdentity && !hasDateHeader && !hasXAmzDateHeader &&
-                request.getParameter("X-Amz-Date") == null &&
-                request.getParameter("Expires") == null) {
+                context.getParameter("X-Amz-Date") == null &&
+                context.getParameter("Expires") == null) {
             throw new S3Exception(S3ErrorCode.ACCESS_DENIED,
                     "AWS authentication requires a valid Date or" +
                     " x-amz-date header");
@@ -365,114 +439,17 @@ public class S3ProxyHandler {
 
         BlobStore blobStore;
         String requestIdentity = null;
-        String headerAuthorization = request.getHeader(
-                HttpHeaders.AUTHORIZATION);
         S3AuthorizationHeader authHeader = null;
         boolean presignedUrl = false;
 
         if (!anonymousIdentity) {
-            if (Strings.isNullOrEmpty(headerAuthorization)) {
-                String algorithm = request.getParameter("X-Amz-Algorithm");
-                if (algorithm == null) { //v2 query
-                    String identity = request.getParameter("AWSAccessKeyId");
-                    String signature = request.getParameter("Signature");
-                    if (identity == null || signature == null) {
-                        throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
-                    }
-                    headerAuthorization = "AWS " + identity + ":" + signature;
-                    presignedUrl = true;
-                } else if (algorithm.equals("AWS4-HMAC-SHA256")) { //v4 query
-                    String credential = request.getParameter(
-                            "X-Amz-Credential");
-                    String signedHeaders = request.getParameter(
-                            "X-Amz-SignedHeaders");
-                    String signature = request.getParameter(
-                            "X-Amz-Signature");
-                    if (credential == null || signedHeaders == null ||
-                            signature == null) {
-                        throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
-                    }
-                    headerAuthorization = "AWS4-HMAC-SHA256" +
-                            " Credential=" + credential +
-                            ", requestSignedHeaders=" + signedHeaders +
-                            ", Signature=" + signature;
-                    presignedUrl = true;
-                } else {
-                    throw new IllegalArgumentException("unknown algorithm: " +
-                            algorithm);
-                }
-            }
-
-            try {
-                authHeader = new S3AuthorizationHeader(headerAuthorization);
-                //whether v2 or v4 (normal header and query)
-            } catch (IllegalArgumentException iae) {
-                throw new S3Exception(S3ErrorCode.INVALID_ARGUMENT, iae);
-            }
+            presignedUrl = Strings.isNullOrEmpty(context.getAuthorization());
+            authHeader = parseAuthorizationHeader(context);
             requestIdentity = authHeader.getIdentity();
+            checkTimeSkew(request, context, authHeader);
         }
 
-        long dateSkew = 0; //date for timeskew check
-
-        //v2 GET /s3proxy-1080747708/foo?AWSAccessKeyId=local-identity&Expires=
-        //1510322602&Signature=UTyfHY1b1Wgr5BFEn9dpPlWdtFE%3D)
-        //have no date
-
-        if (!anonymousIdentity) {
-            boolean haveDate = true;
-
-            AuthenticationType finalAuthType = null;
-            if (authHeader.getAuthenticationType() ==
-                    AuthenticationType.AWS_V2 &&
-                    (authenticationType == AuthenticationType.AWS_V2 ||
-                    authenticationType == AuthenticationType.AWS_V2_OR_V4)) {
-                finalAuthType = AuthenticationType.AWS_V2;
-            } else if (
-                authHeader.getAuthenticationType() ==
-                        AuthenticationType.AWS_V4 &&
-                        (authenticationType == AuthenticationType.AWS_V4 ||
-                    authenticationType == AuthenticationType.AWS_V2_OR_V4)) {
-                finalAuthType = AuthenticationType.AWS_V4;
-            } else if (authenticationType != AuthenticationType.NONE) {
-                throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
-            }
-
-            if (hasXAmzDateHeader) { //format diff between v2 and v4
-                if (finalAuthType == AuthenticationType.AWS_V2) {
-                    dateSkew = request.getDateHeader(AwsHttpHeaders.DATE);
-                    dateSkew /= 1000;
-                    //case sensetive?
-                } else if (finalAuthType == AuthenticationType.AWS_V4) {
-                    dateSkew = parseIso8601(request.getHeader(
-                            AwsHttpHeaders.DATE));
-                }
-            } else if (request.getParameter("X-Amz-Date") != null) { // v4 query
-                String dateString = request.getParameter("X-Amz-Date");
-                dateSkew = parseIso8601(dateString);
-            } else if (hasDateHeader) {
-                try {
-                    dateSkew = request.getDateHeader(HttpHeaders.DATE);
-                    dateSkew /= 1000;
-                } catch (IllegalArgumentException iae) {
-                    try {
-                        dateSkew = parseIso8601(request.getHeader(
-                                HttpHeaders.DATE));
-                    } catch (IllegalArgumentException iae2) {
-                        throw new S3Exception(S3ErrorCode.ACCESS_DENIED, iae);
-                    }
-                }
-            } else {
-                haveDate = false;
-            }
-            if (haveDate) {
-                isTimeSkewed(dateSkew);
-            }
-        }
-
-        String[] path = uri.split("/", 3);
-        for (int i = 0; i < path.length; i++) {
-            path[i] = URLDecoder.decode(path[i], UTF_8);
-        }
+        String[] path = context.getPath();
 
         Map.Entry<String, BlobStore> provider =
                 blobStoreLocator.locateBlobStore(
@@ -495,141 +472,405 @@ public class S3ProxyHandler {
             String credential = provider.getKey();
             blobStore = provider.getValue();
 
-            String expiresString = request.getParameter("Expires");
-            if (expiresString != null) { // v2 query
-                long expires = Long.parseLong(expiresString);
-                long nowSeconds = System.currentTimeMillis() / 1000;
-                if (nowSeconds >= expires) {
-                    throw new S3Exception(S3ErrorCode.ACCESS_DENIED,
-                            "Request has expired");
+            checkPresignedUrlExpiry(context);
+            is = verifySignature(request, context, authHeader, credential,
+                    presignedUrl, is);
+            context.setIdentity(requestIdentity);
+        }
+
+        checkUnsupportedParametersAndHeaders(context);
+
+        // Validate container name
+        if (!uri.equals("/") && !isValidContainer(path[1])) {
+            if (method.equals("PUT") &&
+                    (path.length <= 2 || path[2].isEmpty()) &&
+                    !"".equals(context.getParameter("acl")))  {
+                throw new S3Exception(S3ErrorCode.INVALID_BUCKET_NAME);
+            } else {
+                throw new S3Exception(S3ErrorCode.NO_SUCH_BUCKET);
+            }
+        }
+
+        context.setPermit(admit(requestIdentity,
+                path.length > 1 ? path[1] : null));
+        try {
+            doHandleOperation(request, response, is, blobStore, method, uri,
+                    path);
+        } finally {
+            closePermit(context);
+        }
+    }
+
+    /**
+     * Parse the Authorization header or its presigned URL equivalent from
+     * the query parameters.
+     */
+    private static S3AuthorizationHeader parseAuthorizationHeader(
+            RequestContext context) throws S3Exception {
+        String headerAuthorization = context.getAuthorization();
+        if (Strings.isNullOrEmpty(headerAuthorization)) {
+            String algorithm = context.getParameter("X-Amz-Algorithm");
+            if (algorithm == null) { //v2 query
+                String identity = context.getParameter("AWSAccessKeyId");
+                String signature = context.getParameter("Signature");
+                if (identity == null || signature == null) {
+                    throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
                 }
-                if (expires - nowSeconds > TimeUnit.DAYS.toSeconds(365)) {
+                headerAuthorization = "AWS " + identity + ":" + signature;
+            } else if (algorithm.equals("AWS4-HMAC-SHA256")) { //v4 query
+                String credential = context.getParameter(
+                        "X-Amz-Credential");
+                String signedHeaders = context.getParameter(
+                        "X-Amz-SignedHeaders");
+                String signature = context.getParameter(
+                        "X-Amz-Signature");
+                if (credential == null || signedHeaders == null ||
+                        signature == null) {
                     throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
                 }
+                headerAuthorization = "AWS4-HMAC-SHA256" +
+                        " Credential=" + credential +
+                        ", requestSignedHeaders=" + signedHeaders +
+                        ", Signature=" + signature;
+            } else {
+                throw new IllegalArgumentException("unknown algorithm: " +
+                        algorithm);
             }
+        }
 
-            String dateString = request.getParameter("X-Amz-Date");
-            //from para v4 query
-            expiresString = request.getParameter("X-Amz-Expires");
-            if (dateString != null && expiresString != null) { //v4 query
-                long date = parseIso8601(dateString);
-                long expires = Long.parseLong(expiresString);
-                long nowSeconds = System.currentTimeMillis() / 1000;
-                if (nowSeconds >= date + expires) {
-                    throw new S3Exception(S3ErrorCode.ACCESS_DENIED,
-                            "Request has expired");
-                }
-                if (expires > TimeUnit.DAYS.toSeconds(7)) {
-                    throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
+        try {
+            //whether v2 or v4 (normal header and query)
+            return new S3AuthorizationHeader(headerAuthorization);
+        } catch (IllegalArgumentException iae) {
+            throw new S3Exception(S3ErrorCode.INVALID_ARGUMENT, iae);
+        }
+    }
+
+    private void checkTimeSkew(HttpServletRequest request,
+            RequestContext context, S3AuthorizationHeader authHeader)
+            throws S3Exception {
+        //v2 GET /s3proxy-1080747708/foo?AWSAccessKeyId=local-identity&Expires=
+        //1510322602&Signature=UTyfHY1b1Wgr5BFEn9dpPlWdtFE%3D)
+        //have no date
+        long dateSkew = 0; //date for timeskew check
+        boolean haveDate = true;
+
+        AuthenticationType finalAuthType = null;
+        if (authHeader.getAuthenticationType() ==
+                AuthenticationType.AWS_V2 &&
+                (authenticationType == AuthenticationType.AWS_V2 ||
+                authenticationType == AuthenticationType.AWS_V2_OR_V4)) {
+            finalAuthType = AuthenticationType.AWS_V2;
+        } else if (
+            authHeader.getAuthenticationType() ==
+                    AuthenticationType.AWS_V4 &&
+                    (authenticationType == AuthenticationType.AWS_V4 ||
+                authenticationType == AuthenticationType.AWS_V2_OR_V4)) {
+            finalAuthType = AuthenticationType.AWS_V4;
+        } else if (authenticationType != AuthenticationType.NONE) {
+            throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
+        }
+
+        if (context.hasXAmzDateHeader()) { //format diff between v2 and v4
+            if (finalAuthType == AuthenticationType.AWS_V2) {
+                dateSkew = request.getDateHeader(AwsHttpHeaders.DATE);
+                dateSkew /= 1000;
+                //case sensetive?
+            } else if (finalAuthType == AuthenticationType.AWS_V4) {
+                dateSkew = parseIso8601(context.getHeader(
+                        AwsHttpHeaders.DATE));
+            }
+        } else if (context.getParameter("X-Amz-Date") != null) { // v4 query
+            String dateString = context.getParameter("X-Amz-Date");
+            dateSkew = parseIso8601(dateString);
+        } else if (context.hasDateHeader()) {
+            try {
+                dateSkew = request.getDateHeader(HttpHeaders.DATE);
+                dateSkew /= 1000;
+            } catch (IllegalArgumentException iae) {
+                try {
+                    dateSkew = parseIso8601(context.getHeader(
+                            HttpHeaders.DATE));
+                } catch (IllegalArgumentException iae2) {
+                    throw new S3Exception(S3ErrorCode.ACCESS_DENIED, iae);
                 }
             }
-            // The aim ?
-            switch (authHeader.getAuthenticationType()) {
+        } else {
+            haveDate = false;
+        }
+        if (haveDate) {
+            isTimeSkewed(dateSkew);
+        }
+    }
+
+    private static void checkPresignedUrlExpiry(RequestContext context)
+            throws S3Exception {
+        String expiresString = context.getParameter("Expires");
+        if (expiresString != null) { // v2 query
+            long expires = Long.parseLong(expiresString);
+            long nowSeconds = System.currentTimeMillis() / 1000;
+            if (nowSeconds >= expires) {
+                throw new S3Exception(S3ErrorCode.ACCESS_DENIED,
+                        "Request has expired");
+            }
+            if (expires - nowSeconds > TimeUnit.DAYS.toSeconds(365)) {
+                throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
+            }
+        }
+
+        String dateString = context.getParameter("X-Amz-Date");
+        //from para v4 query
+        expiresString = context.getParameter("X-Amz-Expires");
+        if (dateString != null && expiresString != null) { //v4 query
+            long date = parseIso8601(dateString);
+            long expires = Long.parseLong(expiresString);
+            long nowSeconds = System.currentTimeMillis() / 1000;
+            if (nowSeconds >= date + expires) {
+                throw new S3Exception(S3ErrorCode.ACCESS_DENIED,
+                        "Request has expired");
+            }
+            if (expires > TimeUnit.DAYS.toSeconds(7)) {
+                throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
+            }
+        }
+    }
+
+    /**
+     * Check the request signature against credential.  Returns the request
+     * body, which is wrapped to verify its digest or chunk signatures when
+     * these can only be checked while streaming.
+     */
+    private InputStream verifySignature(HttpServletRequest request,
+            RequestContext context, S3AuthorizationHeader authHeader,
+            String credential, boolean presignedUrl, InputStream is)
+            throws IOException, S3Exception {
+        String method = context.getMethod();
+        String uri = context.getUri();
+        String originalUri = context.getOriginalUri();
+        boolean haveBothDateHeader = context.hasDateHeader() &&
+                context.hasXAmzDateHeader();
+
+        // The aim ?
+        switch (authHeader.getAuthenticationType()) {
+        case AWS_V2:
+            switch (authenticationType) {
             case AWS_V2:
-                switch (authenticationType) {
-                case AWS_V2:
-                case AWS_V2_OR_V4:
-                case NONE:
-                    break;
-                default:
-                    throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
-                }
+            case AWS_V2_OR_V4:
+            case NONE:
                 break;
+            default:
+                throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
+            }
+            break;
+        case AWS_V4:
+            switch (authenticationType) {
             case AWS_V4:
-                switch (authenticationType) {
-                case AWS_V4:
-                case AWS_V2_OR_V4:
-                case NONE:
-                    break;
-                default:
-                    throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
-                }
-                break;
+            case AWS_V2_OR_V4:
             case NONE:
                 break;
             default:
-                throw new IllegalArgumentException("Unhandled type: " +
-                        authHeader.getAuthenticationType());
+                throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
             }
+            break;
+        case NONE:
+            break;
+        default:
+            throw new IllegalArgumentException("Unhandled type: " +
+                    authHeader.getAuthenticationType());
+        }
 
-            String expectedSignature = null;
-
-            if (authHeader.getHmacAlgorithm() == null) { //v2
-                // When presigned url is generated, it doesn't consider
-                // service path
-                String uriForSigning = presignedUrl ? uri : this.servicePath +
-                        uri;
-                expectedSignature = AwsSignature.createAuthorizationSignature(
-                        request, uriForSigning, credential, presignedUrl,
-                        haveBothDateHeader);
-            } else {
-                String contentSha256 = request.getHeader(
-                        AwsHttpHeaders.CONTENT_SHA256);
-                try {
-                    byte[] payload;
-                    if (request.getParameter("X-Amz-Algorithm") != null) {
-                        payload = new byte[0];
-                    } else if ("STREAMING-AWS4-HMAC-SHA256-PAYLOAD".equals(
-                            contentSha256)) {
-                        payload = new byte[0];
-                        is = new ChunkedInputStream(is);
-                    } else if ("UNSIGNED-PAYLOAD".equals(contentSha256)) {
-                        payload = new byte[0];
-                    } else {
-                        // buffer the entire stream to calculate digest
-                        // why input stream read contentlength of header?
-                        payload = ByteStreams.toByteArray(ByteStreams.limit(
-                                is, v4MaxNonChunkedRequestSize + 1));
-                        if (payload.length == v4MaxNonChunkedRequestSize + 1) {
+        // CDNs fetch the same presigned URL repeatedly; skip the
+        // signature computation for inputs which already verified
+        String presignedKey = null;
+        Long presignedExpiry = null;
+        if (presignedUrl &&
+                (method.equals("GET") || method.equals("HEAD"))) {
+            presignedExpiry = getPresignedExpiry(context);
+            if (presignedExpiry != null) {
+                presignedKey = createPresignedCacheKey(context,
+                        credential);
+            }
+        }
+        boolean cachedSignature = presignedKey != null &&
+                presignedExpiry.equals(
+                        verifiedPresignedUrls.getIfPresent(presignedKey));
+
+        String expectedSignature = null;
+
+        if (cachedSignature) {
+            logger.trace("presigned URL previously verified");
+        } else if (authHeader.getHmacAlgorithm() == null) { //v2
+            // When presigned url is generated, it doesn't consider
+            // service path
+            String uriForSigning = presignedUrl ? uri : this.servicePath +
+                    uri;
+            expectedSignature = AwsSignature.createAuthorizationSignature(
+                    context, uriForSigning, credential, presignedUrl,
+                    haveBothDateHeader);
+        } else {
+            String contentSha256 = context.getHeader(
+                    AwsHttpHeaders.CONTENT_SHA256);
+            try {
+                byte[] payload;
+                if (context.getParameter("X-Amz-Algorithm") != null) {
+                    payload = new byte[0];
+                } else if ("STREAMING-AWS4-HMAC-SHA256-PAYLOAD".equals(
+                        contentSha256)) {
+                    payload = new byte[0];
+                    String timestamp = context.getHeader(
+                            AwsHttpHeaders.DATE);
+                    if (timestamp == null) {
+                        // the chunk signatures chain from a timestamp the
+                        // request must sign, so never accept the chunks
+                        // unverified
+                        throw new S3Exception(S3ErrorCode.ACCESS_DENIED);
+                    }
+                    String decodedContentLength = context.getHeader(
+                            AwsHttpHeaders.DECODED_CONTENT_LENGTH);
+                    long expectedDecodedLength = -1;
+                    if (decodedContentLength != null) {
+                        try {
+                            expectedDecodedLength = Long.parseLong(
+                                    decodedContentLength);
+                        } catch (NumberFormatException nfe) {
                             throw new S3Exception(
-                                    S3ErrorCode.MAX_MESSAGE_LENGTH_EXCEEDED);
+                                    S3ErrorCode.INVALID_ARGUMENT, nfe);
                         }
-
-                        // maybe we should check this when signing,
-                        // a lot of dup code with aws sign code.
-                        MessageDigest md = MessageDigest.getInstance(
-                            authHeader.getHashAlgorithm());
-                        byte[] hash = md.digest(payload);
-                        if  (!contentSha256.equals(
-                              BaseEncoding.base16().lowerCase()
-                              .encode(hash))) {
+                        if (expectedDecodedLength < 0) {
+                            throw new S3Exception(
+                                    S3ErrorCode.INVALID_ARGUMENT);
+                        }
+                    }
+                    // the seed signature is checked against the headers
+                    // below, before any chunk is read
+                    is = new ChunkedInputStream(is,
+                            AwsSignature.getSigningKey(credential,
+                                    authHeader.getDate(),
+                                    authHeader.getRegion(),
+                                    authHeader.getService(),
+                                    authHeader.getHmacAlgorithm()),
+                            authHeader.getHmacAlgorithm(),
+                            authHeader.getHashAlgorithm(), timestamp,
+                            authHeader.getDate() + "/" +
+                            authHeader.getRegion() + "/" +
+                            authHeader.getService() +
+                            "/aws4_request",
+                            authHeader.getSignature(),
+                            expectedDecodedLength);
+                } else if ("UNSIGNED-PAYLOAD".equals(contentSha256)) {
+                    payload = new byte[0];
+                } else if (streamingPayloadVerification &&
+                        contentSha256 != null &&
+                        contentSha256.length() == 64 &&
+                        BaseEncoding.base16().lowerCase().canDecode(
+                                contentSha256)) {
+                    // sign the claimed digest and check the body
+                    // against it while it streams to the backend
+                    payload = null;
+                    is = new DigestVerifyingInputStream(is,
+                            MessageDigest.getInstance(
+                                    authHeader.getHashAlgorithm()),
+                            BaseEncoding.base16().lowerCase().decode(
+                                    contentSha256),
+                            request.getContentLengthLong());
+                } else {
+                    // buffer the entire stream to calculate digest
+                    long contentLength = request.getContentLengthLong();
+                    int bodyLength;
+                    if (contentLength > v4MaxNonChunkedRequestSize) {
+                        throw new S3Exception(
+                                S3ErrorCode.MAX_MESSAGE_LENGTH_EXCEEDED);
+                    } else if (contentLength >= 0 && contentLength <=
+                            BufferPool.MAX_POOLED_BUFFER_SIZE) {
+                        // small bodies borrow a pooled buffer which is
+                        // returned once the request is handled
+                        payload = BufferPool.getInstance().acquire(
+                                (int) contentLength);
+                        context.setBodyBuffer(payload);
+                        bodyLength = ByteStreams.read(is, payload, 0,
+                                (int) contentLength);
+                        if (bodyLength != contentLength) {
                             throw new S3Exception(
-                                    S3ErrorCode
-                                    .X_AMZ_CONTENT_S_H_A_256_MISMATCH);
+                                    S3ErrorCode.INCOMPLETE_BODY);
                         }
-                        is = new ByteArrayInputStream(payload);
+                    } else if (contentLength >= 0) {
+                        // grow the buffer as the body arrives rather than
+                        // trusting the declared length before the request
+                        // is authenticated
+                        payload = ByteStreams.toByteArray(
+                                ByteStreams.limit(is, contentLength));
+                        if (payload.length != contentLength) {
+                            throw new S3Exception(
+                                    S3ErrorCode.INCOMPLETE_BODY);
+                        }
+                        bodyLength = payload.length;
+                    } else {
+                        payload = ByteStreams.toByteArray(
+                                ByteStreams.limit(is,
+                                        v4MaxNonChunkedRequestSize + 1));
+                        if (payload.length ==
+                                v4MaxNonChunkedRequestSize + 1) {
+                            throw new S3Exception(S3ErrorCode
+                                    .MAX_MESSAGE_LENGTH_EXCEEDED);
+                        }
+                        bodyLength = payload.length;
                     }
 
-                    String uriForSigning = presignedUrl ? originalUri :
-                            this.servicePath + originalUri;
-                    expectedSignature = AwsSignature
-                            .createAuthorizationSignatureV4(// v4 sign
-                            baseRequest, authHeader, payload, uriForSigning,
-                            credential);
-                } catch (InvalidKeyException | NoSuchAlgorithmException e) {
-                    throw new S3Exception(S3ErrorCode.INVALID_ARGUMENT, e);
+                    // maybe we should check this when signing,
+                    // a lot of dup code with aws sign code.
+                    MessageDigest md = MessageDigest.getInstance(
+                        authHeader.getHashAlgorithm());
+                    md.update(payload, 0, bodyLength);
+                    byte[] hash = md.digest();
+                    if  (!contentSha256.equals(
+                          BaseEncoding.base16().lowerCase()
+                          .encode(hash))) {
+                        throw new S3Exception(
+                                S3ErrorCode
+                                .X_AMZ_CONTENT_S_H_A_256_MISMATCH);
+                    }
+                    is = new ByteArrayInputStream(payload, 0, bodyLength);
+                    // the body matches the claimed digest, which is signed
+                    // as given; a pooled buffer may be longer than the body
+                    payload = null;
                 }
-            }
 
-            if (! method.equals("OPTIONS") &&  !constantTimeEquals(expectedSignature,
-                    authHeader.getSignature())) {
-                throw new S3Exception(S3ErrorCode.SIGNATURE_DOES_NOT_MATCH);
+                String uriForSigning = presignedUrl ? originalUri :
+                        this.servicePath + originalUri;
+                expectedSignature = AwsSignature
+                        .createAuthorizationSignatureV4(// v4 sign
+                        context, authHeader, payload, uriForSigning,
+                        credential);
+            } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+                throw new S3Exception(S3ErrorCode.INVALID_ARGUMENT, e);
             }
         }
 
-        for (String parameter : Collections.list(
-                request.getParameterNames())) {
+        if (!cachedSignature && ! method.equals("OPTIONS") &&
+                !constantTimeEquals(expectedSignature,
+                authHeader.getSignature())) {
+            throw new S3Exception(S3ErrorCode.SIGNATURE_DOES_NOT_MATCH);
+        }
+        if (presignedKey != null && !cachedSignature) {
+            verifiedPresignedUrls.put(presignedKey, presignedExpiry);
+        }
+        return is;
+    }
+
+    private void checkUnsupportedParametersAndHeaders(RequestContext context)
+            throws S3Exception {
+        for (String parameter : context.getParameterNames()) {
             if (UNSUPPORTED_PARAMETERS.contains(parameter)) {
                 logger.error("Unknown parameters {} with URI {}",
-                        parameter, request.getRequestURI());
+                        parameter, context.getOriginalUri());
                 throw new S3Exception(S3ErrorCode.NOT_IMPLEMENTED);
             }
         }
 
         // emit NotImplemented for unknown x-amz- headers
-        for (String headerName : Collections.list(request.getHeaderNames())) {
+        for (String headerName : context.getHeaderNames()) {
             if (ignoreUnknownHeaders) {
-                continue;
+                break;
             }
             if (!headerName.startsWith("x-amz-")) {
                 continue;
@@ -639,137 +880,326 @@ public class S3ProxyHandler {
             }
             if (!SUPPORTED_X_AMZ_HEADERS.contains(headerName.toLowerCase())) {
                 logger.error("Unknown header {} with URI {}",
-                        headerName, request.getRequestURI());
+                        headerName, context.getOriginalUri());
                 throw new S3Exception(S3ErrorCode.NOT_IMPLEMENTED);
             }
         }
+    }
 
-        // Validate container name
-        if (!uri.equals("/") && !isValidContainer(path[1])) {
-            if (method.equals("PUT") &&
-                    (path.length <= 2 || path[2].isEmpty()) &&
-                    !"".equals(request.getParameter("acl")))  {
-                throw new S3Exception(S3ErrorCode.INVALID_BUCKET_NAME);
-            } else {
-                throw new S3Exception(S3ErrorCode.NO_SUCH_BUCKET);
-            }
+    /** Release the permit unless an asynchronous response took it. */
+    private static void closePermit(RequestContext context) {
+        AdmissionController.Permit permit = context.takePermit();
+        if (permit != null) {
+            permit.close();
         }
+    }
 
-        String uploadId = request.getParameter("uploadId");
-        switch (method) {
-        case "DELETE":
-            if (path.length <= 2 || path[2].isEmpty()) {
-                handleContainerDelete(response, blobStore, path[1]);
-                return;
-            } else if (uploadId != null) {
-                handleAbortMultipartUpload(request, response, blobStore,
-                        path[1], path[2], uploadId);
-                return;
-            } else {
-                handleBlobRemove(response, blobStore, path[1], path[2]);
-                return;
+    /** Returns null when admission control is disabled. */
+    @Nullable
+    private AdmissionController.Permit admit(@Nullable String identity,
+            @Nullable String containerName) throws S3Exception {
+        if (admissionController == null) {
+            return null;
+        }
+        return admissionController.acquire(identity, containerName);
+    }
+
+    private void doHandleOperation(HttpServletRequest request,
+            HttpServletResponse response, InputStream is, BlobStore blobStore,
+            String method, String uri, String[] path)
+            throws IOException, S3Exception {
+        RequestContext context = RequestContext.get(request);
+        Target target = Target.of(uri, path);
+        Operation operation = findOperation(context, method, target);
+        if (operation == null && target == Target.SERVICE) {
+            // other methods treat the service as a bucket with an empty name
+            operation = findOperation(context, method, Target.BUCKET);
+        }
+        if (operation == null) {
+            logger.error("Unknown method {} with URI {}",
+                    method, request.getRequestURI());
+            throw new S3Exception(S3ErrorCode.NOT_IMPLEMENTED);
+        }
+        operation.handle(this, new Call(request, response, is, blobStore,
+                path.length > 1 ? path[1] : null,
+                path.length > 2 ? path[2] : null,
+                context.getParameter("uploadId")));
+    }
+
+    @Nullable
+    private static Operation findOperation(RequestContext context,
+            String method, Target target) {
+        Map<Target, List<Route>> targets = ROUTES.get(method);
+        if (targets == null) {
+            return null;
+        }
+        List<Route> routes = targets.get(target);
+        if (routes == null) {
+            return null;
+        }
+        for (Route route : routes) {
+            if (route.matches(context)) {
+                return route.operation;
             }
-        case "GET":
+        }
+        return null;
+    }
+
+    /**
+     * Map each method and target to its operations, most specific first.
+     * Dispatch walks a short list instead of one large method so that each
+     * step stays small enough for the JIT to compile and inline.
+     */
+    private static Map<String, Map<Target, List<Route>>> createRoutes() {
+        Map<String, Map<Target, List<Route>>> routes = new HashMap<>();
+
+        addRoutes(routes, "DELETE", Target.BUCKET,
+                route((h, c) -> handleContainerDelete(c.response,
+                        c.blobStore, c.containerName)));
+        addRoutes(routes, "DELETE", Target.OBJECT,
+                route((h, c) -> h.handleAbortMultipartUpload(c.request,
+                        c.response, c.blobStore, c.containerName, c.blobName,
+                        c.uploadId)).ifParameter("uploadId"),
+                route((h, c) -> handleBlobRemove(c.response, c.blobStore,
+                        c.containerName, c.blobName)));
+
+        addRoutes(routes, "GET", Target.SERVICE,
+                route((h, c) -> h.handleContainerList(c.response,
+                        c.blobStore)));
+        addRoutes(routes, "GET", Target.BUCKET,
+                route((h, c) -> h.handleGetContainerAcl(c.response,
+                        c.blobStore, c.containerName)).ifParameter("acl"),
+                route((h, c) -> h.handleContainerLocation(c.response))
+                        .ifParameter("location"),
+                route((h, c) -> handleBucketPolicy(c.blobStore,
+                        c.containerName)).ifParameter("policy"),
+                route((h, c) -> h.handleListMultipartUploads(c.request,
+                        c.response, c.blobStore, c.containerName))
+                        .ifParameter("uploads"),
+                route((h, c) -> h.handleBlobList(c.request, c.response,
+                        c.blobStore, c.containerName)));
+        addRoutes(routes, "GET", Target.OBJECT,
+                route((h, c) -> h.handleGetBlobAcl(c.response, c.blobStore,
+                        c.containerName, c.blobName)).ifParameter("acl"),
+                route((h, c) -> h.handleListParts(c.request, c.response,
+                        c.blobStore, c.containerName, c.blobName,
+                        c.uploadId)).ifParameter("uploadId"),
+                route((h, c) -> h.handleGetBlob(c.request, c.response,
+                        c.blobStore, c.containerName, c.blobName)));
+
+        addRoutes(routes, "HEAD", Target.BUCKET,
+                route((h, c) -> handleContainerExists(c.blobStore,
+                        c.containerName)));
+        addRoutes(routes, "HEAD", Target.OBJECT,
+                route((h, c) -> handleBlobMetadata(c.request, c.response,
+                        c.blobStore, c.containerName, c.blobName)));
+
+        Route multiBlobRemove = route((h, c) -> h.handleMultiBlobRemove(
+                c.response, c.is, c.blobStore, c.containerName))
+                .ifParameter("delete");
+        addRoutes(routes, "POST", Target.BUCKET, multiBlobRemove);
+        addRoutes(routes, "POST", Target.OBJECT,
+                multiBlobRemove,
+                route((h, c) -> h.handleInitiateMultipartUpload(c.request,
+                        c.response, c.blobStore, c.containerName,
+                        c.blobName)).ifParameter("uploads"),
+                route((h, c) -> h.handleCompleteMultipartUpload(c.request,
+                        c.response, c.is, c.blobStore, c.containerName,
+                        c.blobName, c.uploadId)).ifParameter("uploadId")
+                        .unlessParameter("partNumber"));
+
+        addRoutes(routes, "PUT", Target.BUCKET,
+                route((h, c) -> h.handleSetContainerAcl(c.request,
+                        c.response, c.is, c.blobStore, c.containerName))
+                        .ifParameter("acl"),
+                route((h, c) -> h.handleContainerCreate(c.request,
+                        c.response, c.is, c.blobStore, c.containerName)));
+        addRoutes(routes, "PUT", Target.OBJECT,
+                route((h, c) -> h.handleCopyPart(c.request, c.response,
+                        c.blobStore, c.containerName, c.blobName,
+                        c.uploadId)).ifParameter("uploadId")
+                        .ifHeader(AwsHttpHeaders.COPY_SOURCE),
+                route((h, c) -> h.handleUploadPart(c.request, c.response,
+                        c.is, c.blobStore, c.containerName, c.blobName,
+                        c.uploadId)).ifParameter("uploadId"),
+                route((h, c) -> h.handleCopyBlob(c.request, c.response,
+                        c.is, c.blobStore, c.containerName, c.blobName))
+                        .ifHeader(AwsHttpHeaders.COPY_SOURCE),
+                route((h, c) -> h.handleSetBlobAcl(c.request, c.response,
+                        c.is, c.blobStore, c.containerName, c.blobName))
+                        .ifParameter("acl"),
+                route((h, c) -> h.handlePutBlob(c.request, c.response, c.is,
+                        c.blobStore, c.containerName, c.blobName)));
+
+        Route options = route((h, c) -> h.handleOptionsBlob(c.request,
+                c.response, c.blobStore, c.containerName));
+        addRoutes(routes, "OPTIONS", Target.BUCKET, options);
+        addRoutes(routes, "OPTIONS", Target.OBJECT, options);
+
+        return routes;
+    }
+
+    private static void addRoutes(
+            Map<String, Map<Target, List<Route>>> routes, String method,
+            Target target, Route... targetRoutes) {
+        routes.computeIfAbsent(method, k -> new EnumMap<>(Target.class))
+                .put(target, ImmutableList.copyOf(targetRoutes));
+    }
+
+    private static Route route(Operation operation) {
+        return new Route(null, null, null, operation);
+    }
+
+    /** Whether a request addresses the service, a bucket or an object. */
+    private enum Target {
+        SERVICE,
+        BUCKET,
+        OBJECT;
+
+        static Target of(String uri, String[] path) {
             if (uri.equals("/")) {
-                handleContainerList(response, blobStore);
-                return;
+                return SERVICE;
             } else if (path.length <= 2 || path[2].isEmpty()) {
-                if (request.getParameter("acl") != null) {
-                    handleGetContainerAcl(response, blobStore, path[1]);
-                    return;
-                } else if (request.getParameter("location") != null) {
-                    handleContainerLocation(response);
-                    return;
-                } else if (request.getParameter("policy") != null) {
-                    handleBucketPolicy(blobStore, path[1]);
-                    return;
-                } else if (request.getParameter("uploads") != null) {
-                    handleListMultipartUploads(request, response, blobStore,
-                            path[1]);
-                    return;
-                }
-                handleBlobList(request, response, blobStore, path[1]);
-                return;
-            } else {
-                if (request.getParameter("acl") != null) {
-                    handleGetBlobAcl(response, blobStore, path[1],
-                            path[2]);
-                    return;
-                } else if (uploadId != null) {
-                    handleListParts(request, response, blobStore, path[1],
-                            path[2], uploadId);
-                    return;
-                }
-                handleGetBlob(request, response, blobStore, path[1],
-                        path[2]);
-                return;
-            }
-        case "HEAD":
-            if (path.length <= 2 || path[2].isEmpty()) {
-                handleContainerExists(blobStore, path[1]);
-                return;
-            } else {
-                handleBlobMetadata(request, response, blobStore, path[1],
-                        path[2]);
-                return;
+                return BUCKET;
             }
-        case "POST":
-            if (request.getParameter("delete") != null) {
-                handleMultiBlobRemove(response, is, blobStore, path[1]);
-                return;
-            } else if (request.getParameter("uploads") != null) {
-                handleInitiateMultipartUpload(request, response, blobStore,
-                        path[1], path[2]);
-                return;
-            } else if (uploadId != null &&
-                    request.getParameter("partNumber") == null) {
-                handleCompleteMultipartUpload(request, response, is, blobStore,
-                        path[1], path[2], uploadId);
-                return;
+            return OBJECT;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        void handle(S3ProxyHandler handler, Call call)
+                throws IOException, S3Exception;
+    }
+
+    /** Arguments shared by all operations. */
+    private static final class Call {
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final InputStream is;
+        private final BlobStore blobStore;
+        private final String containerName;
+        @Nullable
+        private final String blobName;
+        @Nullable
+        private final String uploadId;
+
+        Call(HttpServletRequest request, HttpServletResponse response,
+                InputStream is, BlobStore blobStore, String containerName,
+                @Nullable String blobName, @Nullable String uploadId) {
+            this.request = request;
+            this.response = response;
+            this.is = is;
+            this.blobStore = blobStore;
+            this.containerName = containerName;
+            this.blobName = blobName;
+            this.uploadId = uploadId;
+        }
+    }
+
+    /**
+     * Operation selected when a query parameter or header is present, or a
+     * parameter is absent.  A route without conditions always matches.
+     */
+    private static final class Route {
+        @Nullable
+        private final String parameter;
+        @Nullable
+        private final String header;
+        @Nullable
+        private final String absentParameter;
+        private final Operation operation;
+
+        Route(@Nullable String parameter, @Nullable String header,
+                @Nullable String absentParameter, Operation operation) {
+            this.parameter = parameter;
+            this.header = header;
+            this.absentParameter = absentParameter;
+            this.operation = operation;
+        }
+
+        Route ifParameter(String name) {
+            return new Route(name, header, absentParameter, operation);
+        }
+
+        Route ifHeader(String name) {
+            return new Route(parameter, name, absentParameter, operation);
+        }
+
+        Route unlessParameter(String name) {
+            return new Route(parameter, header, name, operation);
+        }
+
+        boolean matches(RequestContext context) {
+            return (parameter == null ||
+                    context.getParameter(parameter) != null) &&
+                    (header == null || context.getHeader(header) != null) &&
+                    (absentParameter == null ||
+                    context.getParameter(absentParameter) == null);
+        }
+    }
+
+    /**
+     * Return the expiry of a presigned URL in seconds since 1970 or null if
+     * the request carries no expiry.
+     */
+    @Nullable
+    private static Long getPresignedExpiry(RequestContext context) {
+        String expires = context.getParameter("Expires");
+        if (expires != null) {  // v2
+            return Long.parseLong(expires);
+        }
+        String date = context.getParameter("X-Amz-Date");
+        expires = context.getParameter("X-Amz-Expires");
+        if (date != null && expires != null) {  // v4
+            return parseIso8601(date) + Long.parseLong(expires);
+        }
+        return null;
+    }
+
+    /**
+     * Build a key from every input to a presigned signature: method, path,
+     * query string including the signature, the headers which may be
+     * signed and the credential.  Equal keys imply equal verification
+     * results.
+     */
+    private static String createPresignedCacheKey(RequestContext context,
+            String credential) {
+        StringBuilder builder = new StringBuilder()
+                .append(context.getMethod()).append('\n')
+                .append(context.getOriginalUri()).append('\n')
+                .append(context.getQueryString()).append('\n')
+                .append(credential).append('\n');
+        SortedMap<String, List<String>> headers = new TreeMap<>();
+        for (String name : context.getHeaderNames()) {
+            String lowerName = name.toLowerCase();
+            // v4 signs the host and any listed header; v2 signs these
+            if (lowerName.equals("host") || lowerName.equals("content-md5") ||
+                    lowerName.equals("content-type") ||
+                    lowerName.startsWith("x-amz-") ||
+                    isSignedV4Header(context, lowerName)) {
+                headers.put(lowerName, context.getHeaders(name));
             }
-            break;
-        case "PUT":
-            if (path.length <= 2 || path[2].isEmpty()) {
-                if (request.getParameter("acl") != null) {
-                    handleSetContainerAcl(request, response, is, blobStore,
-                            path[1]);
-                    return;
-                }
-                handleContainerCreate(request, response, is, blobStore,
-                        path[1]);
-                return;
-            } else if (uploadId != null) {
-                if (request.getHeader(AwsHttpHeaders.COPY_SOURCE) != null) {
-                    handleCopyPart(request, response, blobStore, path[1],
-                            path[2], uploadId);
-                } else {
-                    handleUploadPart(request, response, is, blobStore, path[1],
-                            path[2], uploadId);
-                }
-                return;
-            } else if (request.getHeader(AwsHttpHeaders.COPY_SOURCE) != null) {
-                handleCopyBlob(request, response, is, blobStore, path[1],
-                        path[2]);
-                return;
-            } else {
-                if (request.getParameter("acl") != null) {
-                    handleSetBlobAcl(request, response, is, blobStore, path[1],
-                            path[2]);
-                    return;
-                }
-                handlePutBlob(request, response, is, blobStore, path[1],
-                        path[2]);
-                return;
+        }
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            builder.append(entry.getKey()).append(':')
+                    .append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static boolean isSignedV4Header(RequestContext context,
+            String lowerName) {
+        String signedHeaders = context.getParameter("X-Amz-SignedHeaders");
+        if (signedHeaders == null) {
+            return false;
+        }
+        for (String header : Splitter.on(';').split(signedHeaders)) {
+            if (header.equalsIgnoreCase(lowerName)) {
+                return true;
             }
-        case "OPTIONS":
-            handleOptionsBlob(request, response, blobStore, path[1]);
-            return;
-        default:
-            break;
         }
-        logger.error("Unknown method {} with URI {}",
-                method, request.getRequestURI());
-        throw new S3Exception(S3ErrorCode.NOT_IMPLEMENTED);
+        return false;
     }
 
     private static boolean checkPublicAccess(BlobStore blobStore,
@@ -1346,18 +1776,9 @@ public class S3ProxyHandler {
             HttpServletResponse response, BlobStore blobStore,
             String containerName) throws IOException, S3Exception {
         String blobStoreType = getBlobStoreType(blobStore);
-        ListContainerOptions options = new ListContainerOptions();
         String encodingType = request.getParameter("encoding-type");
         String delimiter = request.getParameter("delimiter");
-        if (delimiter != null) {
-            options.delimiter(delimiter);
-        } else {
-            options.recursive();
-        }
         String prefix = request.getParameter("prefix");
-        if (prefix != null && !prefix.isEmpty()) {
-            options.prefix(prefix);
-        }
 
         boolean isListV2 = false;
         String marker;
@@ -1379,15 +1800,19 @@ public class S3ProxyHandler {
         } else {
             throw new S3Exception(S3ErrorCode.NOT_IMPLEMENTED);
         }
-        if (marker != null) {
-            if (Quirks.OPAQUE_MARKERS.contains(blobStoreType)) {
-                String realMarker = lastKeyToMarker.getIfPresent(
+        if (marker != null && Quirks.OPAQUE_MARKERS.contains(blobStoreType)) {
+            String realMarker = continuationTokens.decode(containerName,
+                    marker);
+            if (realMarker == null && continuationToken != null) {
+                throw new S3Exception(S3ErrorCode.INVALID_ARGUMENT,
+                        "The continuation token provided is incorrect");
+            } else if (realMarker == null && !isListV2) {
+                realMarker = lastKeyToMarker.getIfPresent(
                         Maps.immutableEntry(containerName, marker));
-                if (realMarker != null) {
-                    marker = realMarker;
-                }
             }
-            options.afterMarker(marker);
+            if (realMarker != null) {
+                marker = realMarker;
+            }
         }
 
         boolean fetchOwner = !isListV2 ||
@@ -1401,141 +1826,374 @@ public class S3ProxyHandler {
             } catch (NumberFormatException nfe) {
                 throw new S3Exception(S3ErrorCode.INVALID_ARGUMENT, nfe);
             }
-            if (maxKeys > 1000) {
-                maxKeys = 1000;
+            int maxKeysLimit = 1000;
+            if (trustedIdentities.contains(
+                    RequestContext.get(request).getIdentity())) {
+                maxKeysLimit = trustedMaxKeys;
+            }
+            if (maxKeys > maxKeysLimit) {
+                maxKeys = maxKeysLimit;
             }
         }
-        options.maxResults(maxKeys);
 
-        PageSet<? extends StorageMetadata> set = blobStore.list(containerName,
-                options);
+        ListingPages pages = new ListingPages(blobStore, containerName,
+                delimiter, prefix, marker, maxKeys);
+        try {
+            // fetch the first page before committing the response so that
+            // errors like NoSuchBucket are still reported
+            List<PageSet<? extends StorageMetadata>> sets = new ArrayList<>();
+            sets.add(pages.next());
+            if (!streamingListings) {
+                // KeyCount and IsTruncated precede the entries
+                for (PageSet<? extends StorageMetadata> set = pages.next();
+                        set != null; set = pages.next()) {
+                    sets.add(set);
+                }
+            }
 
-        addCorsResponseHeader(request, response);
+            addCorsResponseHeader(request, response);
 
-        response.setCharacterEncoding(UTF_8);
-        try (Writer writer = response.getWriter()) {
-            response.setContentType(XML_CONTENT_TYPE);
-            XMLStreamWriter xml = xmlOutputFactory.createXMLStreamWriter(
-                    writer);
-            xml.writeStartDocument();
-            xml.writeStartElement("ListBucketResult");
-            xml.writeDefaultNamespace(AWS_XMLNS);
+            response.setCharacterEncoding(UTF_8);
+            try (Writer writer = response.getWriter()) {
+                response.setContentType(XML_CONTENT_TYPE);
+                XMLStreamWriter xml = xmlOutputFactory.createXMLStreamWriter(
+                        writer);
+                xml.writeStartDocument();
+                xml.writeStartElement("ListBucketResult");
+                xml.writeDefaultNamespace(AWS_XMLNS);
+
+                writeSimpleElement(xml, "Name", containerName);
+
+                if (prefix == null) {
+                    xml.writeEmptyElement("Prefix");
+                } else {
+                    writeSimpleElement(xml, "Prefix", encodeBlob(
+                            encodingType, prefix));
+                }
+
+                if (isListV2 && !streamingListings) {
+                    writeSimpleElement(xml, "KeyCount",
+                            String.valueOf(pages.getKeyCount()));
+                }
+                writeSimpleElement(xml, "MaxKeys", String.valueOf(maxKeys));
+
+                if (!isListV2) {
+                    if (marker == null) {
+                        xml.writeEmptyElement("Marker");
+                    } else {
+                        writeSimpleElement(xml, "Marker", encodeBlob(
+                                encodingType, marker));
+                    }
+                } else {
+                    if (continuationToken == null) {
+                        xml.writeEmptyElement("ContinuationToken");
+                    } else {
+                        writeSimpleElement(xml, "ContinuationToken",
+                                encodeBlob(encodingType, continuationToken));
+                    }
+                    if (startAfter == null) {
+                        xml.writeEmptyElement("StartAfter");
+                    } else {
+                        writeSimpleElement(xml, "StartAfter", encodeBlob(
+                                encodingType, startAfter));
+                    }
+                }
+
+                if (!Strings.isNullOrEmpty(delimiter)) {
+                    writeSimpleElement(xml, "Delimiter", encodeBlob(
+                            encodingType, delimiter));
+                }
+
+                if (encodingType != null && encodingType.equals("url")) {
+                    writeSimpleElement(xml, "EncodingType", encodingType);
+                }
+
+                if (!streamingListings) {
+                    writeListingTruncation(xml, pages, isListV2,
+                            encodingType, blobStoreType, containerName);
+                }
 
-            writeSimpleElement(xml, "Name", containerName);
+                Set<String> commonPrefixes = new TreeSet<>();
+                for (PageSet<? extends StorageMetadata> set : sets) {
+                    writeListingContents(xml, set, commonPrefixes,
+                            encodingType, fetchOwner);
+                }
+                if (streamingListings) {
+                    // write each page as it arrives while the backend
+                    // produces the next one
+                    xml.flush();
+                    writer.flush();
+                    for (PageSet<? extends StorageMetadata> set =
+                            pages.next(); set != null; set = pages.next()) {
+                        writeListingContents(xml, set, commonPrefixes,
+                                encodingType, fetchOwner);
+                        xml.flush();
+                        writer.flush();
+                    }
+                }
 
-            if (prefix == null) {
-                xml.writeEmptyElement("Prefix");
-            } else {
-                writeSimpleElement(xml, "Prefix", encodeBlob(
-                        encodingType, prefix));
-            }
+                for (String commonPrefix : commonPrefixes) {
+                    xml.writeStartElement("CommonPrefixes");
 
-            if (isListV2) {
-                writeSimpleElement(xml, "KeyCount", String.valueOf(set.size()));
-            }
-            writeSimpleElement(xml, "MaxKeys", String.valueOf(maxKeys));
+                    writeSimpleElement(xml, "Prefix", encodeBlob(encodingType,
+                            commonPrefix));
 
-            if (!isListV2) {
-                if (marker == null) {
-                    xml.writeEmptyElement("Marker");
-                } else {
-                    writeSimpleElement(xml, "Marker", encodeBlob(
-                            encodingType, marker));
+                    xml.writeEndElement();
                 }
-            } else {
-                if (continuationToken == null) {
-                    xml.writeEmptyElement("ContinuationToken");
-                } else {
-                    writeSimpleElement(xml, "ContinuationToken", encodeBlob(
-                            encodingType, continuationToken));
+
+                if (streamingListings) {
+                    if (isListV2) {
+                        writeSimpleElement(xml, "KeyCount",
+                                String.valueOf(pages.getKeyCount()));
+                    }
+                    writeListingTruncation(xml, pages, isListV2,
+                            encodingType, blobStoreType, containerName);
+                    pages.prefetchNextListing();
                 }
-                if (startAfter == null) {
-                    xml.writeEmptyElement("StartAfter");
-                } else {
-                    writeSimpleElement(xml, "StartAfter", encodeBlob(
-                            encodingType, startAfter));
+
+                xml.writeEndElement();
+                xml.flush();
+            } catch (XMLStreamException xse) {
+                throw new IOException(xse);
+            }
+        } finally {
+            pages.cancel();
+        }
+    }
+
+    private void writeListingTruncation(XMLStreamWriter xml,
+            ListingPages pages, boolean isListV2, String encodingType,
+            String blobStoreType, String containerName)
+            throws XMLStreamException {
+        String nextMarker = pages.getNextMarker();
+        if (nextMarker != null) {
+            String token = nextMarker;
+            if (Quirks.OPAQUE_MARKERS.contains(blobStoreType)) {
+                token = continuationTokens.encode(containerName, nextMarker);
+                String lastName = pages.getLastName();
+                if (!isListV2 && lastName != null) {
+                    lastKeyToMarker.put(Maps.immutableEntry(containerName,
+                            lastName), nextMarker);
                 }
             }
+            writeSimpleElement(xml, "IsTruncated", "true");
+            writeSimpleElement(xml,
+                    isListV2 ? "NextContinuationToken" : "NextMarker",
+                    encodeBlob(encodingType, token));
+        } else {
+            writeSimpleElement(xml, "IsTruncated", "false");
+        }
+    }
 
-            if (!Strings.isNullOrEmpty(delimiter)) {
-                writeSimpleElement(xml, "Delimiter", encodeBlob(
-                        encodingType, delimiter));
+    /**
+     * Write the blobs of a listing page and collect its common prefixes,
+     * which follow all blobs in the response.
+     */
+    private static void writeListingContents(XMLStreamWriter xml,
+            PageSet<? extends StorageMetadata> set,
+            Set<String> commonPrefixes, String encodingType,
+            boolean fetchOwner) throws XMLStreamException {
+        for (StorageMetadata metadata : set) {
+            switch (metadata.getType()) {
+            case FOLDER:
+                // fallthrough
+            case RELATIVE_PATH:
+                commonPrefixes.add(metadata.getName());
+                continue;
+            default:
+                break;
             }
 
-            if (encodingType != null && encodingType.equals("url")) {
-                writeSimpleElement(xml, "EncodingType", encodingType);
+            xml.writeStartElement("Contents");
+
+            writeSimpleElement(xml, "Key", encodeBlob(encodingType,
+                    metadata.getName()));
+
+            Date lastModified = metadata.getLastModified();
+            if (lastModified != null) {
+                writeSimpleElement(xml, "LastModified",
+                        formatDate(lastModified));
             }
 
-            String nextMarker = set.getNextMarker();
-            if (nextMarker != null) {
-                writeSimpleElement(xml, "IsTruncated", "true");
-                writeSimpleElement(xml,
-                        isListV2 ? "NextContinuationToken" : "NextMarker",
-                        encodeBlob(encodingType, nextMarker));
-                if (Quirks.OPAQUE_MARKERS.contains(blobStoreType)) {
-                    StorageMetadata sm = Streams.findLast(set.stream()).orElse(null);
-                    if (sm != null) {
-                        lastKeyToMarker.put(Maps.immutableEntry(containerName,
-                                sm.getName()), nextMarker);
-                    }
-                }
-            } else {
-                writeSimpleElement(xml, "IsTruncated", "false");
+            String eTag = metadata.getETag();
+            if (eTag != null) {
+                writeSimpleElement(xml, "ETag", maybeQuoteETag(eTag));
             }
 
-            Set<String> commonPrefixes = new TreeSet<>();
-            for (StorageMetadata metadata : set) {
-                switch (metadata.getType()) {
-                case FOLDER:
-                    // fallthrough
-                case RELATIVE_PATH:
-                    commonPrefixes.add(metadata.getName());
-                    continue;
-                default:
-                    break;
-                }
+            writeSimpleElement(xml, "Size",
+                    String.valueOf(metadata.getSize()));
+            writeSimpleElement(xml, "StorageClass",
+                    StorageClass.fromTier(metadata.getTier()).toString());
 
-                xml.writeStartElement("Contents");
+            if (fetchOwner) {
+                writeOwnerStanza(xml);
+            }
 
-                writeSimpleElement(xml, "Key", encodeBlob(encodingType,
-                        metadata.getName()));
+            xml.writeEndElement();
+        }
+    }
 
-                Date lastModified = metadata.getLastModified();
-                if (lastModified != null) {
-                    writeSimpleElement(xml, "LastModified",
-                            formatDate(lastModified));
-                }
+    private static ListContainerOptions newListOptions(
+            @Nullable String delimiter, @Nullable String prefix,
+            @Nullable String marker, int maxResults) {
+        ListContainerOptions options = new ListContainerOptions();
+        if (delimiter != null) {
+            options.delimiter(delimiter);
+        } else {
+            options.recursive();
+        }
+        if (prefix != null && !prefix.isEmpty()) {
+            options.prefix(prefix);
+        }
+        if (marker != null) {
+            options.afterMarker(marker);
+        }
+        options.maxResults(maxResults);
+        return options;
+    }
 
-                String eTag = metadata.getETag();
-                if (eTag != null) {
-                    writeSimpleElement(xml, "ETag", maybeQuoteETag(eTag));
+    /**
+     * Backend pages making up one listing response.  max-keys beyond the
+     * backend page size spans several list calls; each call after the first
+     * runs in the background while the previous page is written.
+     */
+    private final class ListingPages {
+        private final BlobStore blobStore;
+        private final String containerName;
+        @Nullable
+        private final String delimiter;
+        @Nullable
+        private final String prefix;
+        private final int pageSize;
+        private int remaining;
+        private int keyCount;
+        @Nullable
+        private String nextMarker;
+        @Nullable
+        private String lastName;
+        @Nullable
+        private Future<PageSet<? extends StorageMetadata>> pending;
+        private boolean first = true;
+
+        ListingPages(BlobStore blobStore, String containerName,
+                @Nullable String delimiter, @Nullable String prefix,
+                @Nullable String marker, int maxKeys) {
+            this.blobStore = blobStore;
+            this.containerName = containerName;
+            this.delimiter = delimiter;
+            this.prefix = prefix;
+            this.pageSize = Math.max(0, Math.min(maxKeys, LIST_PAGE_SIZE));
+            this.remaining = maxKeys;
+            this.nextMarker = marker;
+            this.pending = prefetchedListings.asMap().remove(
+                    listingKey(marker));
+        }
+
+        /** Return the next page or null when the listing is complete. */
+        @Nullable
+        PageSet<? extends StorageMetadata> next() throws IOException {
+            PageSet<? extends StorageMetadata> set;
+            if (first) {
+                first = false;
+                set = getPrefetched();
+                if (set == null) {
+                    set = blobStore.list(containerName, newListOptions(
+                            delimiter, prefix, nextMarker, pageSize));
                 }
+            } else if (pending != null) {
+                set = getPending();
+            } else {
+                return null;
+            }
+
+            keyCount += set.size();
+            remaining -= set.size();
+            nextMarker = set.getNextMarker();
+            StorageMetadata last = Streams.findLast(set.stream())
+                    .orElse(null);
+            if (last != null) {
+                lastName = last.getName();
+            }
+            if (nextMarker != null && remaining > 0 && !set.isEmpty()) {
+                ListContainerOptions options = newListOptions(delimiter,
+                        prefix, nextMarker,
+                        Math.min(remaining, LIST_PAGE_SIZE));
+                pending = submitList(() ->
+                        blobStore.list(containerName, options));
+            }
+            return set;
+        }
 
-                writeSimpleElement(xml, "Size",
-                        String.valueOf(metadata.getSize()));
-                writeSimpleElement(xml, "StorageClass",
-                        StorageClass.fromTier(metadata.getTier()).toString());
+        int getKeyCount() {
+            return keyCount;
+        }
 
-                if (fetchOwner) {
-                    writeOwnerStanza(xml);
-                }
+        /** Marker to continue the listing or null if not truncated. */
+        @Nullable
+        String getNextMarker() {
+            return nextMarker;
+        }
 
-                xml.writeEndElement();
+        @Nullable
+        String getLastName() {
+            return lastName;
+        }
+
+        /** Fetch the first page of the next request in the background. */
+        void prefetchNextListing() {
+            String marker = getNextMarker();
+            if (marker == null) {
+                return;
             }
+            ListContainerOptions options = newListOptions(delimiter, prefix,
+                    marker, pageSize);
+            Future<PageSet<? extends StorageMetadata>> future = submitList(
+                    () -> blobStore.list(containerName, options));
+            if (future != null) {
+                prefetchedListings.put(listingKey(marker), future);
+            }
+        }
 
-            for (String commonPrefix : commonPrefixes) {
-                xml.writeStartElement("CommonPrefixes");
+        void cancel() {
+            if (pending != null) {
+                pending.cancel(true);
+                pending = null;
+            }
+        }
 
-                writeSimpleElement(xml, "Prefix", encodeBlob(encodingType,
-                        commonPrefix));
+        private List<Object> listingKey(@Nullable String marker) {
+            return Arrays.asList(blobStore, containerName, delimiter, prefix,
+                    marker, pageSize);
+        }
 
-                xml.writeEndElement();
+        /** Prefetched first page or null to list synchronously. */
+        @Nullable
+        private PageSet<? extends StorageMetadata> getPrefetched() {
+            Future<PageSet<? extends StorageMetadata>> future = pending;
+            pending = null;
+            if (future == null) {
+                return null;
             }
+            try {
+                return Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException | CancellationException e) {
+                logger.debug("Prefetched listing failed: {}", e.getMessage());
+                return null;
+            }
+        }
 
-            xml.writeEndElement();
-            xml.flush();
-        } catch (XMLStreamException xse) {
-            throw new IOException(xse);
+        private PageSet<? extends StorageMetadata> getPending()
+                throws IOException {
+            Future<PageSet<? extends StorageMetadata>> future = pending;
+            pending = null;
+            try {
+                return Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException ee) {
+                Throwables.throwIfInstanceOf(ee.getCause(),
+                        IOException.class);
+                Throwables.throwIfUnchecked(ee.getCause());
+                throw new IOException(ee.getCause());
+            }
         }
     }
 
@@ -1680,11 +2338,8 @@ public class S3ProxyHandler {
         response.setStatus(HttpServletResponse.SC_OK);
     }
 
-    private void handleGetBlob(HttpServletRequest request,
-            HttpServletResponse response, BlobStore blobStore,
-            String containerName, String blobName)
-            throws IOException, S3Exception {
-        int status = HttpServletResponse.SC_OK;
+    private static GetOptions newConditionalGetOptions(
+            HttpServletRequest request) {
         GetOptions options = new GetOptions();
 
         String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
@@ -1709,7 +2364,131 @@ public class S3ProxyHandler {
             options.ifUnmodifiedSince(new Date(ifUnmodifiedSince));
         }
 
+        return options;
+    }
+
+    /** Whether a GET may be answered with 304 Not Modified. */
+    private static boolean isRevalidation(HttpServletRequest request) {
+        return request.getHeader(HttpHeaders.IF_NONE_MATCH) != null ||
+                request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE) != -1;
+    }
+
+    /**
+     * Evaluate the preconditions of a revalidation against blob metadata,
+     * which may be cached, so that the backend never opens the payload when
+     * they fail.  Returns false if the preconditions hold and the blob must
+     * be read.
+     */
+    private boolean handleRevalidation(HttpServletRequest request,
+            HttpServletResponse response, BlobStore blobStore,
+            String containerName, String blobName) throws S3Exception {
+        String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        long ifModifiedSince = request.getDateHeader(
+                HttpHeaders.IF_MODIFIED_SINCE);
+        long ifUnmodifiedSince = request.getDateHeader(
+                HttpHeaders.IF_UNMODIFIED_SINCE);
+
+        revalidationStats.revalidations.incrementAndGet();
+        BlobMetadata metadata = blobStore.blobMetadata(containerName,
+                blobName);
+        if (metadata == null) {
+            revalidationStats.avoidedReads.incrementAndGet();
+            throw new S3Exception(S3ErrorCode.NO_SUCH_KEY);
+        }
+        String eTag = metadata.getETag() == null ? null :
+                maybeQuoteETag(metadata.getETag());
+        Date lastModified = metadata.getLastModified();
+
+        // evaluate in the order of RFC 7232 section 6; HTTP dates have
+        // second precision
+        if (ifMatch != null) {
+            if (eTag != null && !matchesETag(ifMatch, eTag, false)) {
+                revalidationStats.avoidedReads.incrementAndGet();
+                throw new S3Exception(S3ErrorCode.PRECONDITION_FAILED);
+            }
+        } else if (ifUnmodifiedSince != -1 && lastModified != null &&
+                lastModified.getTime() / 1000 > ifUnmodifiedSince / 1000) {
+            revalidationStats.avoidedReads.incrementAndGet();
+            throw new S3Exception(S3ErrorCode.PRECONDITION_FAILED);
+        }
+        boolean notModified;
+        if (ifNoneMatch != null) {
+            notModified = eTag != null &&
+                    matchesETag(ifNoneMatch, eTag, true);
+        } else {
+            notModified = lastModified != null &&
+                    lastModified.getTime() / 1000 <= ifModifiedSince / 1000;
+        }
+        if (!notModified) {
+            return false;
+        }
+
+        revalidationStats.avoidedReads.incrementAndGet();
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        addCorsResponseHeader(request, response);
+        if (eTag != null) {
+            response.addHeader(HttpHeaders.ETAG, eTag);
+        }
+        if (lastModified != null) {
+            response.addDateHeader(HttpHeaders.LAST_MODIFIED,
+                    lastModified.getTime());
+        }
+        return true;
+    }
+
+    /**
+     * Whether an If-Match or If-None-Match list includes a quoted ETag.
+     * RFC 7232 requires the strong comparison for If-Match, where weak
+     * tags never match, and the weak comparison for If-None-Match.
+     */
+    private static boolean matchesETag(String header, String eTag,
+            boolean weakComparison) {
+        for (String candidate : Splitter.on(',').trimResults()
+                .omitEmptyStrings().split(header)) {
+            if (candidate.equals("*")) {
+                return true;
+            } else if (candidate.startsWith("W/")) {
+                if (!weakComparison) {
+                    continue;
+                }
+                candidate = candidate.substring(2);
+            }
+            if (maybeQuoteETag(candidate).equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handleGetBlob(HttpServletRequest request,
+            HttpServletResponse response, BlobStore blobStore,
+            String containerName, String blobName)
+            throws IOException, S3Exception {
+        // once the fast path has evaluated the preconditions the backend
+        // read is unconditional; jclouds also rejects If-Match together
+        // with If-None-Match
+        boolean preconditionsChecked = false;
+        if (revalidationStats != null && isRevalidation(request)) {
+            if (handleRevalidation(request, response, blobStore,
+                    containerName, blobName)) {
+                return;
+            }
+            preconditionsChecked = true;
+        }
+
+        int status = HttpServletResponse.SC_OK;
+        GetOptions options = preconditionsChecked ? new GetOptions() :
+                newConditionalGetOptions(request);
+
         String range = request.getHeader(HttpHeaders.RANGE);
+        if (range != null && range.startsWith("bytes=") &&
+                range.indexOf(',') != -1 &&
+                handleGetBlobRanges(request, response, blobStore,
+                        containerName, blobName, range,
+                        preconditionsChecked)) {
+            return;
+        }
         if (range != null && range.startsWith("bytes=") &&
                 // ignore multiple ranges
                 range.indexOf(',') == -1) {
@@ -1738,17 +2517,237 @@ public class S3ProxyHandler {
         addMetadataToResponse(request, response, blob.getMetadata());
         // TODO: handles only a single range due to jclouds limitations
         Collection<String> contentRanges = multiMapCaseInsensitiveGet(blob.getAllHeaders(), HttpHeaders.CONTENT_RANGE);
+        String contentRange = null;
         if (!contentRanges.isEmpty()) {
-            response.addHeader(HttpHeaders.CONTENT_RANGE,
-                    contentRanges.iterator().next());
+            contentRange = contentRanges.iterator().next();
+            response.addHeader(HttpHeaders.CONTENT_RANGE, contentRange);
             response.addHeader(HttpHeaders.ACCEPT_RANGES,
                     "bytes");
         }
 
+        if (filesystemSendfile) {
+            File file = FilesystemPayloadSender.resolveFile(blobStore,
+                    containerName, blobName);
+            Long contentLength = blob.getMetadata().getContentMetadata()
+                    .getContentLength();
+            if (file != null && FilesystemPayloadSender.send(response, file,
+                    contentLength == null ? -1 : contentLength,
+                    contentRange)) {
+                return;
+            }
+        }
+
+        if (asyncDownloads && request.isAsyncSupported()) {
+            // the writer owns the payload stream and admission permit from
+            // here on and releases them when the transfer completes or fails
+            AsyncPayloadWriter.write(request, response,
+                    blob.getPayload().openStream(),
+                    RequestContext.get(request).takePermit());
+            return;
+        }
+
         try (InputStream is = blob.getPayload().openStream();
              OutputStream os = response.getOutputStream()) {
-            ByteStreams.copy(is, os);
+            BufferPool.getInstance().copy(is, os);
+            os.flush();
+        }
+    }
+
+    /**
+     * Serve a multi-range GET as multipart/byteranges.  Overlapping ranges are
+     * merged and sent in ascending order; ranges separated by small gaps share
+     * one backend read and the remaining reads are issued concurrently.
+     * Returns false if the Range header should be ignored and the whole
+     * object served instead.  If preconditionsChecked, the conditional
+     * headers were already evaluated against blob metadata.
+     */
+    private boolean handleGetBlobRanges(HttpServletRequest request,
+            HttpServletResponse response, BlobStore blobStore,
+            String containerName, String blobName, String rangeHeader,
+            boolean preconditionsChecked)
+            throws IOException, S3Exception {
+        BlobMetadata metadata = blobStore.blobMetadata(containerName,
+                blobName);
+        if (metadata == null) {
+            throw new S3Exception(S3ErrorCode.NO_SUCH_KEY);
+        }
+        Long size = metadata.getContentMetadata().getContentLength();
+        if (size == null) {
+            return false;
+        }
+        List<ByteRanges.Range> parts = ByteRanges.parse(rangeHeader, size);
+        if (parts == null) {
+            return false;
+        } else if (parts.isEmpty()) {
+            throw new S3Exception(S3ErrorCode.INVALID_RANGE);
+        }
+        parts = ByteRanges.coalesce(parts, -1);
+        if (ByteRanges.coalesce(parts, 0).size() == 1) {
+            // contiguous ranges gain nothing from multipart/byteranges;
+            // serve the whole object as S3 does for multiple ranges
+            return false;
+        }
+        List<ByteRanges.Range> spans = ByteRanges.coalesce(parts,
+                RANGE_COALESCE_GAP);
+        if (spans.size() > MAX_RANGE_SPANS) {
+            return false;
+        }
+
+        // pin every read to the version described by metadata unless the
+        // backend must evaluate the client's own entity tag conditions
+        String eTag = metadata.getETag();
+        boolean clientETagConditions =
+                request.getHeader(HttpHeaders.IF_MATCH) != null ||
+                request.getHeader(HttpHeaders.IF_NONE_MATCH) != null;
+        boolean pinETag = eTag != null && (preconditionsChecked ||
+                !clientETagConditions);
+        List<RangeRead> reads = new ArrayList<>();
+        List<Future<Blob>> futures = new ArrayList<>();
+        for (ByteRanges.Range span : spans) {
+            GetOptions options = preconditionsChecked ? new GetOptions() :
+                    newConditionalGetOptions(request);
+            if (pinETag) {
+                options.ifETagMatches(eTag);
+            }
+            options.range(span.getFirst(), span.getLast());
+            RangeRead read = new RangeRead(() ->
+                    blobStore.getBlob(containerName, blobName, options));
+            reads.add(read);
+            futures.add(rangeExecutor.submit(read));
+        }
+
+        try {
+            List<Blob> blobs = new ArrayList<>();
+            for (Future<Blob> future : futures) {
+                Blob blob;
+                try {
+                    blob = Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException ee) {
+                    Throwables.throwIfInstanceOf(ee.getCause(),
+                            IOException.class);
+                    Throwables.throwIfUnchecked(ee.getCause());
+                    throw new IOException(ee.getCause());
+                }
+                if (blob == null) {
+                    throw new S3Exception(S3ErrorCode.NO_SUCH_KEY);
+                }
+                blobs.add(blob);
+            }
+
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            addCorsResponseHeader(request, response);
+            addMetadataToResponse(request, response, metadata);
+
+            String boundary = BaseEncoding.base16().lowerCase().encode(
+                    Longs.toByteArray(ThreadLocalRandom.current().nextLong()));
+            String partContentType = response.getContentType();
+            List<byte[]> partHeaders = new ArrayList<>();
+            long contentLength = 0;
+            for (ByteRanges.Range part : parts) {
+                StringBuilder header = new StringBuilder()
+                        .append("\r\n--").append(boundary).append("\r\n");
+                if (partContentType != null) {
+                    header.append(HttpHeaders.CONTENT_TYPE).append(": ")
+                            .append(partContentType).append("\r\n");
+                }
+                header.append(HttpHeaders.CONTENT_RANGE).append(": ")
+                        .append(part.toContentRange(size))
+                        .append("\r\n\r\n");
+                byte[] bytes = header.toString().getBytes(
+                        StandardCharsets.UTF_8);
+                partHeaders.add(bytes);
+                contentLength += bytes.length + part.getLength();
+            }
+            byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(
+                    StandardCharsets.UTF_8);
+            contentLength += trailer.length;
+
+            response.setContentType("multipart/byteranges; boundary=" +
+                    boundary);
+            response.setHeader(HttpHeaders.CONTENT_LENGTH,
+                    Long.toString(contentLength));
+            response.addHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+            OutputStream os = response.getOutputStream();
+            int partIndex = 0;
+            for (int i = 0; i < spans.size(); ++i) {
+                ByteRanges.Range span = spans.get(i);
+                try (InputStream is = blobs.get(i).getPayload().openStream()) {
+                    long position = span.getFirst();
+                    while (partIndex < parts.size() &&
+                            parts.get(partIndex).getLast() <= span.getLast()) {
+                        ByteRanges.Range part = parts.get(partIndex);
+                        ByteStreams.skipFully(is, part.getFirst() - position);
+                        os.write(partHeaders.get(partIndex));
+                        BufferPool.getInstance().copy(
+                                ByteStreams.limit(is, part.getLength()), os);
+                        position = part.getLast() + 1;
+                        ++partIndex;
+                    }
+                }
+            }
+            os.write(trailer);
             os.flush();
+        } finally {
+            for (int i = 0; i < reads.size(); ++i) {
+                futures.get(i).cancel(false);
+                closeQuietly(reads.get(i).abandon());
+            }
+        }
+        return true;
+    }
+
+    private static void closeQuietly(@Nullable Blob blob) {
+        if (blob == null) {
+            return;
+        }
+        try {
+            blob.getPayload().close();
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Error releasing range payload: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * A backend read for one span of a multi-range GET.  Its result is kept
+     * until the request abandons it so that a read still in flight when the
+     * request finishes or fails closes its own payload instead of leaking
+     * the backend connection.
+     */
+    private static final class RangeRead implements Callable<Blob> {
+        private final Callable<Blob> read;
+        /** Guarded by this, as is blob. */
+        private boolean abandoned;
+        @Nullable private Blob blob;
+
+        RangeRead(Callable<Blob> read) {
+            this.read = read;
+        }
+
+        @Override
+        public Blob call() throws Exception {
+            synchronized (this) {
+                if (abandoned) {
+                    return null;
+                }
+            }
+            Blob result = read.call();
+            synchronized (this) {
+                if (!abandoned) {
+                    blob = result;
+                    return result;
+                }
+            }
+            closeQuietly(result);
+            return null;
+        }
+
+        /** Returns the result, if any, for the caller to close. */
+        @Nullable synchronized Blob abandon() {
+            abandoned = true;
+            Blob result = blob;
+            blob = null;
+            return result;
         }
     }
 
@@ -1804,10 +2803,9 @@ public class S3ProxyHandler {
                     ContentMetadataBuilder.create();
             ImmutableMap.Builder<String, String> userMetadata =
                     ImmutableMap.builder();
-            for (String headerName : Collections.list(
-                    request.getHeaderNames())) {
-                String headerValue = Strings.nullToEmpty(request.getHeader(
-                        headerName));
+            RequestContext context = RequestContext.get(request);
+            for (String headerName : context.getHeaderNames()) {
+                String headerValue = context.getHeader(headerName);
                 if (headerName.equalsIgnoreCase(
                         HttpHeaders.CACHE_CONTROL)) {
                     contentMetadata.cacheControl(headerValue);
@@ -1879,21 +2877,12 @@ public class S3ProxyHandler {
             throws IOException, S3Exception {
         // Flag headers present since HttpServletResponse.getHeader returns
         // null for empty headers values.
-        String contentLengthString = null;
-        String decodedContentLengthString = null;
-        String contentMD5String = null;
-        for (String headerName : Collections.list(request.getHeaderNames())) {
-            String headerValue = Strings.nullToEmpty(request.getHeader(
-                    headerName));
-            if (headerName.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)) {
-                contentLengthString = headerValue;
-            } else if (headerName.equalsIgnoreCase(
-                    AwsHttpHeaders.DECODED_CONTENT_LENGTH)) {
-                decodedContentLengthString = headerValue;
-            } else if (headerName.equalsIgnoreCase(HttpHeaders.CONTENT_MD5)) {
-                contentMD5String = headerValue;
-            }
-        }
+        RequestContext context = RequestContext.get(request);
+        String contentLengthString = context.getHeader(
+                HttpHeaders.CONTENT_LENGTH);
+        String decodedContentLengthString = context.getHeader(
+                AwsHttpHeaders.DECODED_CONTENT_LENGTH);
+        String contentMD5String = context.getHeader(HttpHeaders.CONTENT_MD5);
         if (decodedContentLengthString != null) {
             contentLengthString = decodedContentLengthString;
         }
@@ -1998,30 +2987,31 @@ public class S3ProxyHandler {
         MultipartStream multipartStream = new MultipartStream(is,
                 boundary.getBytes(StandardCharsets.UTF_8), 4096, null);
         boolean nextPart = multipartStream.skipPreamble();
+        // reuse one buffer for all form fields
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
         while (nextPart) {
             String header = multipartStream.readHeaders();
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                multipartStream.readBodyData(baos);
-                if (isField(header, "acl")) {
-                    // TODO: acl
-                } else if (isField(header, "AWSAccessKeyId") ||
-                        isField(header, "X-Amz-Credential")) {
-                    identity = new String(baos.toByteArray());
-                } else if (isField(header, "Content-Type")) {
-                    contentType = new String(baos.toByteArray());
-                } else if (isField(header, "file")) {
-                    // TODO: buffers entire payload
-                    payload = baos.toByteArray();
-                } else if (isField(header, "key")) {
-                    blobName = new String(baos.toByteArray());
-                } else if (isField(header, "policy")) {
-                    policy = baos.toByteArray();
-                } else if (isField(header, "signature") ||
-                        isField(header, "X-Amz-Signature")) {
-                    signature = new String(baos.toByteArray());
-                } else if (isField(header, "X-Amz-Algorithm")) {
-                    algorithm = new String(baos.toByteArray());
-                }
+            baos.reset();
+            multipartStream.readBodyData(baos);
+            if (isField(header, "acl")) {
+                // TODO: acl
+            } else if (isField(header, "AWSAccessKeyId") ||
+                    isField(header, "X-Amz-Credential")) {
+                identity = new String(baos.toByteArray());
+            } else if (isField(header, "Content-Type")) {
+                contentType = new String(baos.toByteArray());
+            } else if (isField(header, "file")) {
+                // TODO: buffers entire payload
+                payload = baos.toByteArray();
+            } else if (isField(header, "key")) {
+                blobName = new String(baos.toByteArray());
+            } else if (isField(header, "policy")) {
+                policy = baos.toByteArray();
+            } else if (isField(header, "signature") ||
+                    isField(header, "X-Amz-Signature")) {
+                signature = new String(baos.toByteArray());
+            } else if (isField(header, "X-Amz-Algorithm")) {
+                algorithm = new String(baos.toByteArray());
             }
             nextPart = multipartStream.readBoundary();
         }
@@ -2098,19 +3088,14 @@ public class S3ProxyHandler {
         String credential = provider.getKey();
 
         if (signatureVersion4) {
-            byte[] kSecret = ("AWS4" + credential).getBytes(
-                    StandardCharsets.UTF_8);
-            byte[] kDate = hmac("HmacSHA256",
-                    authHeader.getDate().getBytes(StandardCharsets.UTF_8),
-                    kSecret);
-            byte[] kRegion = hmac("HmacSHA256",
-                    authHeader.getRegion().getBytes(StandardCharsets.UTF_8),
-                    kDate);
-            byte[] kService = hmac("HmacSHA256",
-                    authHeader.getService().getBytes(StandardCharsets.UTF_8),
-                    kRegion);
-            byte[] kSigning = hmac("HmacSHA256",
-                    "aws4_request".getBytes(StandardCharsets.UTF_8), kService);
+            byte[] kSigning;
+            try {
+                kSigning = AwsSignature.getSigningKey(credential,
+                        authHeader.getDate(), authHeader.getRegion(),
+                        authHeader.getService(), "HmacSHA256");
+            } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
             String expectedSignature = BaseEncoding.base16().lowerCase().encode(
                     hmac("HmacSHA256", policy, kSigning));
             if (!constantTimeEquals(signature, expectedSignature)) {
@@ -2690,21 +3675,12 @@ public class S3ProxyHandler {
             String containerName, String blobName, String uploadId)
             throws IOException, S3Exception {
         // TODO: duplicated from handlePutBlob
-        String contentLengthString = null;
-        String decodedContentLengthString = null;
-        String contentMD5String = null;
-        for (String headerName : Collections.list(request.getHeaderNames())) {
-            String headerValue = Strings.nullToEmpty(request.getHeader(
-                    headerName));
-            if (headerName.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)) {
-                contentLengthString = headerValue;
-            } else if (headerName.equalsIgnoreCase(
-                    AwsHttpHeaders.DECODED_CONTENT_LENGTH)) {
-                decodedContentLengthString = headerValue;
-            } else if (headerName.equalsIgnoreCase(HttpHeaders.CONTENT_MD5)) {
-                contentMD5String = headerValue;
-            }
-        }
+        RequestContext context = RequestContext.get(request);
+        String contentLengthString = context.getHeader(
+                HttpHeaders.CONTENT_LENGTH);
+        String decodedContentLengthString = context.getHeader(
+                AwsHttpHeaders.DECODED_CONTENT_LENGTH);
+        String contentMD5String = context.getHeader(HttpHeaders.CONTENT_MD5);
         if (decodedContentLengthString != null) {
             contentLengthString = decodedContentLengthString;
         }
@@ -2884,6 +3860,34 @@ public class S3ProxyHandler {
         }
     }
 
+    /**
+     * Executor for list calls issued ahead of the client.  When it is
+     * saturated these are skipped rather than queued without bound.
+     */
+    private static ExecutorService newListExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(LIST_THREADS,
+                LIST_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(LIST_QUEUE_SIZE),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("S3Proxy-list-%d")
+                        .setDaemon(true)
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Returns null if the list executor is saturated. */
+    @Nullable
+    private static Future<PageSet<? extends StorageMetadata>> submitList(
+            Callable<PageSet<? extends StorageMetadata>> list) {
+        try {
+            return listExecutor.submit(list);
+        } catch (RejectedExecutionException ree) {
+            logger.debug("Skipping background list: {}", ree.getMessage());
+            return null;
+        }
+    }
+
     /** Parse ISO 8601 timestamp into seconds since 1970. */
     private static long parseIso8601(String date) {
         SimpleDateFormat formatter = new SimpleDateFormat(
@@ -2976,11 +3980,12 @@ public class S3ProxyHandler {
             HttpServletRequest request) {
         ImmutableMap.Builder<String, String> userMetadata =
                 ImmutableMap.builder();
-        for (String headerName : Collections.list(request.getHeaderNames())) {
+        RequestContext context = RequestContext.get(request);
+        for (String headerName : context.getHeaderNames()) {
             if (startsWithIgnoreCase(headerName, USER_METADATA_PREFIX)) {
                 userMetadata.put(
                         headerName.substring(USER_METADATA_PREFIX.length()),
-                        Strings.nullToEmpty(request.getHeader(headerName)));
+                        context.getHeader(headerName));
             }
         }
         builder.cacheControl(request.getHeader(
@@ -3067,9 +4072,7 @@ public class S3ProxyHandler {
 
     private static byte[] hmac(String algorithm, byte[] data, byte[] key) {
         try {
-            Mac mac = Mac.getInstance(algorithm);
-            mac.init(new SecretKeySpec(key, algorithm));
-            return mac.doFinal(data);
+            return AwsSignature.signMessage(data, key, algorithm);
         } catch (InvalidKeyException | NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
@@ -3085,6 +4088,22 @@ public class S3ProxyHandler {
         }
     }
 
+    /** Counts conditional GETs answered from blob metadata. */
+    static final class RevalidationStats implements RevalidationMXBean {
+        private final AtomicLong revalidations = new AtomicLong();
+        private final AtomicLong avoidedReads = new AtomicLong();
+
+        @Override
+        public long getRevalidationCount() {
+            return revalidations.get();
+        }
+
+        @Override
+        public long getAvoidedReadCount() {
+            return avoidedReads.get();
+        }
+    }
+
     private static final class UncloseableInputStream
             extends FilterInputStream {
         UncloseableInputStream(InputStream is) {
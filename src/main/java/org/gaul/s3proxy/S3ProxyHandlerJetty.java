@@ -18,6 +18,7 @@ package org.gaul.s3proxy;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Set;
 import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nullable;
@@ -50,11 +51,21 @@ final class S3ProxyHandlerJetty extends AbstractHandler {
             final String credential, @Nullable String virtualHost,
             long maxSinglePartObjectSize, long v4MaxNonChunkedRequestSize,
             boolean ignoreUnknownHeaders, CrossOriginResourceSharing corsRules,
-            String servicePath, int maximumTimeSkew) {
+            String servicePath, int maximumTimeSkew, boolean asyncDownloads,
+            boolean filesystemSendfile,
+            @Nullable AdmissionController admissionController,
+            boolean streamingPayloadVerification, boolean streamingListings,
+            Set<String> trustedIdentities, int trustedMaxKeys,
+            @Nullable String continuationTokenKey,
+            boolean revalidationFastPath) {
         handler = new S3ProxyHandler(blobStore, authenticationType, identity,
                 credential, virtualHost, maxSinglePartObjectSize,
                 v4MaxNonChunkedRequestSize, ignoreUnknownHeaders, corsRules,
-                servicePath, maximumTimeSkew);
+                servicePath, maximumTimeSkew, asyncDownloads,
+                filesystemSendfile, admissionController,
+                streamingPayloadVerification, streamingListings,
+                trustedIdentities, trustedMaxKeys, continuationTokenKey,
+                revalidationFastPath);
     }
 
     private void sendS3Exception(HttpServletRequest request,
@@ -83,6 +94,19 @@ final class S3ProxyHandlerJetty extends AbstractHandler {
             baseRequest.setHandled(true);
             return;
         } catch (HttpResponseException hre) {
+            if (Throwables2.getFirstThrowableOfType(hre,
+                    DigestMismatchException.class) != null) {
+                sendS3Exception(request, response, new S3Exception(
+                        S3ErrorCode.X_AMZ_CONTENT_S_H_A_256_MISMATCH));
+                baseRequest.setHandled(true);
+                return;
+            } else if (Throwables2.getFirstThrowableOfType(hre,
+                    ChunkSignatureException.class) != null) {
+                sendS3Exception(request, response, new S3Exception(
+                        S3ErrorCode.SIGNATURE_DOES_NOT_MATCH));
+                baseRequest.setHandled(true);
+                return;
+            }
             HttpResponse hr = hre.getResponse();
             if (hr == null) {
                 logger.debug("HttpResponseException without HttpResponse:",
@@ -135,6 +159,18 @@ final class S3ProxyHandlerJetty extends AbstractHandler {
             return;
         } catch (Throwable throwable) {
             if (Throwables2.getFirstThrowableOfType(throwable,
+                    DigestMismatchException.class) != null) {
+                sendS3Exception(request, response, new S3Exception(
+                        S3ErrorCode.X_AMZ_CONTENT_S_H_A_256_MISMATCH));
+                baseRequest.setHandled(true);
+                return;
+            } else if (Throwables2.getFirstThrowableOfType(throwable,
+                    ChunkSignatureException.class) != null) {
+                sendS3Exception(request, response, new S3Exception(
+                        S3ErrorCode.SIGNATURE_DOES_NOT_MATCH));
+                baseRequest.setHandled(true);
+                return;
+            } else if (Throwables2.getFirstThrowableOfType(throwable,
                     AuthorizationException.class) != null) {
                 S3ErrorCode code = S3ErrorCode.ACCESS_DENIED;
                 handler.sendSimpleErrorResponse(request, response, code,
@@ -152,6 +188,8 @@ final class S3ProxyHandlerJetty extends AbstractHandler {
                 logger.debug("Unknown exception:", throwable);
                 throw throwable;
             }
+        } finally {
+            RequestContext.releaseBodyBuffer(request);
         }
     }
 
@@ -27,22 +27,34 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import javax.annotation.Nullable;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.ContainerNotFoundException;
@@ -83,6 +95,10 @@ import org.jclouds.io.Payload;
  * be pre-created either out of band or by issuing the CreateBucket API with
  * the sharded bucket name. The sharded bucket itself will not be
  * instantiated on the backend.
+ *
+ * Listing a sharded bucket lists all shards in parallel and merges the
+ * results in key order. The returned marker records the position within
+ * each shard so that shards which are exhausted are not listed again.
  */
 final class ShardedBlobStore extends ForwardingBlobStore {
     public static final Pattern PROPERTIES_PREFIX_RE = Pattern.compile(
@@ -99,6 +115,19 @@ final class ShardedBlobStore extends ForwardingBlobStore {
     private static final String SUPERBLOCK_BLOB_NAME =
             ".s3proxy-sharded-superblock";
     private static final int MAX_SHARDS = 1000;
+    private static final String MARKER_PREFIX = "s3proxy-shards:";
+    private static final Splitter MARKER_SPLITTER = Splitter.on(',');
+    private static final BaseEncoding MARKER_ENCODING =
+            BaseEncoding.base64Url().omitPadding();
+    /** Upper bound on threads running shard calls. */
+    private static final int SHARD_EXECUTOR_THREADS = 32;
+    /**
+     * Shared by all instances for listing and counting shards.  Calls
+     * beyond the thread limit wait in the queue instead of starting a
+     * thread per shard.
+     */
+    private static final ExecutorService shardExecutor =
+            newShardExecutor();
     private final ImmutableMap<String, ShardedBucket> buckets;
     private final ImmutableMap<String, String> prefixMap;
 
@@ -112,6 +141,77 @@ final class ShardedBlobStore extends ForwardingBlobStore {
         }
     }
 
+    /**
+     * Where to resume listing a shard: the backend marker and the number of
+     * entries after it which were already returned.  The latter is only
+     * non-zero for backends whose markers cannot be constructed from keys.
+     */
+    private static final class ShardPosition {
+        @Nullable
+        private final String marker;
+        private final int skip;
+
+        private ShardPosition(@Nullable String marker, int skip) {
+            this.marker = marker;
+            this.skip = skip;
+        }
+    }
+
+    /** One page of a shard listing consumed by the merge. */
+    private static final class ShardCursor {
+        private final int shard;
+        private final ShardPosition start;
+        private final List<StorageMetadata> entries;
+        @Nullable
+        private final String nextMarker;
+        private int index;
+
+        private ShardCursor(int shard, ShardPosition start,
+                PageSet<? extends StorageMetadata> page) {
+            this.shard = shard;
+            this.start = start;
+            this.entries = new ArrayList<>(page);
+            this.nextMarker = page.getNextMarker();
+            this.index = start.skip;
+            skipSuperblock();
+        }
+
+        private boolean hasNext() {
+            return index < entries.size();
+        }
+
+        private String peekName() {
+            return entries.get(index).getName();
+        }
+
+        private StorageMetadata next() {
+            StorageMetadata metadata = entries.get(index++);
+            skipSuperblock();
+            return metadata;
+        }
+
+        private void skipSuperblock() {
+            while (shard == 0 && hasNext() &&
+                    peekName().equals(SUPERBLOCK_BLOB_NAME)) {
+                ++index;
+            }
+        }
+
+        /** Position after the consumed entries or null if exhausted. */
+        @Nullable
+        private ShardPosition position(boolean opaqueMarkers) {
+            if (!hasNext()) {
+                return nextMarker == null ? null :
+                        new ShardPosition(nextMarker, 0);
+            } else if (opaqueMarkers) {
+                return new ShardPosition(start.marker, index);
+            } else if (index > 0) {
+                return new ShardPosition(entries.get(index - 1).getName(), 0);
+            }
+            return start;
+        }
+    }
+
     private ShardedBlobStore(BlobStore blobStore,
                              ImmutableMap<String, Integer> shards,
                              ImmutableMap<String, String> prefixes) {
@@ -347,19 +447,94 @@ final class ShardedBlobStore extends ForwardingBlobStore {
         if (!this.buckets.containsKey(container)) {
             return this.delegate().list(container);
         }
-        // TODO: implement listing a sharded container
-        throw new UnsupportedOperationException("sharded bucket");
+        return list(container, new ListContainerOptions());
     }
 
     @Override
     public PageSet<? extends StorageMetadata> list(
             String container,
             ListContainerOptions options) {
-        if (!this.buckets.containsKey(container)) {
+        ShardedBucket bucket = this.buckets.get(container);
+        if (bucket == null) {
             return this.delegate().list(container, options);
         }
-        // TODO: implement listing a sharded container
-        throw new UnsupportedOperationException("sharded bucket");
+        int maxResults = options.getMaxResults() != null ?
+                options.getMaxResults() : 1000;
+        List<ShardPosition> positions = parseMarker(bucket,
+                options.getMarker());
+
+        List<Integer> shards = new ArrayList<>();
+        List<Callable<PageSet<? extends StorageMetadata>>> tasks =
+                new ArrayList<>();
+        BlobStore blobStore = this.delegate();
+        for (int n = 0; n < bucket.shards; ++n) {
+            ShardPosition position = positions.get(n);
+            if (position == null) {
+                continue;
+            }
+            String shard = ShardedBlobStore.getShardContainer(bucket, n);
+            ListContainerOptions shardOptions = createShardListOptions(
+                    options, position.marker, maxResults + position.skip);
+            shards.add(n);
+            tasks.add(() -> blobStore.list(shard, shardOptions));
+        }
+        List<PageSet<? extends StorageMetadata>> pages = invokeAll(tasks);
+
+        List<ShardCursor> cursors = new ArrayList<>();
+        PriorityQueue<ShardCursor> queue = new PriorityQueue<>(
+                Math.max(1, pages.size()), (a, b) -> {
+                    int cmp = a.peekName().compareTo(b.peekName());
+                    return cmp != 0 ? cmp : Integer.compare(a.shard, b.shard);
+                });
+        for (int i = 0; i < pages.size(); ++i) {
+            int shard = shards.get(i);
+            ShardCursor cursor = new ShardCursor(shard, positions.get(shard),
+                    pages.get(i));
+            cursors.add(cursor);
+            if (cursor.hasNext()) {
+                queue.add(cursor);
+            }
+        }
+
+        List<StorageMetadata> results = new ArrayList<>();
+        String lastName = null;
+        // a shard whose page was empty but which has more keys could
+        // precede every other entry
+        boolean blocked = cursors.stream().anyMatch(
+                cursor -> !cursor.hasNext() && cursor.nextMarker != null);
+        while (!blocked && !queue.isEmpty()) {
+            ShardCursor cursor = queue.peek();
+            // common prefixes can appear in several shards
+            if (cursor.peekName().equals(lastName)) {
+                queue.poll();
+                cursor.next();
+            } else if (results.size() < maxResults) {
+                queue.poll();
+                StorageMetadata metadata = cursor.next();
+                results.add(metadata);
+                lastName = metadata.getName();
+            } else {
+                break;
+            }
+            if (cursor.hasNext()) {
+                queue.add(cursor);
+            } else if (cursor.nextMarker != null) {
+                // later keys of this shard are not known yet
+                break;
+            }
+        }
+
+        boolean opaqueMarkers = Quirks.OPAQUE_MARKERS.contains(
+                blobStore.getContext().unwrap().getProviderMetadata()
+                        .getId());
+        for (ShardCursor cursor : cursors) {
+            positions.set(cursor.shard, cursor.position(opaqueMarkers));
+        }
+        String nextMarker = null;
+        if (positions.stream().anyMatch(Objects::nonNull)) {
+            nextMarker = formatMarker(positions);
+        }
+        return new PageSetImpl<>(results, nextMarker);
     }
 
     @Override
@@ -555,15 +730,169 @@ final class ShardedBlobStore extends ForwardingBlobStore {
         if (!this.buckets.containsKey(container)) {
             return this.delegate().countBlobs(container);
         }
-        throw new UnsupportedOperationException("sharded bucket");
+        return countBlobs(container, ListContainerOptions.Builder.recursive());
     }
 
     @Override
     public long countBlobs(String container, ListContainerOptions options) {
-        if (!this.buckets.containsKey(container)) {
+        ShardedBucket bucket = this.buckets.get(container);
+        if (bucket == null) {
             return this.delegate().countBlobs(container, options);
         }
-        throw new UnsupportedOperationException("sharded bucket");
+        List<Callable<Long>> tasks = new ArrayList<>();
+        BlobStore blobStore = this.delegate();
+        for (int n = 0; n < bucket.shards; ++n) {
+            String shard = ShardedBlobStore.getShardContainer(bucket, n);
+            tasks.add(() -> blobStore.countBlobs(shard, options));
+        }
+        String zeroShardContainer = ShardedBlobStore.getShardContainer(
+                bucket, 0);
+        tasks.add(() -> blobStore.blobExists(zeroShardContainer,
+                SUPERBLOCK_BLOB_NAME) ? 1L : 0L);
+        List<Long> counts = invokeAll(tasks);
+        long count = 0;
+        for (int n = 0; n < bucket.shards; ++n) {
+            count += counts.get(n);
+        }
+        // the superblock is counted when it matches options; callers of the
+        // deprecated directory API still scope counts with dir
+        @SuppressWarnings("deprecation")
+        String dir = options.getDir();
+        String prefix = options.getPrefix() != null ? options.getPrefix() :
+                dir;
+        if (prefix == null || SUPERBLOCK_BLOB_NAME.startsWith(prefix)) {
+            count -= counts.get(bucket.shards);
+        }
+        return count;
+    }
+
+    private static ExecutorService newShardExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                SHARD_EXECUTOR_THREADS, SHARD_EXECUTOR_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("S3Proxy-shard-%d")
+                        .setDaemon(true)
+                        .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Run tasks in parallel on the shared executor. */
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(shardExecutor.submit(task));
+        }
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(Uninterruptibles.getUninterruptibly(future));
+            }
+        } catch (ExecutionException ee) {
+            Throwables.throwIfUnchecked(ee.getCause());
+            throw new RuntimeException(ee.getCause());
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    // forward dir so that callers of the deprecated directory API list the
+    // same names from each shard as from an unsharded bucket
+    @SuppressWarnings("deprecation")
+    private static ListContainerOptions createShardListOptions(
+            ListContainerOptions options, @Nullable String marker,
+            int maxResults) {
+        ListContainerOptions shardOptions = new ListContainerOptions();
+        if (options.getDir() != null) {
+            shardOptions.inDirectory(options.getDir());
+        }
+        if (options.getPrefix() != null) {
+            shardOptions.prefix(options.getPrefix());
+        }
+        if (options.getDelimiter() != null) {
+            shardOptions.delimiter(options.getDelimiter());
+        }
+        if (options.isRecursive()) {
+            shardOptions.recursive();
+        }
+        if (options.isDetailed()) {
+            shardOptions.withDetails();
+        }
+        if (marker != null) {
+            shardOptions.afterMarker(marker);
+        }
+        return shardOptions.maxResults(maxResults);
+    }
+
+    /**
+     * Parse a marker returned by list into a position for each shard, null
+     * for exhausted shards.  Any other marker is a key from which all
+     * shards resume.
+     */
+    private static List<ShardPosition> parseMarker(ShardedBucket bucket,
+            @Nullable String marker) {
+        List<ShardPosition> positions = new ArrayList<>();
+        if (marker != null && marker.startsWith(MARKER_PREFIX)) {
+            List<String> parts = MARKER_SPLITTER.splitToList(
+                    marker.substring(MARKER_PREFIX.length()));
+            if (parts.size() == bucket.shards) {
+                try {
+                    for (String part : parts) {
+                        positions.add(parsePosition(part));
+                    }
+                    return positions;
+                } catch (IllegalArgumentException iae) {
+                    positions.clear();
+                }
+            }
+        }
+        for (int n = 0; n < bucket.shards; ++n) {
+            positions.add(new ShardPosition(marker, 0));
+        }
+        return positions;
+    }
+
+    @Nullable
+    private static ShardPosition parsePosition(String part) {
+        if (part.equals("-")) {
+            return null;
+        }
+        int index = part.indexOf('.');
+        if (index == -1) {
+            throw new IllegalArgumentException("invalid position: " + part);
+        }
+        int skip = Integer.parseInt(part.substring(0, index));
+        if (skip < 0) {
+            throw new IllegalArgumentException("invalid position: " + part);
+        }
+        String marker = part.substring(index + 1);
+        return new ShardPosition(marker.isEmpty() ? null : new String(
+                MARKER_ENCODING.decode(marker), StandardCharsets.UTF_8),
+                skip);
+    }
+
+    private static String formatMarker(List<ShardPosition> positions) {
+        StringBuilder builder = new StringBuilder(MARKER_PREFIX);
+        for (int n = 0; n < positions.size(); ++n) {
+            if (n > 0) {
+                builder.append(',');
+            }
+            ShardPosition position = positions.get(n);
+            if (position == null) {
+                builder.append('-');
+                continue;
+            }
+            builder.append(position.skip).append('.');
+            if (position.marker != null) {
+                builder.append(MARKER_ENCODING.encode(
+                        position.marker.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        return builder.toString();
     }
 
     @Override
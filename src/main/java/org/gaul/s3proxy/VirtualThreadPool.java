@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Jetty thread pool which runs every task on its own virtual thread.  There
+ * is no upper bound on concurrency so the pool never reports itself as low
+ * on threads; blocking backend calls park the virtual thread instead of
+ * exhausting a fixed set of platform threads.
+ */
+final class VirtualThreadPool extends AbstractLifeCycle
+        implements ThreadPool {
+    private final String name;
+    private final AtomicInteger activeThreads = new AtomicInteger();
+    private volatile ExecutorService executor;
+
+    VirtualThreadPool(String name) {
+        this.name = name;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        executor = VirtualThreads.newVirtualThreadPerTaskExecutor(
+                name + "-");
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        executor.shutdown();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        ExecutorService executor = this.executor;
+        if (executor == null) {
+            throw new RejectedExecutionException(name + " is not started");
+        }
+        executor.execute(() -> {
+            activeThreads.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                activeThreads.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        ExecutorService executor = this.executor;
+        if (executor != null) {
+            while (!executor.awaitTermination(1, TimeUnit.DAYS)) {
+                // keep waiting until the pool is stopped
+            }
+        }
+    }
+
+    @Override
+    public int getThreads() {
+        return activeThreads.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s]{%s,active=%d}",
+                getClass().getSimpleName(), name, getState(),
+                activeThreads.get());
+    }
+}
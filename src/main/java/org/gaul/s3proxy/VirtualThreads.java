@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.Nullable;
+
+/**
+ * Access to JDK virtual threads without compiling against them.  S3Proxy
+ * targets Java 8 so the Loom APIs are resolved reflectively; callers fall
+ * back to platform threads when {@link #isSupported} returns false.
+ */
+final class VirtualThreads {
+    @Nullable
+    private static final Method OF_VIRTUAL = lookup(Thread.class,
+            "ofVirtual");
+    /**
+     * Builder methods resolved on the public Thread.Builder.OfVirtual
+     * interface; the implementing class is not accessible.
+     */
+    @Nullable
+    private static final Class<?> OF_VIRTUAL_BUILDER = lookupClass(
+            "java.lang.Thread$Builder$OfVirtual");
+
+    private VirtualThreads() {
+        throw new AssertionError("intentionally not implemented");
+    }
+
+    static boolean isSupported() {
+        return OF_VIRTUAL != null && OF_VIRTUAL_BUILDER != null;
+    }
+
+    /**
+     * Create an executor which starts a new virtual thread per task.  Thread
+     * names are prefix followed by a sequence number.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor(String prefix) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException(
+                    "virtual threads require Java 21 or newer, running " +
+                    System.getProperty("java.version"));
+        }
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = OF_VIRTUAL_BUILDER.getMethod("name", String.class,
+                    long.class).invoke(builder, prefix, 0L);
+            ThreadFactory factory = (ThreadFactory) OF_VIRTUAL_BUILDER
+                    .getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod(
+                    "newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (IllegalAccessException | InvocationTargetException |
+                NoSuchMethodException e) {
+            throw new UnsupportedOperationException(
+                    "could not create virtual thread executor", e);
+        }
+    }
+
+    @Nullable
+    private static Class<?> lookupClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException cnfe) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Method lookup(Class<?> klass, String name) {
+        try {
+            return klass.getMethod(name);
+        } catch (NoSuchMethodException nsme) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public final class AdmissionControllerTest {
+    @Test
+    public void testIdentityLimit() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 0, 0, 0);
+        AdmissionController.Permit permit = controller.acquire("alice",
+                "bucket");
+        try {
+            controller.acquire("alice", "bucket");
+            Assertions.failBecauseExceptionWasNotThrown(S3Exception.class);
+        } catch (S3Exception se) {
+            assertThat(se.getError()).isEqualTo(S3ErrorCode.SLOW_DOWN);
+        }
+        // other identities are unaffected
+        controller.acquire("bob", "bucket").close();
+        permit.close();
+        controller.acquire("alice", "bucket").close();
+        assertThat(controller.getRejectedCount()).isEqualTo(1);
+        assertThat(controller.getActiveRequests()).isEqualTo(0);
+    }
+
+    @Test
+    public void testBucketLimitReleasesIdentityPermit() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 1, 0, 0);
+        AdmissionController.Permit permit = controller.acquire("alice",
+                "bucket");
+        try {
+            controller.acquire("bob", "bucket");
+            Assertions.failBecauseExceptionWasNotThrown(S3Exception.class);
+        } catch (S3Exception se) {
+            assertThat(se.getError()).isEqualTo(S3ErrorCode.SLOW_DOWN);
+        }
+        // bob's identity permit was returned when the bucket was full
+        controller.acquire("bob", "other-bucket").close();
+        permit.close();
+    }
+
+    @Test
+    public void testQueuedRequestAdmittedOnRelease() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 0, 1,
+                10 * 1000);
+        AdmissionController.Permit permit = controller.acquire("alice",
+                null);
+        CountDownLatch admittedLatch = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                controller.acquire("alice", null).close();
+                admittedLatch.countDown();
+            } catch (S3Exception se) {
+                throw new RuntimeException(se);
+            }
+        });
+        thread.start();
+        // the second request cannot be admitted while the permit is held
+        assertThat(admittedLatch.await(100, TimeUnit.MILLISECONDS))
+                .isFalse();
+        permit.close();
+        assertThat(admittedLatch.await(10, TimeUnit.SECONDS)).isTrue();
+        thread.join();
+        assertThat(controller.getAdmittedCount()).isEqualTo(2);
+        assertThat(controller.getRejectedCount()).isEqualTo(0);
+    }
+}
@@ -20,6 +20,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assume.assumeTrue;
 
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
@@ -29,10 +31,12 @@ import java.security.cert.X509Certificate;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
+import javax.management.ObjectName;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -132,8 +136,12 @@ public final class AwsSdkTest {
 
     @Before
     public void setUp() throws Exception {
+        startS3Proxy(new Properties());
+    }
+
+    private void startS3Proxy(Properties overrides) throws Exception {
         TestUtils.S3ProxyLaunchInfo info = TestUtils.startS3Proxy(
-                "s3proxy.conf");
+                "s3proxy.conf", overrides);
         awsCreds = new BasicAWSCredentials(info.getS3Identity(),
                 info.getS3Credential());
         context = info.getBlobStore().getContext();
@@ -174,6 +182,12 @@ public final class AwsSdkTest {
         }
     }
 
+    /** Restart S3Proxy on a fresh backend with additional properties. */
+    private void restartS3Proxy(Properties overrides) throws Exception {
+        tearDown();
+        startS3Proxy(overrides);
+    }
+
     @Test
     public void testAwsV2Signature() throws Exception {
         client = AmazonS3ClientBuilder.standard()
@@ -407,6 +421,69 @@ public final class AwsSdkTest {
         }
     }
 
+    @Test
+    public void testRevalidationFastPath() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(
+                S3ProxyConstants.PROPERTY_REVALIDATION_FAST_PATH, "true");
+        restartS3Proxy(properties);
+
+        String blobName = "blob";
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(BYTE_SOURCE.size());
+        client.putObject(containerName, blobName, BYTE_SOURCE.openStream(),
+                metadata);
+        String eTag = "\"" + client.getObjectMetadata(containerName,
+                blobName).getETag() + "\"";
+        long avoided = getAvoidedReadCount();
+
+        assertThat(getWithHeaders(blobName, ImmutableMap.of(
+                "If-None-Match", eTag))).isEqualTo(304);
+        // If-None-Match uses the weak comparison
+        assertThat(getWithHeaders(blobName, ImmutableMap.of(
+                "If-None-Match", "W/" + eTag))).isEqualTo(304);
+        assertThat(getWithHeaders(blobName, ImmutableMap.of(
+                "If-Match", "\"other\"",
+                "If-None-Match", "\"other\""))).isEqualTo(412);
+        // If-Match uses the strong comparison
+        assertThat(getWithHeaders(blobName, ImmutableMap.of(
+                "If-Match", "W/" + eTag,
+                "If-None-Match", "\"other\""))).isEqualTo(412);
+        assertThat(getWithHeaders("missing", ImmutableMap.of(
+                "If-None-Match", eTag))).isEqualTo(404);
+        assertThat(getAvoidedReadCount() - avoided).isEqualTo(5);
+
+        assertThat(getWithHeaders(blobName, ImmutableMap.of(
+                "If-Match", eTag,
+                "If-None-Match", "\"other\""))).isEqualTo(200);
+        assertThat(getAvoidedReadCount() - avoided).isEqualTo(5);
+    }
+
+    private int getWithHeaders(String blobName, Map<String, String> headers)
+            throws Exception {
+        URL url = client.generatePresignedUrl(containerName, blobName,
+                new Date(System.currentTimeMillis() +
+                        TimeUnit.HOURS.toMillis(1)));
+        HttpURLConnection connection =
+                (HttpURLConnection) url.openConnection();
+        try {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                connection.setRequestProperty(entry.getKey(),
+                        entry.getValue());
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static long getAvoidedReadCount() throws Exception {
+        return (Long) ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName("org.gaul.s3proxy:type=Revalidation," +
+                        "name=" + ObjectName.quote("default")),
+                "AvoidedReadCount");
+    }
+
     @Test
     public void testAwsV4UrlSigning() throws Exception {
         String blobName = "foo";
@@ -968,6 +1045,123 @@ public final class AwsSdkTest {
         assertThat(result.getObjectSummaries().get(0).getKey()).isEqualTo("4");
     }
 
+    @Test
+    public void testBlobListStreaming() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(S3ProxyConstants.PROPERTY_STREAMING_LISTINGS,
+                "true");
+        restartS3Proxy(properties);
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(BYTE_SOURCE.size());
+        for (int i = 1; i < 6; ++i) {
+            client.putObject(containerName, String.valueOf(i),
+                    BYTE_SOURCE.openStream(), metadata);
+        }
+
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        ListObjectsRequest request = new ListObjectsRequest()
+                .withBucketName(containerName)
+                .withMaxKeys(2);
+        int pages = 0;
+        ObjectListing listing;
+        do {
+            listing = client.listObjects(request);
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                builder.add(summary.getKey());
+            }
+            request.setMarker(listing.getNextMarker());
+            ++pages;
+        } while (listing.isTruncated());
+        assertThat(builder.build()).containsExactly("1", "2", "3", "4", "5");
+        assertThat(pages).isEqualTo(3);
+
+        builder = ImmutableList.builder();
+        ListObjectsV2Request requestV2 = new ListObjectsV2Request()
+                .withBucketName(containerName)
+                .withMaxKeys(2);
+        ListObjectsV2Result result;
+        do {
+            result = client.listObjectsV2(requestV2);
+            assertThat(result.getKeyCount()).isEqualTo(
+                    result.getObjectSummaries().size());
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                builder.add(summary.getKey());
+            }
+            requestV2.setContinuationToken(
+                    result.getNextContinuationToken());
+        } while (result.isTruncated());
+        assertThat(builder.build()).containsExactly("1", "2", "3", "4", "5");
+    }
+
+    @Test
+    public void testBlobListStreamingPrefetch() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(S3ProxyConstants.PROPERTY_STREAMING_LISTINGS,
+                "true");
+        restartS3Proxy(properties);
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(BYTE_SOURCE.size());
+        for (int i = 1; i < 6; ++i) {
+            client.putObject(containerName, String.valueOf(i),
+                    BYTE_SOURCE.openStream(), metadata);
+        }
+
+        // the first request prefetches two keys after "2"
+        ObjectListing listing = client.listObjects(new ListObjectsRequest()
+                .withBucketName(containerName)
+                .withMaxKeys(2));
+        assertThat(listing.getNextMarker()).isEqualTo("2");
+
+        // a request for the same page reuses the prefetch
+        listing = client.listObjects(new ListObjectsRequest()
+                .withBucketName(containerName)
+                .withMaxKeys(2)
+                .withMarker("2"));
+        assertThat(listing.getObjectSummaries())
+                .extracting(S3ObjectSummary::getKey)
+                .containsExactly("3", "4");
+        assertThat(listing.isTruncated()).isTrue();
+
+        // a request with a different max-keys must not
+        listing = client.listObjects(new ListObjectsRequest()
+                .withBucketName(containerName)
+                .withMaxKeys(3)
+                .withMarker("2"));
+        assertThat(listing.getObjectSummaries())
+                .extracting(S3ObjectSummary::getKey)
+                .containsExactly("3", "4", "5");
+        assertThat(listing.isTruncated()).isFalse();
+    }
+
+    @Test
+    public void testBlobListTrustedMaxKeys() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(S3ProxyConstants.PROPERTY_TRUSTED_IDENTITIES,
+                awsCreds.getAWSAccessKeyId());
+        properties.setProperty(S3ProxyConstants.PROPERTY_TRUSTED_MAX_KEYS,
+                "2000");
+        restartS3Proxy(properties);
+
+        BlobStore blobStore = context.getBlobStore();
+        for (int i = 0; i < 1001; ++i) {
+            blobStore.putBlob(containerName, blobStore.blobBuilder(
+                    String.format("%04d", i)).payload(BYTE_SOURCE).build());
+        }
+
+        ObjectListing listing = client.listObjects(new ListObjectsRequest()
+                .withBucketName(containerName)
+                .withMaxKeys(1500));
+        assertThat(listing.getObjectSummaries()).hasSize(1001);
+        assertThat(listing.isTruncated()).isFalse();
+
+        listing = client.listObjects(new ListObjectsRequest()
+                .withBucketName(containerName)
+                .withMaxKeys(5000));
+        assertThat(listing.getMaxKeys()).isEqualTo(2000);
+    }
+
     @Test
     public void testBlobMetadata() throws Exception {
         String blobName = "blob";
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import com.google.common.io.ByteSource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class BufferPoolTest {
+    private BufferPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new BufferPool();
+    }
+
+    @Test
+    public void testAcquireRoundsUpToSizeClass() {
+        byte[] buffer = pool.acquire(5000);
+        assertThat(buffer.length).isEqualTo(16 * 1024);
+        assertThat(pool.getOutstandingBuffers()).isEqualTo(1);
+        pool.release(buffer);
+        assertThat(pool.getOutstandingBuffers()).isEqualTo(0);
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        byte[] buffer = pool.acquire(1024);
+        pool.release(buffer);
+        assertThat(pool.acquire(1024)).isSameAs(buffer);
+        assertThat(pool.getHitCount()).isEqualTo(1);
+        assertThat(pool.getMissCount()).isEqualTo(1);
+        assertThat(pool.getHitRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    public void testOversizedBufferIsNotPooled() {
+        byte[] buffer = pool.acquire(4 * 1024 * 1024);
+        assertThat(buffer.length).isEqualTo(4 * 1024 * 1024);
+        pool.release(buffer);
+        assertThat(pool.getPooledBuffers()).isEqualTo(0);
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        ByteSource byteSource = TestUtils.randomByteSource().slice(
+                0, 3 * BufferPool.DEFAULT_BUFFER_SIZE + 17);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InputStream is = byteSource.openStream()) {
+            assertThat(pool.copy(is, baos)).isEqualTo(byteSource.size());
+        }
+        assertThat(baos.toByteArray()).isEqualTo(byteSource.read());
+        assertThat(pool.getOutstandingBuffers()).isEqualTo(0);
+        assertThat(pool.getPooledBuffers()).isEqualTo(1);
+    }
+}
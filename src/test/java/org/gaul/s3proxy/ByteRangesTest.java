@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+public final class ByteRangesTest {
+    @Test
+    public void testParse() {
+        assertThat(ByteRanges.parse("bytes=0-9, 20-, -5", 100)).containsExactly(
+                new ByteRanges.Range(0, 9), new ByteRanges.Range(20, 99),
+                new ByteRanges.Range(95, 99));
+    }
+
+    @Test
+    public void testParseClampsAndDropsUnsatisfiable() {
+        assertThat(ByteRanges.parse("bytes=90-200,150-160,-500", 100))
+                .containsExactly(new ByteRanges.Range(90, 99),
+                        new ByteRanges.Range(0, 99));
+    }
+
+    @Test
+    public void testParseInvalid() {
+        assertThat(ByteRanges.parse("items=0-9", 100)).isNull();
+        assertThat(ByteRanges.parse("bytes=9-0", 100)).isNull();
+        assertThat(ByteRanges.parse("bytes=a-b", 100)).isNull();
+        assertThat(ByteRanges.parse("bytes=10", 100)).isNull();
+    }
+
+    @Test
+    public void testCoalesceOverlapping() {
+        List<ByteRanges.Range> ranges = ImmutableList.of(
+                new ByteRanges.Range(50, 59), new ByteRanges.Range(0, 9),
+                new ByteRanges.Range(5, 14), new ByteRanges.Range(15, 19));
+        assertThat(ByteRanges.coalesce(ranges, -1)).containsExactly(
+                new ByteRanges.Range(0, 14), new ByteRanges.Range(15, 19),
+                new ByteRanges.Range(50, 59));
+    }
+
+    @Test
+    public void testCoalesceWithGap() {
+        List<ByteRanges.Range> ranges = ImmutableList.of(
+                new ByteRanges.Range(0, 9), new ByteRanges.Range(20, 29),
+                new ByteRanges.Range(100, 109));
+        assertThat(ByteRanges.coalesce(ranges, 10)).containsExactly(
+                new ByteRanges.Range(0, 29), new ByteRanges.Range(100, 109));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Module;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class CachingMetadataBlobStoreTest {
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private BlobStore metadataCacheBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        metadataCacheBlobStore =
+                CachingMetadataBlobStore.newCachingMetadataBlobStore(
+                        blobStore, 60 * 1000, 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testMetadataCached() throws Exception {
+        putBlob(blobStore, "blob", "content");
+        BlobMetadata metadata = metadataCacheBlobStore.blobMetadata(
+                containerName, "blob");
+
+        // writes which bypass the cache are not visible
+        putBlob(blobStore, "blob", "other content");
+        assertThat(metadataCacheBlobStore.blobMetadata(containerName, "blob")
+                .getETag()).isEqualTo(metadata.getETag());
+
+        MetadataCacheMXBean bean =
+                (MetadataCacheMXBean) metadataCacheBlobStore;
+        assertThat(bean.getHitCount()).isEqualTo(1);
+        assertThat(bean.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testMissingBlobNotCached() throws Exception {
+        assertThat(metadataCacheBlobStore.blobMetadata(containerName, "blob"))
+                .isNull();
+        putBlob(blobStore, "blob", "content");
+        assertThat(metadataCacheBlobStore.blobMetadata(containerName, "blob"))
+                .isNotNull();
+    }
+
+    @Test
+    public void testPutBlobInvalidates() throws Exception {
+        putBlob(metadataCacheBlobStore, "blob", "content");
+        BlobMetadata metadata = metadataCacheBlobStore.blobMetadata(
+                containerName, "blob");
+        putBlob(metadataCacheBlobStore, "blob", "other content");
+        assertThat(metadataCacheBlobStore.blobMetadata(containerName, "blob")
+                .getETag()).isNotEqualTo(metadata.getETag());
+    }
+
+    @Test
+    public void testRemoveBlobInvalidates() throws Exception {
+        putBlob(metadataCacheBlobStore, "blob", "content");
+        assertThat(metadataCacheBlobStore.blobMetadata(containerName, "blob"))
+                .isNotNull();
+        metadataCacheBlobStore.removeBlob(containerName, "blob");
+        assertThat(metadataCacheBlobStore.blobMetadata(containerName, "blob"))
+                .isNull();
+    }
+
+    @Test
+    public void testCopyBlobInvalidatesDestination() throws Exception {
+        putBlob(metadataCacheBlobStore, "blob", "content");
+        putBlob(metadataCacheBlobStore, "copy", "other content");
+        BlobMetadata metadata = metadataCacheBlobStore.blobMetadata(
+                containerName, "copy");
+        metadataCacheBlobStore.copyBlob(containerName, "blob", containerName,
+                "copy", CopyOptions.NONE);
+        assertThat(metadataCacheBlobStore.blobMetadata(containerName, "copy")
+                .getETag()).isNotEqualTo(metadata.getETag());
+    }
+
+    private void putBlob(BlobStore store, String name, String content) {
+        Blob blob = store.blobBuilder(name).payload(content).build();
+        store.putBlob(containerName, blob);
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public final class ChunkedInputStreamTest {
+    private static final ByteSource BYTE_SOURCE =
+            TestUtils.randomByteSource().slice(0, 200 * 1024 + 7);
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final String TIMESTAMP = "20130524T000000Z";
+    private static final String SCOPE = "20130524/us-east-1/s3/aws4_request";
+    private static final String SEED_SIGNATURE =
+            "4f232c4386841ef735655705268965c44a0e4690baa4adea153f7db9fa80a0a9";
+
+    @Test
+    public void testUnsignedDecode() throws Exception {
+        byte[] encoded = encode(BYTE_SOURCE.read(), signingKey(), false);
+        try (InputStream is = new ChunkedInputStream(
+                new ByteArrayInputStream(encoded))) {
+            assertThat(ByteStreams.toByteArray(is)).isEqualTo(
+                    BYTE_SOURCE.read());
+        }
+    }
+
+    @Test
+    public void testSignedDecode() throws Exception {
+        byte[] encoded = encode(BYTE_SOURCE.read(), signingKey(), false);
+        try (InputStream is = newSignedStream(encoded)) {
+            assertThat(ByteStreams.toByteArray(is)).isEqualTo(
+                    BYTE_SOURCE.read());
+        }
+    }
+
+    @Test
+    public void testSingleByteReads() throws Exception {
+        byte[] expected = BYTE_SOURCE.slice(0, 1000).read();
+        byte[] encoded = encode(expected, signingKey(), false);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (InputStream is = newSignedStream(encoded, expected.length)) {
+            int ch;
+            while ((ch = is.read()) != -1) {
+                baos.write(ch);
+            }
+        }
+        assertThat(baos.toByteArray()).isEqualTo(expected);
+    }
+
+    @Test
+    public void testTamperedChunk() throws Exception {
+        byte[] encoded = encode(BYTE_SOURCE.read(), signingKey(), true);
+        try (InputStream is = newSignedStream(encoded)) {
+            ByteStreams.exhaust(is);
+            Assertions.failBecauseExceptionWasNotThrown(
+                    ChunkSignatureException.class);
+        } catch (ChunkSignatureException cse) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMissingFinalChunk() throws Exception {
+        byte[] encoded = encode(BYTE_SOURCE.read(), signingKey(), false);
+        // drop "0;chunk-signature=<64 hex>\r\n\r\n"
+        encoded = Arrays.copyOf(encoded, encoded.length - 86);
+        try (InputStream is = newSignedStream(encoded)) {
+            ByteStreams.exhaust(is);
+            Assertions.failBecauseExceptionWasNotThrown(
+                    ChunkSignatureException.class);
+        } catch (ChunkSignatureException cse) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDecodedLengthMismatch() throws Exception {
+        byte[] encoded = encode(BYTE_SOURCE.read(), signingKey(), false);
+        try (InputStream is = newSignedStream(encoded,
+                BYTE_SOURCE.size() + 1)) {
+            ByteStreams.exhaust(is);
+            Assertions.failBecauseExceptionWasNotThrown(
+                    ChunkSignatureException.class);
+        } catch (ChunkSignatureException cse) {
+            // expected
+        }
+        try (InputStream is = newSignedStream(encoded,
+                BYTE_SOURCE.size() - 1)) {
+            ByteStreams.exhaust(is);
+            Assertions.failBecauseExceptionWasNotThrown(
+                    ChunkSignatureException.class);
+        } catch (ChunkSignatureException cse) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMissingChunkTerminator() throws Exception {
+        byte[] encoded = encode(BYTE_SOURCE.read(), signingKey(), false);
+        encoded = Arrays.copyOf(encoded, encoded.length - 2);
+        try (InputStream is = newSignedStream(encoded)) {
+            ByteStreams.exhaust(is);
+            Assertions.failBecauseExceptionWasNotThrown(
+                    EOFException.class);
+        } catch (EOFException eofe) {
+            // expected
+        }
+    }
+
+    private static InputStream newSignedStream(byte[] encoded)
+            throws Exception {
+        return newSignedStream(encoded, BYTE_SOURCE.size());
+    }
+
+    private static InputStream newSignedStream(byte[] encoded,
+            long decodedLength) throws Exception {
+        return new ChunkedInputStream(new ByteArrayInputStream(encoded),
+                signingKey(), "HmacSHA256", "SHA-256", TIMESTAMP, SCOPE,
+                SEED_SIGNATURE, decodedLength);
+    }
+
+    private static byte[] signingKey() throws Exception {
+        return AwsSignature.getSigningKey("credential", "20130524",
+                "us-east-1", "s3", "HmacSHA256");
+    }
+
+    /** Encode data as signed chunks, optionally flipping a payload bit. */
+    private static byte[] encode(byte[] data, byte[] signingKey,
+            boolean tamper) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        String previousSignature = SEED_SIGNATURE;
+        int offset = 0;
+        while (true) {
+            int length = Math.min(CHUNK_SIZE, data.length - offset);
+            byte[] chunk = new byte[length];
+            System.arraycopy(data, offset, chunk, 0, length);
+            String stringToSign = "AWS4-HMAC-SHA256-PAYLOAD\n" + TIMESTAMP +
+                    "\n" + SCOPE + "\n" + previousSignature + "\n" +
+                    Hashing.sha256().hashBytes(new byte[0]) + "\n" +
+                    Hashing.sha256().hashBytes(chunk);
+            String signature = BaseEncoding.base16().lowerCase().encode(
+                    AwsSignature.signMessage(
+                            stringToSign.getBytes(StandardCharsets.UTF_8),
+                            signingKey, "HmacSHA256"));
+            if (tamper && length > 0) {
+                chunk[0] = (byte) (chunk[0] ^ 1);
+            }
+            baos.write((Integer.toHexString(length) + ";chunk-signature=" +
+                    signature + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            baos.write(chunk);
+            baos.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            previousSignature = signature;
+            offset += length;
+            if (length == 0) {
+                return baos.toByteArray();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public final class ContinuationTokensTest {
+    private static final byte[] KEY = "key".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testRoundTrip() {
+        ContinuationTokens tokens = new ContinuationTokens(KEY);
+        String token = tokens.encode("bucket", "opaque/marker?x=1");
+        assertThat(token).doesNotContain("/");
+        assertThat(tokens.decode("bucket", token))
+                .isEqualTo("opaque/marker?x=1");
+    }
+
+    @Test
+    public void testSharedKey() {
+        String token = new ContinuationTokens(KEY).encode("bucket", "marker");
+        assertThat(new ContinuationTokens(KEY).decode("bucket", token))
+                .isEqualTo("marker");
+        assertThat(new ContinuationTokens(
+                "other".getBytes(StandardCharsets.UTF_8))
+                .decode("bucket", token)).isNull();
+    }
+
+    @Test
+    public void testRejectsOtherBucket() {
+        ContinuationTokens tokens = new ContinuationTokens(KEY);
+        String token = tokens.encode("bucket", "marker");
+        assertThat(tokens.decode("other-bucket", token)).isNull();
+    }
+
+    @Test
+    public void testRejectsTamperedAndMalformed() {
+        ContinuationTokens tokens = new ContinuationTokens(KEY);
+        String token = tokens.encode("bucket", "marker");
+        String forged = token.substring(0, 2) + "Zm9v" +
+                token.substring(token.lastIndexOf('.'));
+        assertThat(tokens.decode("bucket", forged)).isNull();
+        assertThat(tokens.decode("bucket", "marker")).isNull();
+        assertThat(tokens.decode("bucket", "1.!!.!!")).isNull();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public final class DigestVerifyingInputStreamTest {
+    private static final ByteSource BYTE_SOURCE =
+            TestUtils.randomByteSource().slice(0, 100 * 1024);
+
+    @Test
+    public void testMatchingDigest() throws Exception {
+        byte[] expected = BYTE_SOURCE.hash(Hashing.sha256()).asBytes();
+        try (InputStream is = new DigestVerifyingInputStream(
+                BYTE_SOURCE.openStream(), MessageDigest.getInstance("SHA-256"),
+                expected, BYTE_SOURCE.size())) {
+            assertThat(ByteStreams.toByteArray(is)).isEqualTo(
+                    BYTE_SOURCE.read());
+        }
+    }
+
+    @Test
+    public void testMismatchFailsBeforeLastByte() throws Exception {
+        byte[] expected = new byte[32];
+        try (InputStream is = new DigestVerifyingInputStream(
+                BYTE_SOURCE.openStream(), MessageDigest.getInstance("SHA-256"),
+                expected, BYTE_SOURCE.size())) {
+            // read exactly Content-Length bytes without reaching EOF
+            ByteStreams.readFully(is, new byte[(int) BYTE_SOURCE.size()]);
+            Assertions.failBecauseExceptionWasNotThrown(
+                    DigestMismatchException.class);
+        } catch (DigestMismatchException dme) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testShortBody() throws Exception {
+        byte[] expected = BYTE_SOURCE.hash(Hashing.sha256()).asBytes();
+        try (InputStream is = new DigestVerifyingInputStream(
+                BYTE_SOURCE.openStream(), MessageDigest.getInstance("SHA-256"),
+                expected, BYTE_SOURCE.size() + 1)) {
+            ByteStreams.exhaust(is);
+            Assertions.failBecauseExceptionWasNotThrown(
+                    DigestMismatchException.class);
+        } catch (DigestMismatchException dme) {
+            // expected
+        }
+    }
+}
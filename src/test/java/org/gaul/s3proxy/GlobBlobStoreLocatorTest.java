@@ -150,4 +150,40 @@ public final class GlobBlobStoreLocatorTest {
         assertThat(locator.locateBlobStore(null, "two", null)
                 .getValue()).isSameAs(blobStoreTwo);
     }
+
+    @Test
+    public void testLocateIndexedGlobs() {
+        ImmutableMap<String, Map.Entry<String, BlobStore>> credsMap =
+                ImmutableSortedMap.of(
+                        "id1", Maps.immutableEntry("one", blobStoreOne),
+                        "id2", Maps.immutableEntry("two", blobStoreTwo));
+        ImmutableMap<String, Map.Entry<String, BlobStore>> globMap =
+                ImmutableMap.of(
+                        "logs-*", Maps.immutableEntry("id1", blobStoreOne),
+                        "logs-special", Maps.immutableEntry("id2",
+                                blobStoreTwo),
+                        "data**", Maps.immutableEntry("id2", blobStoreTwo),
+                        "data-{a,b}", Maps.immutableEntry("id1",
+                                blobStoreOne));
+        GlobBlobStoreLocator locator = GlobBlobStoreLocator.fromGlobs(
+                credsMap, globMap);
+
+        assertThat(locator.locateBlobStore(null, "logs-2021", null)
+                .getValue()).isSameAs(blobStoreOne);
+        // later exact match overrides earlier prefix
+        assertThat(locator.locateBlobStore(null, "logs-special", null)
+                .getValue()).isSameAs(blobStoreTwo);
+        assertThat(locator.locateBlobStore(null, "data-c", null)
+                .getValue()).isSameAs(blobStoreTwo);
+        // later pattern overrides earlier prefix
+        assertThat(locator.locateBlobStore(null, "data-a", null)
+                .getValue()).isSameAs(blobStoreOne);
+        // cached result
+        assertThat(locator.locateBlobStore(null, "data-a", null)
+                .getValue()).isSameAs(blobStoreOne);
+        assertThat(locator.locateBlobStore("id1", "logs", null)
+                .getValue()).isSameAs(blobStoreOne);
+        assertThat(locator.locateBlobStore("id2", "logs-2021", null))
+                .isNull();
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Module;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ListingCacheBlobStoreTest {
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private BlobStore listingCacheBlobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        listingCacheBlobStore = ListingCacheBlobStore.newListingCacheBlobStore(
+                blobStore, 60 * 1000, 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testListingCached() throws Exception {
+        putBlob(blobStore, "blob1");
+        assertThat(listingCacheBlobStore.list(containerName)).hasSize(1);
+
+        // writes which bypass the cache are not visible
+        putBlob(blobStore, "blob2");
+        assertThat(listingCacheBlobStore.list(containerName)).hasSize(1);
+
+        ListingCacheMXBean bean = (ListingCacheMXBean) listingCacheBlobStore;
+        assertThat(bean.getHitCount()).isEqualTo(1);
+        assertThat(bean.getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPutBlobInvalidates() throws Exception {
+        assertThat(listingCacheBlobStore.list(containerName)).isEmpty();
+        putBlob(listingCacheBlobStore, "blob");
+        assertThat(listingCacheBlobStore.list(containerName)).hasSize(1);
+    }
+
+    @Test
+    public void testRemoveBlobInvalidates() throws Exception {
+        putBlob(listingCacheBlobStore, "blob");
+        assertThat(listingCacheBlobStore.list(containerName)).hasSize(1);
+        listingCacheBlobStore.removeBlob(containerName, "blob");
+        assertThat(listingCacheBlobStore.list(containerName)).isEmpty();
+    }
+
+    @Test
+    public void testCopyBlobInvalidatesDestination() throws Exception {
+        putBlob(listingCacheBlobStore, "blob");
+        assertThat(listingCacheBlobStore.list(containerName)).hasSize(1);
+        listingCacheBlobStore.copyBlob(containerName, "blob", containerName,
+                "copy", CopyOptions.NONE);
+        assertThat(listingCacheBlobStore.list(containerName)).hasSize(2);
+    }
+
+    @Test
+    public void testWriteKeepsUnrelatedPrefixes() throws Exception {
+        ListContainerOptions options = new ListContainerOptions()
+                .prefix("a/");
+        assertThat(listingCacheBlobStore.list(containerName, options))
+                .isEmpty();
+
+        // write to another prefix keeps the cached page
+        putBlob(listingCacheBlobStore, "b/blob");
+        putBlob(blobStore, "a/blob");
+        assertThat(listingCacheBlobStore.list(containerName, options))
+                .isEmpty();
+
+        putBlob(listingCacheBlobStore, "a/other");
+        assertThat(listingCacheBlobStore.list(containerName, options))
+                .hasSize(2);
+    }
+
+    private void putBlob(BlobStore store, String blobName) {
+        Blob blob = store.blobBuilder(blobName)
+                .payload(new byte[1])
+                .build();
+        store.putBlob(containerName, blob);
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}
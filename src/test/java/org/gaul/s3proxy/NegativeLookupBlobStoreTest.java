@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Random;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Module;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class NegativeLookupBlobStoreTest {
+    private BlobStoreContext context;
+    private BlobStore blobStore;
+    private String containerName;
+    private BlobStore negativeLookupBlobStore;
+    private NegativeLookupMXBean bean;
+
+    @Before
+    public void setUp() throws Exception {
+        containerName = createRandomContainerName();
+
+        context = ContextBuilder
+                .newBuilder("transient")
+                .credentials("identity", "credential")
+                .modules(ImmutableList.<Module>of(new SLF4JLoggingModule()))
+                .build(BlobStoreContext.class);
+        blobStore = context.getBlobStore();
+        blobStore.createContainerInLocation(null, containerName);
+        negativeLookupBlobStore =
+                NegativeLookupBlobStore.newNegativeLookupBlobStore(
+                        blobStore, 0, 0.01);
+        bean = (NegativeLookupMXBean) negativeLookupBlobStore;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (context != null) {
+            blobStore.deleteContainer(containerName);
+            context.close();
+        }
+    }
+
+    @Test
+    public void testMissingKeyAvoidsBackend() throws Exception {
+        putBlob(blobStore, "blob");
+        awaitSeeded();
+        long avoided = bean.getAvoidedLookupCount();
+
+        assertThat(negativeLookupBlobStore.blobMetadata(containerName,
+                "missing")).isNull();
+        assertThat(negativeLookupBlobStore.getBlob(containerName,
+                "missing")).isNull();
+        assertThat(negativeLookupBlobStore.blobExists(containerName,
+                "blob")).isTrue();
+
+        assertThat(bean.getAvoidedLookupCount()).isEqualTo(avoided + 2);
+    }
+
+    @Test
+    public void testPutBlobAddsKey() throws Exception {
+        awaitSeeded();
+        long avoided = bean.getAvoidedLookupCount();
+        putBlob(negativeLookupBlobStore, "blob");
+        assertThat(negativeLookupBlobStore.getBlob(containerName, "blob"))
+                .isNotNull();
+        assertThat(bean.getAvoidedLookupCount()).isEqualTo(avoided);
+    }
+
+    private void awaitSeeded() throws InterruptedException {
+        negativeLookupBlobStore.blobExists(containerName, "seed");
+        for (int i = 0; i < 100 && bean.getRebuildCount() == 0; ++i) {
+            Thread.sleep(100);
+        }
+        assertThat(bean.getRebuildCount()).isEqualTo(1);
+    }
+
+    private void putBlob(BlobStore store, String blobName) {
+        Blob blob = store.blobBuilder(blobName)
+                .payload(new byte[1])
+                .build();
+        store.putBlob(containerName, blob);
+    }
+
+    private static String createRandomContainerName() {
+        return "container-" + new Random().nextInt(Integer.MAX_VALUE);
+    }
+}
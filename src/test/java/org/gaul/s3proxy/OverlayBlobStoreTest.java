@@ -28,6 +28,8 @@ import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.blobstore.domain.BlobBuilder;
 import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
 import org.jclouds.blobstore.options.PutOptions;
 import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
 import org.jclouds.openstack.keystone.catalog.ServiceEndpoint;
@@ -40,6 +42,8 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -175,6 +179,123 @@ public final class OverlayBlobStoreTest {
         overlayBlobStore.putBlob(containerName, blobBuilder.build(), new PutOptions());
     }
 
+    @Test
+    public void testPutBlobUnmasksRemovedBlob() throws Exception {
+        overlayBlobStore.removeBlob(containerName, blobName);
+        assertThat(overlayBlobStore.blobExists(containerName, blobName))
+                .isFalse();
+
+        overlayBlobStore.putBlob(containerName, overlayBlobStore
+                .blobBuilder(blobName).payload("restored").build());
+        assertThat(overlayBlobStore.blobExists(containerName, blobName))
+                .isTrue();
+        Blob blob = overlayBlobStore.getBlob(containerName, blobName);
+        assertThat(new String(blob.getPayload().getInput().readAllBytes()))
+                .isEqualTo("restored");
+    }
+
+    @Test
+    public void testListMergesSortedPages() throws Exception {
+        overlayBlobStore.putBlob(containerName,
+                overlayBlobStore.blobBuilder("a-local").payload("").build());
+        overlayBlobStore.putBlob(containerName,
+                overlayBlobStore.blobBuilder("z-local").payload("").build());
+        blobStore.putBlob(containerName,
+                blobStore.blobBuilder("m-upstream").payload("").build());
+
+        List<String> names = new ArrayList<>();
+        String marker = null;
+        do {
+            ListContainerOptions options = new ListContainerOptions()
+                    .maxResults(1);
+            if (marker != null) {
+                options.afterMarker(marker);
+            }
+            PageSet<? extends StorageMetadata> blobs =
+                    overlayBlobStore.list(containerName, options);
+            assertThat(blobs.size()).isLessThanOrEqualTo(1);
+            for (StorageMetadata sm : blobs) {
+                names.add(sm.getName());
+            }
+            marker = blobs.getNextMarker();
+        } while (marker != null);
+
+        assertThat(names).isSorted().hasSize(4).containsOnly(
+                "a-local", blobName, "m-upstream", "z-local");
+    }
+
+    @Test
+    public void testCopyBlobFromUpstream() throws Exception {
+        overlayBlobStore.copyBlob(containerName, blobName, containerName,
+                "copied", CopyOptions.NONE);
+
+        Blob blob = overlayBlobStore.getBlob(containerName, "copied");
+        assertThat(new String(blob.getPayload().getInput().readAllBytes()))
+                .isEqualTo("Blobby");
+        assertThat(blobStore.blobExists(containerName, "copied")).isFalse();
+    }
+
+    @Test
+    public void testPromoteOnRead() throws Exception {
+        OverlayBlobStore overlay = new OverlayBlobStore(blobStore,
+                overlayPath, "__deleted", true, 1, 100.0);
+        Blob blob = overlay.getBlob(containerName, blobName);
+        try (InputStream is = blob.getPayload().openStream()) {
+            assertThat(new String(is.readAllBytes())).isEqualTo("Blobby");
+        }
+
+        Blob local = overlay.localBlobStore().getBlob(containerName, blobName);
+        assertThat(local).isNotNull();
+        assertThat(new String(local.getPayload().getInput().readAllBytes()))
+                .isEqualTo("Blobby");
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        OverlayBlobStore overlay = (OverlayBlobStore) overlayBlobStore;
+        overlay.putBlob(containerName,
+                overlay.blobBuilder("committed").payload("local").build());
+        overlay.removeBlob(containerName, blobName);
+
+        overlay.commit();
+
+        Blob committed = blobStore.getBlob(containerName, "committed");
+        assertThat(new String(committed.getPayload().getInput()
+                .readAllBytes())).isEqualTo("local");
+        assertThat(blobStore.blobExists(containerName, blobName)).isFalse();
+        assertThat(blobStore.blobExists(containerName, maskedBlobName))
+                .isFalse();
+        assertThat(overlay.localBlobStore().blobExists(containerName,
+                blobName + "__deleted")).isFalse();
+        assertThat(overlay.blobExists(containerName, blobName)).isFalse();
+    }
+
+    @Test
+    public void testCommitAfterRestart() throws Exception {
+        overlayBlobStore.putBlob(containerName, overlayBlobStore
+                .blobBuilder("pending").payload("local").build());
+
+        // a new overlay on the same path finds the uncommitted write
+        OverlayBlobStore restarted = new OverlayBlobStore(blobStore,
+                overlayPath, "__deleted");
+        try {
+            assertThat(restarted.list(containerName))
+                    .extracting(StorageMetadata::getName)
+                    .contains("pending")
+                    .doesNotContain("pending__deleted-dirty");
+
+            restarted.commit();
+
+            Blob committed = blobStore.getBlob(containerName, "pending");
+            assertThat(new String(committed.getPayload().getInput()
+                    .readAllBytes())).isEqualTo("local");
+            assertThat(restarted.localBlobStore().blobExists(containerName,
+                    "pending__deleted-dirty")).isFalse();
+        } finally {
+            restarted.close();
+        }
+    }
+
     private static String createRandomContainerName() {
         return "container-" + new Random().nextInt(Integer.MAX_VALUE);
     }
@@ -34,6 +34,7 @@ import org.jclouds.blobstore.domain.Blob;
 import org.jclouds.blobstore.domain.PageSet;
 import org.jclouds.blobstore.domain.StorageMetadata;
 import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
 import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
 
 import org.junit.After;
@@ -255,4 +256,61 @@ public final class ShardedBlobStoreTest {
             assertThat(actual).hasContentEqualTo(expected);
         }
     }
+
+    @Test
+    public void testListSharded() {
+        this.createContainer(containerName);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 25; ++i) {
+            String blobName = String.format("blob-%02d", i);
+            expected.add(blobName);
+            shardedBlobStore.putBlob(containerName, shardedBlobStore
+                    .blobBuilder(blobName).payload("").build());
+        }
+
+        List<String> actual = new ArrayList<>();
+        String marker = null;
+        do {
+            ListContainerOptions options = new ListContainerOptions()
+                    .recursive().maxResults(7);
+            if (marker != null) {
+                options.afterMarker(marker);
+            }
+            PageSet<? extends StorageMetadata> page = shardedBlobStore.list(
+                    containerName, options);
+            assertThat(page.size()).isLessThanOrEqualTo(7);
+            for (StorageMetadata sm : page) {
+                actual.add(sm.getName());
+            }
+            marker = page.getNextMarker();
+        } while (marker != null);
+        assertThat(actual).isEqualTo(expected);
+    }
+
+    @Test
+    public void testListShardedDelimiter() {
+        this.createContainer(containerName);
+        for (String blobName : ImmutableList.of("a", "dir/a", "dir/b",
+                "dir/c", "dir/d", "z")) {
+            shardedBlobStore.putBlob(containerName, shardedBlobStore
+                    .blobBuilder(blobName).payload("").build());
+        }
+
+        List<String> actual = new ArrayList<>();
+        for (StorageMetadata sm : shardedBlobStore.list(containerName,
+                new ListContainerOptions().delimiter("/"))) {
+            actual.add(sm.getName());
+        }
+        assertThat(actual).containsExactly("a", "dir/", "z");
+    }
+
+    @Test
+    public void testCountBlobs() {
+        this.createContainer(containerName);
+        for (int i = 0; i < 12; ++i) {
+            shardedBlobStore.putBlob(containerName, shardedBlobStore
+                    .blobBuilder("blob-" + i).payload("").build());
+        }
+        assertThat(shardedBlobStore.countBlobs(containerName)).isEqualTo(12);
+    }
 }
@@ -153,12 +153,19 @@ final class TestUtils {
     }
 
     static S3ProxyLaunchInfo startS3Proxy(String configFile) throws Exception {
+        return startS3Proxy(configFile, new Properties());
+    }
+
+    /** Start S3Proxy with overrides applied on top of configFile. */
+    static S3ProxyLaunchInfo startS3Proxy(String configFile,
+            Properties overrides) throws Exception {
         S3ProxyLaunchInfo info = new S3ProxyLaunchInfo();
 
         try (InputStream is = Resources.asByteSource(Resources.getResource(
                 configFile)).openStream()) {
             info.getProperties().load(is);
         }
+        info.getProperties().putAll(overrides);
 
         String provider = info.getProperties().getProperty(
                 Constants.PROPERTY_PROVIDER);
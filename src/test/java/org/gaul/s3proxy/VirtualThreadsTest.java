@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014-2021 Andrew Gaul <andrew@gaul.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.gaul.s3proxy;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public final class VirtualThreadsTest {
+    @Test
+    public void testNewVirtualThreadPerTaskExecutor() throws Exception {
+        assumeTrue(VirtualThreads.isSupported());
+        ExecutorService executor =
+                VirtualThreads.newVirtualThreadPerTaskExecutor("s3proxy-");
+        try {
+            String name = executor.submit(
+                    () -> Thread.currentThread().getName()).get();
+            assertThat(name).isEqualTo("s3proxy-0");
+        } finally {
+            executor.shutdown();
+            assertThat(executor.awaitTermination(10, TimeUnit.SECONDS))
+                    .isTrue();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUnsupportedJavaVersion() {
+        assumeTrue(!VirtualThreads.isSupported());
+        VirtualThreads.newVirtualThreadPerTaskExecutor("s3proxy-");
+    }
+}